@@ -28,4 +28,25 @@ static const Color8888 TRANSPARENT = 0x0;
 #define ARGB_TO_COLOR8888(a, r, g, b) \
     ((a) << 24 | (b) << 16 | (g) << 8 | (r))
 
+typedef uint16_t Color565;
+
+enum PixelFormat {
+    PIXEL_FORMAT_8888,
+    // opaque only, alpha is dropped
+    PIXEL_FORMAT_565,
+};
+
+static inline int getBytesPerPixel(PixelFormat format) {
+    return format == PIXEL_FORMAT_565 ? sizeof(Color565) : sizeof(Color8888);
+}
+
+// converts to the pixel type of an output buffer, ignoring alpha for 565
+static inline Color8888 toPixel(Color8888 color, const Color8888*) {
+    return color;
+}
+
+static inline Color565 toPixel(Color8888 color, const Color565*) {
+    return ((color >> 3) & 0x1f) << 11 | ((color >> 10) & 0x3f) << 5 | ((color >> 19) & 0x1f);
+}
+
 #endif // RASTERMILL_COLOR_H
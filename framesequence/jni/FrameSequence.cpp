@@ -16,14 +16,57 @@
 
 #include "FrameSequence.h"
 
+#include <string.h>
+
 #include "Registry.h"
 
+FrameSequenceInfo::FrameSequenceInfo()
+        : width(0)
+        , height(0)
+        , opaque(false)
+        , loopCount(1)
+        , frameCount(0)
+        , frameDelaysMs(NULL)
+        , mFrameCapacity(0) {
+}
+
+FrameSequenceInfo::~FrameSequenceInfo() {
+    delete[] frameDelaysMs;
+}
+
+void FrameSequenceInfo::addFrame(int delayMs) {
+    if (frameCount == mFrameCapacity) {
+        mFrameCapacity = mFrameCapacity ? mFrameCapacity * 2 : 16;
+        int* grown = new int[mFrameCapacity];
+        if (frameDelaysMs) {
+            memcpy(grown, frameDelaysMs, frameCount * sizeof(int));
+        }
+        delete[] frameDelaysMs;
+        frameDelaysMs = grown;
+    }
+    frameDelaysMs[frameCount++] = delayMs;
+}
+
 FrameSequence* FrameSequence::create(Stream* stream) {
     const RegistryEntry* entry = Registry::Find(stream);
 
     if (!entry) return NULL;
 
-    FrameSequence* frameSequence = entry->createFrameSequence(stream);
+    return validate(entry->createFrameSequence(stream));
+}
+
+FrameSequence* FrameSequence::createProgressive(Stream* stream) {
+    const RegistryEntry* entry = Registry::Find(stream);
+
+    if (!entry) return NULL;
+
+    if (!entry->createProgressiveFrameSequence) {
+        return validate(entry->createFrameSequence(stream));
+    }
+    return validate(entry->createProgressiveFrameSequence(stream));
+}
+
+FrameSequence* FrameSequence::validate(FrameSequence* frameSequence) {
     if (!frameSequence->getFrameCount() ||
             !frameSequence->getWidth() || !frameSequence->getHeight()) {
         // invalid contents, abort
@@ -33,3 +76,16 @@ FrameSequence* FrameSequence::create(Stream* stream) {
 
     return frameSequence;
 }
+
+bool FrameSequence::probe(Stream* stream, FrameSequenceInfo* info) {
+    const RegistryEntry* entry = Registry::Find(stream);
+
+    if (!entry || !entry->probe) return false;
+
+    if (!entry->probe(stream, info) || !info->frameCount || !info->width || !info->height) {
+        // invalid contents, abort
+        return false;
+    }
+
+    return true;
+}
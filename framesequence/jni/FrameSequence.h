@@ -20,6 +20,58 @@
 #include "Stream.h"
 #include "Color.h"
 
+/**
+ * Returns the number of pixels sampled from a span of size source pixels, when sampling every
+ * sampleSize-th pixel starting from the first. Also maps a span's end to its sampled position.
+ */
+static inline int getSampledSize(int size, int sampleSize) {
+    return (size + sampleSize - 1) / sampleSize;
+}
+
+/**
+ * Rectangle of output pixels, right and bottom exclusive
+ */
+struct PixelRect {
+    int left;
+    int top;
+    int right;
+    int bottom;
+
+    void set(int l, int t, int r, int b) {
+        left = l;
+        top = t;
+        right = r;
+        bottom = b;
+    }
+
+    void setEmpty() { set(0, 0, 0, 0); }
+
+    bool isEmpty() const { return left >= right || top >= bottom; }
+
+    // true if both rectangles cover a common pixel
+    bool intersects(const PixelRect& r) const {
+        return left < r.right && r.left < right && top < r.bottom && r.top < bottom;
+    }
+
+    // grows to also cover the given rectangle, empty rectangles are ignored
+    void join(int l, int t, int r, int b) {
+        if (l >= r || t >= b) return;
+        if (isEmpty()) {
+            set(l, t, r, b);
+            return;
+        }
+        if (l < left) left = l;
+        if (t < top) top = t;
+        if (r > right) right = r;
+        if (b > bottom) bottom = b;
+    }
+};
+
+/**
+ * Draws the frames of a sequence, holding the buffers and decoder needed to do so. A state only
+ * reads its sequence, so states of the same sequence may draw on different threads concurrently,
+ * while each state must be used by a single thread at a time.
+ */
 class FrameSequenceState {
 public:
     /**
@@ -27,13 +79,73 @@ public:
      * previousFrameNr (the current contents of the buffer), or from scratch if previousFrameNr is
      * negative
      *
+     * The output covers the canvas downsampled by the state's sample size, and holds pixels of
+     * the state's format, see FrameSequence::createState
+     *
+     * If outDirtyRect is non-NULL, it's set to bound all output pixels that may have changed
+     * from previousFrameNr, or the whole output if drawn from scratch.
+     *
      * Returns frame's delay time in milliseconds.
      */
     virtual long drawFrame(int frameNr,
-            Color8888* outputPtr, int outputPixelStride, int previousFrameNr) = 0;
+            void* outputPtr, int outputPixelStride, int previousFrameNr,
+            PixelRect* outDirtyRect) = 0;
+
+    virtual PixelFormat getPixelFormat() const = 0;
+
+    // frames of the sequence that can be drawn so far, see FrameSequence::getFrameCount
+    virtual int getFrameCount() const = 0;
+
+    // delay of frameNr itself, unlike drawFrame's, see FrameSequence::getFrameDelay
+    virtual long getFrameDelay(int frameNr) const = 0;
+
+    // size of the output, the canvas downsampled by the state's sample size
+    virtual int getWidth() const = 0;
+    virtual int getHeight() const = 0;
+
+    /**
+     * Enables snapshots of composed frames, used to draw frames that don't follow
+     * previousFrameNr without replaying the sequence from its start. Up to maxBytes are spent on
+     * snapshots, 0 disables them.
+     */
+    virtual void setKeyframeCacheSize(size_t maxBytes) {}
+
+    /**
+     * Frees memory held only to speed up drawing, such as keyframe snapshots. It is taken again
+     * as frames are drawn.
+     */
+    virtual void trim() {}
+
+    /**
+     * Returns the bytes of native memory the state holds at most, counting buffers allocated as
+     * frames are drawn and the full keyframe cache budget
+     */
+    virtual size_t getAllocationSize() const = 0;
+
     virtual ~FrameSequenceState() {}
 };
 
+/**
+ * Header level description of a frame sequence, gathered without decoding any frames
+ */
+struct FrameSequenceInfo {
+    FrameSequenceInfo();
+    ~FrameSequenceInfo();
+
+    // appends a frame with the given delay, as stored in the source data
+    void addFrame(int delayMs);
+
+    int width;
+    int height;
+    bool opaque;
+    int loopCount;
+    int frameCount;
+    int* frameDelaysMs;
+
+private:
+    int mFrameCapacity;
+};
+
 class FrameSequence {
 public:
     /**
@@ -43,6 +155,21 @@ public:
      */
     static FrameSequence* create(Stream* stream);
 
+    /**
+     * Like create, but only reads the stream up to the end of the first frame if the type
+     * supports it, so that frames can be drawn while the rest of the data arrives through
+     * appendData. Types that don't are read completely, as by create.
+     */
+    static FrameSequence* createProgressive(Stream* stream);
+
+    /**
+     * Fills info by reading only the header and per frame metadata from the data stream, without
+     * decoding or allocating any frames
+     *
+     * Returns false if the type is unknown or the contents are invalid
+     */
+    static bool probe(Stream* stream, FrameSequenceInfo* info);
+
     virtual ~FrameSequence() {}
     virtual int getWidth() const = 0;
     virtual int getHeight() const = 0;
@@ -51,7 +178,55 @@ public:
     virtual int getDefaultLoopCount() const = 0;
     virtual jobject getRawByteBuffer() const = 0;
 
-    virtual FrameSequenceState* createState() const = 0;
+    /**
+     * Returns the bytes of native memory held by the sequence, not counting a raw buffer it reads
+     * in place or memory shared with its states
+     */
+    virtual size_t getAllocationSize() const = 0;
+
+    /**
+     * Returns how long frameNr is shown in ms, as stored in the source data. drawFrame returns
+     * this delay of the frame before the one drawn.
+     */
+    virtual long getFrameDelay(int frameNr) const = 0;
+
+    /**
+     * Returns true if frameNr replaces the whole canvas by itself, so that no earlier frame shows
+     * through it
+     */
+    virtual bool coversCanvas(int frameNr) const = 0;
+
+    /**
+     * True while the sequence was created progressively and its data hasn't ended yet. Frames
+     * are added to getFrameCount() as their data arrives, and states may draw any frame already
+     * counted, concurrently with appends.
+     */
+    virtual bool isLoading() const { return false; }
+
+    /**
+     * Appends the next size bytes of a sequence that is loading, data appended after loading
+     * ended is ignored. Returns false if the data is invalid, in which case loading ends with the
+     * frames counted so far.
+     */
+    virtual bool appendData(const uint8_t* data, size_t size) { return false; }
+
+    // ends loading, a frame whose data was cut short is dropped
+    virtual void finishData() {}
+
+    /**
+     * Creates a state drawing every sampleSize-th pixel of every sampleSize-th row, i.e. onto a
+     * canvas of getSampledSize(getWidth(), sampleSize) by getSampledSize(getHeight(), sampleSize)
+     *
+     * PIXEL_FORMAT_565 is only valid for opaque sequences
+     *
+     * Safe to call while other states of the sequence draw. Whatever a state shares with the
+     * sequence must stay immutable once created, or be guarded like progressive appends are.
+     */
+    virtual FrameSequenceState* createState(int sampleSize, PixelFormat format) const = 0;
+
+private:
+    // deletes the sequence and returns NULL if it has no frames or an empty canvas
+    static FrameSequence* validate(FrameSequence* frameSequence);
 };
 
 #endif //RASTERMILL_FRAME_SEQUENCE_H
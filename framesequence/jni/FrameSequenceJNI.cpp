@@ -14,10 +14,12 @@
  * limitations under the License.
  */
 
+#include <string.h>
 #include <android/bitmap.h>
 #include "JNIHelpers.h"
 #include "utils/log.h"
 #include "FrameSequence.h"
+#include "FrameSequence_fastplay.h"
 
 #include "FrameSequenceJNI.h"
 
@@ -28,6 +30,18 @@ static struct {
     jmethodID ctor;
 } gFrameSequenceClassInfo;
 
+static struct {
+    jclass clazz;
+    jmethodID ctor;
+} gFrameSequenceInfoClassInfo;
+
+static struct {
+    jfieldID left;
+    jfieldID top;
+    jfieldID right;
+    jfieldID bottom;
+} gRectClassInfo;
+
 ////////////////////////////////////////////////////////////////////////////////
 // Frame sequence
 ////////////////////////////////////////////////////////////////////////////////
@@ -42,7 +56,8 @@ static jobject createJavaFrameSequence(JNIEnv* env, FrameSequence* frameSequence
             frameSequence->getHeight(),
             frameSequence->isOpaque(),
             frameSequence->getFrameCount(),
-            frameSequence->getDefaultLoopCount());
+            frameSequence->getDefaultLoopCount(),
+            frameSequence->isLoading());
 }
 
 static jobject nativeDecodeByteArray(JNIEnv* env, jobject clazz,
@@ -70,6 +85,10 @@ static jobject nativeDecodeByteBuffer(JNIEnv* env, jobject clazz,
         limit,
         globalBuf);
     FrameSequence* frameSequence = FrameSequence::create(&stream);
+    if (!frameSequence) {
+        // nothing retained the buffer
+        env->DeleteGlobalRef(globalBuf);
+    }
     jobject finalSequence = createJavaFrameSequence(env, frameSequence);
     return finalSequence;
 }
@@ -81,6 +100,41 @@ static jobject nativeDecodeStream(JNIEnv* env, jobject clazz,
     return createJavaFrameSequence(env, frameSequence);
 }
 
+static jobject nativeDecodeStreamProgressively(JNIEnv* env, jobject clazz,
+        jobject istream, jbyteArray byteArray) {
+    JavaInputStream stream(env, istream, byteArray);
+    FrameSequence* frameSequence = FrameSequence::createProgressive(&stream);
+    return createJavaFrameSequence(env, frameSequence);
+}
+
+// returns the number of frames loaded so far
+static jint nativeAppendData(JNIEnv* env, jobject clazz, jlong frameSequenceLong,
+        jbyteArray byteArray, jint offset, jint length) {
+    FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
+    // not a critical section, appending waits for states that are drawing
+    jbyte* bytes = env->GetByteArrayElements(byteArray, NULL);
+    if (bytes == NULL) {
+        jniThrowException(env, ILLEGAL_STATE_EXEPTION,
+                "couldn't read array bytes");
+        return 0;
+    }
+    frameSequence->appendData(reinterpret_cast<uint8_t*>(bytes + offset), length);
+    env->ReleaseByteArrayElements(byteArray, bytes, JNI_ABORT);
+    return frameSequence->getFrameCount();
+}
+
+// returns the number of frames loaded
+static jint nativeFinishData(JNIEnv* env, jobject clazz, jlong frameSequenceLong) {
+    FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
+    frameSequence->finishData();
+    return frameSequence->getFrameCount();
+}
+
+static jboolean nativeIsLoading(JNIEnv* env, jobject clazz, jlong frameSequenceLong) {
+    FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
+    return frameSequence->isLoading();
+}
+
 static void nativeDestroyFrameSequence(JNIEnv* env, jobject clazz,
         jlong frameSequenceLong) {
     FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
@@ -91,12 +145,105 @@ static void nativeDestroyFrameSequence(JNIEnv* env, jobject clazz,
     delete frameSequence;
 }
 
-static jlong nativeCreateState(JNIEnv* env, jobject clazz, jlong frameSequenceLong) {
+static jlong nativeCreateState(JNIEnv* env, jobject clazz, jlong frameSequenceLong,
+        jint sampleSize, jboolean rgb565) {
     FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
-    FrameSequenceState* state = frameSequence->createState();
+    FrameSequenceState* state = frameSequence->createState(sampleSize,
+            rgb565 ? PIXEL_FORMAT_565 : PIXEL_FORMAT_8888);
     return reinterpret_cast<jlong>(state);
 }
 
+static jbyteArray nativeTranscodeFastPlay(JNIEnv* env, jobject clazz, jlong frameSequenceLong,
+        jint keyframeInterval) {
+    FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
+    size_t size;
+    uint8_t* data = FrameSequence_fastplay::transcode(*frameSequence, keyframeInterval, &size);
+    if (!data) {
+        return NULL;
+    }
+    jbyteArray array = env->NewByteArray(size);
+    if (array) {
+        env->SetByteArrayRegion(array, 0, size, reinterpret_cast<jbyte*>(data));
+    }
+    delete[] data;
+    return array;
+}
+
+static jlong nativeGetAllocationSize(JNIEnv* env, jobject clazz, jlong frameSequenceLong) {
+    FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
+    return frameSequence->getAllocationSize();
+}
+
+static jint nativeGetFrameDelay(JNIEnv* env, jobject clazz, jlong frameSequenceLong,
+        jint frameNr) {
+    FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
+    return frameSequence->getFrameDelay(frameNr);
+}
+
+static jint nativeFindFirstCoveringFrame(JNIEnv* env, jobject clazz, jlong frameSequenceLong) {
+    FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
+    const int frameCount = frameSequence->getFrameCount();
+    for (int i = 0; i < frameCount; i++) {
+        if (frameSequence->coversCanvas(i)) {
+            return i;
+        }
+    }
+    return -1;
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Frame sequence info
+////////////////////////////////////////////////////////////////////////////////
+
+static jobject createJavaFrameSequenceInfo(JNIEnv* env, const FrameSequenceInfo& info) {
+    jintArray frameDelays = env->NewIntArray(info.frameCount);
+    if (!frameDelays) {
+        return NULL;
+    }
+    env->SetIntArrayRegion(frameDelays, 0, info.frameCount, info.frameDelaysMs);
+    return env->NewObject(gFrameSequenceInfoClassInfo.clazz, gFrameSequenceInfoClassInfo.ctor,
+            info.width,
+            info.height,
+            info.opaque,
+            info.loopCount,
+            frameDelays);
+}
+
+static jobject nativeProbeByteArray(JNIEnv* env, jobject clazz,
+        jbyteArray byteArray, jint offset, jint length) {
+    jbyte* bytes = reinterpret_cast<jbyte*>(env->GetPrimitiveArrayCritical(byteArray, NULL));
+    if (bytes == NULL) {
+        jniThrowException(env, ILLEGAL_STATE_EXEPTION,
+                "couldn't read array bytes");
+        return NULL;
+    }
+    MemoryStream stream(bytes + offset, length, NULL);
+    FrameSequenceInfo info;
+    bool success = FrameSequence::probe(&stream, &info);
+    env->ReleasePrimitiveArrayCritical(byteArray, bytes, 0);
+    return success ? createJavaFrameSequenceInfo(env, info) : NULL;
+}
+
+static jobject nativeProbeByteBuffer(JNIEnv* env, jobject clazz,
+        jobject buf, jint offset, jint limit) {
+    // the buffer isn't retained, so it's read as plain memory rather than as a raw buffer
+    MemoryStream stream(
+        (reinterpret_cast<uint8_t*>(env->GetDirectBufferAddress(buf))) + offset,
+        limit,
+        NULL);
+    FrameSequenceInfo info;
+    bool success = FrameSequence::probe(&stream, &info);
+    return success ? createJavaFrameSequenceInfo(env, info) : NULL;
+}
+
+static jobject nativeProbeStream(JNIEnv* env, jobject clazz,
+        jobject istream, jbyteArray byteArray) {
+    JavaInputStream stream(env, istream, byteArray);
+    FrameSequenceInfo info;
+    bool success = FrameSequence::probe(&stream, &info);
+    return success ? createJavaFrameSequenceInfo(env, info) : NULL;
+}
+
 ////////////////////////////////////////////////////////////////////////////////
 // Frame sequence state
 ////////////////////////////////////////////////////////////////////////////////
@@ -114,17 +261,47 @@ void throwIae(JNIEnv* env, const char* message, int errorCode) {
     jniThrowException(env, ILLEGAL_STATE_EXEPTION, buf);
 }
 
+static void setRect(JNIEnv* env, jobject rect, const PixelRect& pixelRect) {
+    env->SetIntField(rect, gRectClassInfo.left, pixelRect.left);
+    env->SetIntField(rect, gRectClassInfo.top, pixelRect.top);
+    env->SetIntField(rect, gRectClassInfo.right, pixelRect.right);
+    env->SetIntField(rect, gRectClassInfo.bottom, pixelRect.bottom);
+}
+
+// fills info for a Bitmap the state can draw into, throws and returns false otherwise
+// checks bitmap has the state's format, and room for minWidth by minHeight pixels
+static bool getDrawableBitmapInfo(JNIEnv* env, FrameSequenceState* frameSequenceState,
+        jobject bitmap, int minWidth, int minHeight, AndroidBitmapInfo* info) {
+    int ret;
+    if ((ret = AndroidBitmap_getInfo(env, bitmap, info)) < 0) {
+        throwIae(env, "Couldn't get info from Bitmap", ret);
+        return false;
+    }
+
+    const int32_t expectedFormat = frameSequenceState->getPixelFormat() == PIXEL_FORMAT_565
+            ? ANDROID_BITMAP_FORMAT_RGB_565 : ANDROID_BITMAP_FORMAT_RGBA_8888;
+    if (info->format != expectedFormat) {
+        throwIae(env, "Bitmap format doesn't match FrameSequenceState", info->format);
+        return false;
+    }
+    if ((int) info->width < minWidth || (int) info->height < minHeight) {
+        jniThrowException(env, ILLEGAL_ARGUMENT_EXCEPTION, "Bitmap too small");
+        return false;
+    }
+    return true;
+}
+
 static jlong JNICALL nativeGetFrame(
         JNIEnv* env, jobject clazz, jlong frameSequenceStateLong, jint frameNr,
-        jobject bitmap, jint previousFrameNr) {
+        jobject bitmap, jint previousFrameNr, jobject dirtyRect) {
     FrameSequenceState* frameSequenceState =
             reinterpret_cast<FrameSequenceState*>(frameSequenceStateLong);
     int ret;
     AndroidBitmapInfo info;
     void* pixels;
 
-    if ((ret = AndroidBitmap_getInfo(env, bitmap, &info)) < 0) {
-        throwIae(env, "Couldn't get info from Bitmap", ret);
+    if (!getDrawableBitmapInfo(env, frameSequenceState, bitmap,
+            frameSequenceState->getWidth(), frameSequenceState->getHeight(), &info)) {
         return 0;
     }
 
@@ -133,14 +310,181 @@ static jlong JNICALL nativeGetFrame(
         return 0;
     }
 
-    int pixelStride = info.stride >> 2;
+    const PixelFormat format = frameSequenceState->getPixelFormat();
+    int pixelStride = info.stride / getBytesPerPixel(format);
+    PixelRect dirty;
     jlong delayMs = frameSequenceState->drawFrame(frameNr,
-            (Color8888*) pixels, pixelStride, previousFrameNr);
+            pixels, pixelStride, previousFrameNr, dirtyRect ? &dirty : NULL);
 
     AndroidBitmap_unlockPixels(env, bitmap);
+
+    if (dirtyRect) {
+        setRect(env, dirtyRect, dirty);
+    }
     return delayMs;
 }
 
+static jlong JNICALL nativeGetFrameIntoBuffer(
+        JNIEnv* env, jobject clazz, jlong frameSequenceStateLong, jint frameNr,
+        jobject buffer, jint bufferOffset, jint strideBytes, jint previousFrameNr,
+        jobject dirtyRect) {
+    FrameSequenceState* frameSequenceState =
+            reinterpret_cast<FrameSequenceState*>(frameSequenceStateLong);
+    uint8_t* pixels = reinterpret_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+    if (!pixels) {
+        jniThrowException(env, ILLEGAL_STATE_EXEPTION, "Couldn't get ByteBuffer address");
+        return 0;
+    }
+
+    const int pixelStride = strideBytes / getBytesPerPixel(frameSequenceState->getPixelFormat());
+    PixelRect dirty;
+    jlong delayMs = frameSequenceState->drawFrame(frameNr,
+            pixels + bufferOffset, pixelStride, previousFrameNr, dirtyRect ? &dirty : NULL);
+
+    if (dirtyRect) {
+        setRect(env, dirtyRect, dirty);
+    }
+    return delayMs;
+}
+
+/**
+ * Draws frames [fromFrameNr, toFrameNr) into a grid of width by height cells, columns cells per
+ * row. Each cell starts as a copy of the one before, so that only the delta to the previous frame
+ * is drawn, and each frame's delay is stored in delays.
+ */
+static void drawFrames(JNIEnv* env, FrameSequenceState* frameSequenceState,
+        int fromFrameNr, int toFrameNr, uint8_t* pixels, size_t strideBytes,
+        int columns, int width, int height, jintArray delays) {
+    if (fromFrameNr < 0 || toFrameNr > frameSequenceState->getFrameCount()) {
+        jniThrowException(env, ILLEGAL_ARGUMENT_EXCEPTION, "Frame range out of bounds");
+        return;
+    }
+    const int bytesPerPixel = getBytesPerPixel(frameSequenceState->getPixelFormat());
+    const int pixelStride = strideBytes / bytesPerPixel;
+    const size_t rowBytes = (size_t) width * bytesPerPixel;
+    uint8_t* previousCell = NULL;
+    for (int frameNr = fromFrameNr; frameNr < toFrameNr; frameNr++) {
+        const int index = frameNr - fromFrameNr;
+        uint8_t* cell = pixels + (size_t) (index / columns) * height * strideBytes
+                + (index % columns) * rowBytes;
+        if (previousCell) {
+            for (int y = 0; y < height; y++) {
+                memcpy(cell + y * strideBytes, previousCell + y * strideBytes, rowBytes);
+            }
+        }
+        // drawFrame returns the previous frame's delay, report the frame's own
+        const long drawn = frameSequenceState->drawFrame(frameNr, cell, pixelStride,
+                previousCell ? frameNr - 1 : -1, NULL);
+        const jint delayMs = drawn < 0 ? -1 : frameSequenceState->getFrameDelay(frameNr);
+        env->SetIntArrayRegion(delays, index, 1, &delayMs);
+        previousCell = cell;
+    }
+}
+
+static void JNICALL nativeGetFrames(
+        JNIEnv* env, jobject clazz, jlong frameSequenceStateLong, jint fromFrameNr,
+        jint toFrameNr, jobject bitmap, jobject buffer, jint bufferOffset, jint columns,
+        jint width, jint height, jintArray delays) {
+    FrameSequenceState* frameSequenceState =
+            reinterpret_cast<FrameSequenceState*>(frameSequenceStateLong);
+
+    if (buffer) {
+        uint8_t* pixels = reinterpret_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+        if (!pixels) {
+            jniThrowException(env, ILLEGAL_STATE_EXEPTION, "Couldn't get ByteBuffer address");
+            return;
+        }
+        const size_t strideBytes = (size_t) columns * width
+                * getBytesPerPixel(frameSequenceState->getPixelFormat());
+        drawFrames(env, frameSequenceState, fromFrameNr, toFrameNr, pixels + bufferOffset,
+                strideBytes, columns, width, height, delays);
+        return;
+    }
+
+    int ret;
+    AndroidBitmapInfo info;
+    void* pixels;
+    const int rows = columns > 0 ? (toFrameNr - fromFrameNr + columns - 1) / columns : 0;
+    if (!getDrawableBitmapInfo(env, frameSequenceState, bitmap,
+            columns * width, rows * height, &info)) {
+        return;
+    }
+    if ((ret = AndroidBitmap_lockPixels(env, bitmap, &pixels)) < 0) {
+        throwIae(env, "Bitmap pixels couldn't be locked", ret);
+        return;
+    }
+    drawFrames(env, frameSequenceState, fromFrameNr, toFrameNr,
+            reinterpret_cast<uint8_t*>(pixels), info.stride, columns, width, height, delays);
+    AndroidBitmap_unlockPixels(env, bitmap);
+}
+
+/**
+ * Copies the top left width by height pixels between bitmap and pixels, which holds them row
+ * after row without padding - into bitmap if intoBitmap is set, out of it otherwise.
+ */
+static void JNICALL nativeCopyPixels(
+        JNIEnv* env, jobject clazz, jobject bitmap, jbyteArray pixelArray, jint width,
+        jint height, jboolean intoBitmap) {
+    int ret;
+    AndroidBitmapInfo info;
+    if ((ret = AndroidBitmap_getInfo(env, bitmap, &info)) < 0) {
+        throwIae(env, "Couldn't get info from Bitmap", ret);
+        return;
+    }
+    const int bytesPerPixel = info.format == ANDROID_BITMAP_FORMAT_RGB_565 ? 2 : 4;
+    const size_t rowBytes = (size_t) width * bytesPerPixel;
+    if (width < 0 || height < 0 || (uint32_t) width > info.width
+            || (uint32_t) height > info.height
+            || (size_t) env->GetArrayLength(pixelArray) < rowBytes * height) {
+        jniThrowException(env, ILLEGAL_ARGUMENT_EXCEPTION, "Pixels don't fit Bitmap");
+        return;
+    }
+
+    void* bitmapPixels;
+    if ((ret = AndroidBitmap_lockPixels(env, bitmap, &bitmapPixels)) < 0) {
+        throwIae(env, "Bitmap pixels couldn't be locked", ret);
+        return;
+    }
+    uint8_t* pixels = reinterpret_cast<uint8_t*>(
+            env->GetPrimitiveArrayCritical(pixelArray, NULL));
+    if (pixels) {
+        uint8_t* row = reinterpret_cast<uint8_t*>(bitmapPixels);
+        for (int y = 0; y < height; y++) {
+            if (intoBitmap) {
+                memcpy(row, pixels + rowBytes * y, rowBytes);
+            } else {
+                memcpy(pixels + rowBytes * y, row, rowBytes);
+            }
+            row += info.stride;
+        }
+        env->ReleasePrimitiveArrayCritical(pixelArray, pixels, intoBitmap ? JNI_ABORT : 0);
+    }
+    AndroidBitmap_unlockPixels(env, bitmap);
+    if (!pixels) {
+        jniThrowException(env, ILLEGAL_STATE_EXEPTION, "couldn't read array bytes");
+    }
+}
+
+static void nativeSetKeyframeCacheSize(
+        JNIEnv* env, jobject clazz, jlong frameSequenceStateLong, jlong maxBytes) {
+    FrameSequenceState* frameSequenceState =
+            reinterpret_cast<FrameSequenceState*>(frameSequenceStateLong);
+    frameSequenceState->setKeyframeCacheSize(maxBytes);
+}
+
+static void nativeTrimState(JNIEnv* env, jobject clazz, jlong frameSequenceStateLong) {
+    FrameSequenceState* frameSequenceState =
+            reinterpret_cast<FrameSequenceState*>(frameSequenceStateLong);
+    frameSequenceState->trim();
+}
+
+static jlong nativeGetStateAllocationSize(JNIEnv* env, jobject clazz,
+        jlong frameSequenceStateLong) {
+    FrameSequenceState* frameSequenceState =
+            reinterpret_cast<FrameSequenceState*>(frameSequenceStateLong);
+    return frameSequenceState->getAllocationSize();
+}
+
 static JNINativeMethod gMethods[] = {
     {   "nativeDecodeByteArray",
         "([BII)L" JNI_PACKAGE "/FrameSequence;",
@@ -154,22 +498,90 @@ static JNINativeMethod gMethods[] = {
         "(Ljava/io/InputStream;[B)L" JNI_PACKAGE "/FrameSequence;",
         (void*) nativeDecodeStream
     },
+    {   "nativeDecodeStreamProgressively",
+        "(Ljava/io/InputStream;[B)L" JNI_PACKAGE "/FrameSequence;",
+        (void*) nativeDecodeStreamProgressively
+    },
+    {   "nativeAppendData",
+        "(J[BII)I",
+        (void*) nativeAppendData
+    },
+    {   "nativeFinishData",
+        "(J)I",
+        (void*) nativeFinishData
+    },
+    {   "nativeIsLoading",
+        "(J)Z",
+        (void*) nativeIsLoading
+    },
     {   "nativeDestroyFrameSequence",
         "(J)V",
         (void*) nativeDestroyFrameSequence
     },
     {   "nativeCreateState",
-        "(J)J",
+        "(JIZ)J",
         (void*) nativeCreateState
     },
+    {   "nativeTranscodeFastPlay",
+        "(JI)[B",
+        (void*) nativeTranscodeFastPlay
+    },
+    {   "nativeGetAllocationSize",
+        "(J)J",
+        (void*) nativeGetAllocationSize
+    },
+    {   "nativeGetFrameDelay",
+        "(JI)I",
+        (void*) nativeGetFrameDelay
+    },
+    {   "nativeFindFirstCoveringFrame",
+        "(J)I",
+        (void*) nativeFindFirstCoveringFrame
+    },
     {   "nativeGetFrame",
-        "(JILandroid/graphics/Bitmap;I)J",
+        "(JILandroid/graphics/Bitmap;ILandroid/graphics/Rect;)J",
         (void*) nativeGetFrame
     },
+    {   "nativeGetFrameIntoBuffer",
+        "(JILjava/nio/ByteBuffer;IIILandroid/graphics/Rect;)J",
+        (void*) nativeGetFrameIntoBuffer
+    },
+    {   "nativeGetFrames",
+        "(JIILandroid/graphics/Bitmap;Ljava/nio/ByteBuffer;IIII[I)V",
+        (void*) nativeGetFrames
+    },
+    {   "nativeCopyPixels",
+        "(Landroid/graphics/Bitmap;[BIIZ)V",
+        (void*) nativeCopyPixels
+    },
     {   "nativeDestroyState",
         "(J)V",
         (void*) nativeDestroyState
     },
+    {   "nativeSetKeyframeCacheSize",
+        "(JJ)V",
+        (void*) nativeSetKeyframeCacheSize
+    },
+    {   "nativeTrimState",
+        "(J)V",
+        (void*) nativeTrimState
+    },
+    {   "nativeGetStateAllocationSize",
+        "(J)J",
+        (void*) nativeGetStateAllocationSize
+    },
+    {   "nativeProbeByteArray",
+        "([BII)L" JNI_PACKAGE "/FrameSequence$Info;",
+        (void*) nativeProbeByteArray
+    },
+    {   "nativeProbeByteBuffer",
+        "(Ljava/nio/ByteBuffer;II)L" JNI_PACKAGE "/FrameSequence$Info;",
+        (void*) nativeProbeByteBuffer
+    },
+    {   "nativeProbeStream",
+        "(Ljava/io/InputStream;[B)L" JNI_PACKAGE "/FrameSequence$Info;",
+        (void*) nativeProbeStream
+    },
 };
 
 jint FrameSequence_OnLoad(JNIEnv* env) {
@@ -182,11 +594,42 @@ jint FrameSequence_OnLoad(JNIEnv* env) {
     }
     gFrameSequenceClassInfo.clazz = (jclass)env->NewGlobalRef(gFrameSequenceClassInfo.clazz);
 
-    gFrameSequenceClassInfo.ctor = env->GetMethodID(gFrameSequenceClassInfo.clazz, "<init>", "(JIIZII)V");
+    gFrameSequenceClassInfo.ctor = env->GetMethodID(gFrameSequenceClassInfo.clazz, "<init>", "(JIIZIIZ)V");
     if (!gFrameSequenceClassInfo.ctor) {
         ALOGW("Failed to find constructor for FrameSequence - was it stripped?");
         return -1;
     }
 
+    gFrameSequenceInfoClassInfo.clazz = env->FindClass(JNI_PACKAGE "/FrameSequence$Info");
+    if (!gFrameSequenceInfoClassInfo.clazz) {
+        ALOGW("Failed to find " JNI_PACKAGE "/FrameSequence$Info");
+        return -1;
+    }
+    gFrameSequenceInfoClassInfo.clazz =
+            (jclass)env->NewGlobalRef(gFrameSequenceInfoClassInfo.clazz);
+
+    gFrameSequenceInfoClassInfo.ctor = env->GetMethodID(gFrameSequenceInfoClassInfo.clazz,
+            "<init>", "(IIZI[I)V");
+    if (!gFrameSequenceInfoClassInfo.ctor) {
+        ALOGW("Failed to find constructor for FrameSequence$Info - was it stripped?");
+        return -1;
+    }
+
+    jclass rectClazz = env->FindClass("android/graphics/Rect");
+    if (!rectClazz) {
+        ALOGW("Failed to find android/graphics/Rect");
+        return -1;
+    }
+    gRectClassInfo.left = env->GetFieldID(rectClazz, "left", "I");
+    gRectClassInfo.top = env->GetFieldID(rectClazz, "top", "I");
+    gRectClassInfo.right = env->GetFieldID(rectClazz, "right", "I");
+    gRectClassInfo.bottom = env->GetFieldID(rectClazz, "bottom", "I");
+    env->DeleteLocalRef(rectClazz);
+    if (!gRectClassInfo.left || !gRectClassInfo.top
+            || !gRectClassInfo.right || !gRectClassInfo.bottom) {
+        ALOGW("Failed to find fields of android/graphics/Rect");
+        return -1;
+    }
+
     return env->RegisterNatives(gFrameSequenceClassInfo.clazz, gMethods, METHOD_COUNT(gMethods));
 }
@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include "utils/log.h"
+#include "utils/math.h"
+
+#include "FrameSequence_fastplay.h"
+#include "Lz4.h"
+
+#define FASTPLAY_DEBUG 0
+
+static const char kMagic[] = "RMFP";
+static const int kMagicSize = 4;
+// rect coordinates are stored as u16
+static const int kMaxDimension = 0xffff;
+
+static uint32_t getLE16(const uint8_t* data) {
+    return data[0] | (data[1] << 8);
+}
+
+static uint32_t getLE32(const uint8_t* data) {
+    return getLE16(data) | (getLE16(data + 2) << 16);
+}
+
+static void putLE16(uint8_t* data, uint32_t value) {
+    data[0] = (uint8_t) value;
+    data[1] = (uint8_t) (value >> 8);
+}
+
+static void putLE32(uint8_t* data, uint32_t value) {
+    putLE16(data, value);
+    putLE16(data + 2, value >> 16);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Frame sequence
+////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * Returns the container size declared by header, or 0 if the header is malformed: of another
+ * format or version, or too small to hold its frame table.
+ */
+static size_t getContainerSize(const uint8_t* header) {
+    if (memcmp(header, kMagic, kMagicSize)
+            || getLE16(header + 4) != FrameSequence_fastplay::VERSION) {
+        return 0;
+    }
+    const uint32_t frameCount = getLE32(header + 16);
+    const size_t size = getLE32(header + 24);
+    if (size < FrameSequence_fastplay::HEADER_SIZE || frameCount < 1
+            || frameCount > (size - FrameSequence_fastplay::HEADER_SIZE)
+                    / FrameSequence_fastplay::FRAME_RECORD_SIZE) {
+        return 0;
+    }
+    return size;
+}
+
+/**
+ * Reads the container of size bytes whose header was already read from stream. The size comes
+ * from the untrusted header, so the buffer grows as data arrives rather than being allocated
+ * up front. Returns NULL if the stream ends early or memory runs out.
+ */
+static uint8_t* readContainer(Stream* stream, const uint8_t* header, size_t size) {
+    size_t capacity = min(size, (size_t) 16 * 1024);
+    uint8_t* data = (uint8_t*) malloc(capacity);
+    if (!data) {
+        return NULL;
+    }
+    memcpy(data, header, FrameSequence_fastplay::HEADER_SIZE);
+    size_t filled = FrameSequence_fastplay::HEADER_SIZE;
+    while (true) {
+        const size_t requested = capacity - filled;
+        const size_t bytesRead = stream->read(data + filled, requested);
+        filled += bytesRead;
+        if (filled == size) {
+            return data;
+        }
+        if (bytesRead < requested) {
+            free(data);
+            return NULL;
+        }
+        capacity = min(capacity * 2, size);
+        uint8_t* grown = (uint8_t*) realloc(data, capacity);
+        if (!grown) {
+            free(data);
+            return NULL;
+        }
+        data = grown;
+    }
+}
+
+FrameSequence_fastplay::FrameSequence_fastplay(Stream* stream) :
+        mWidth(0), mHeight(0), mOpaque(false), mFrameCount(0), mLoopCount(1), mFrames(NULL),
+        mMaxRectPixels(0), mData(NULL), mDataSize(0), mRawByteBuffer(NULL) {
+    if (stream->getRawBuffer() != NULL) {
+        // the buffer is retained for the lifetime of the sequence, so it's read in place
+        mData = stream->getRawBufferAddr();
+        mDataSize = stream->getRawBufferSize();
+        mRawByteBuffer = stream->getRawBuffer();
+    } else {
+        uint8_t header[HEADER_SIZE];
+        if (stream->read(header, HEADER_SIZE) != HEADER_SIZE) {
+            ALOGW("Fast play header load failed");
+            return;
+        }
+        const size_t size = getContainerSize(header);
+        if (!size) {
+            ALOGW("Fast play container malformed");
+            return;
+        }
+        mData = readContainer(stream, header, size);
+        if (!mData) {
+            ALOGW("Fast play full load failed");
+            return;
+        }
+        mDataSize = size;
+    }
+
+    if (!parse()) {
+        ALOGW("Fast play container malformed");
+        delete[] mFrames;
+        mFrames = NULL;
+        return;
+    }
+
+#if FASTPLAY_DEBUG
+    ALOGD("FrameSequence_fastplay created with size %d %d, frames %d, max rect %zu pixels",
+            mWidth, mHeight, mFrameCount, mMaxRectPixels);
+#endif
+}
+
+FrameSequence_fastplay::~FrameSequence_fastplay() {
+    if (mRawByteBuffer == NULL) {
+        free(mData);
+    }
+    delete[] mFrames;
+}
+
+bool FrameSequence_fastplay::parse() {
+    if (mDataSize < HEADER_SIZE) {
+        return false;
+    }
+    const size_t size = getContainerSize(mData);
+    mOpaque = getLE16(mData + 6) & FLAG_OPAQUE;
+    mWidth = getLE32(mData + 8);
+    mHeight = getLE32(mData + 12);
+    const uint32_t frameCount = getLE32(mData + 16);
+    mLoopCount = (int32_t) getLE32(mData + 20);
+    if (!size || size > mDataSize || mWidth < 1 || mHeight < 1
+            || mWidth > kMaxDimension || mHeight > kMaxDimension) {
+        return false;
+    }
+    mFrameCount = frameCount;
+
+    mFrames = new Frame[mFrameCount];
+    const uint8_t* record = mData + HEADER_SIZE;
+    for (int i = 0; i < mFrameCount; i++, record += FRAME_RECORD_SIZE) {
+        Frame& frame = mFrames[i];
+        frame.delayMs = getLE32(record);
+        frame.rect.set(getLE16(record + 4), getLE16(record + 6),
+                getLE16(record + 8), getLE16(record + 10));
+        const size_t offset = getLE32(record + 12);
+        frame.dataSize = getLE32(record + 16);
+        frame.isKeyFrame = getLE32(record + 20) & FRAME_FLAG_KEY;
+
+        const PixelRect& rect = frame.rect;
+        if (rect.left > rect.right || rect.top > rect.bottom
+                || rect.right > mWidth || rect.bottom > mHeight
+                || offset > size || frame.dataSize > size - offset) {
+            return false;
+        }
+        if ((frame.isKeyFrame || i == 0) && (rect.left || rect.top
+                || rect.right != mWidth || rect.bottom != mHeight)) {
+            // key frames must redraw the whole canvas
+            return false;
+        }
+        frame.isKeyFrame |= i == 0;
+        frame.data = mData + offset;
+        mMaxRectPixels = max(mMaxRectPixels,
+                (size_t) (rect.right - rect.left) * (rect.bottom - rect.top));
+    }
+    return true;
+}
+
+size_t FrameSequence_fastplay::getAllocationSize() const {
+    return (mRawByteBuffer ? 0 : mDataSize) + (mFrames ? mFrameCount * sizeof(Frame) : 0);
+}
+
+long FrameSequence_fastplay::getFrameDelay(int frameNr) const {
+    // the table holds the delays drawing returns, those of the frame before
+    return mFrames[(frameNr + 1) % mFrameCount].delayMs;
+}
+
+bool FrameSequence_fastplay::coversCanvas(int frameNr) const {
+    // key frames are stored composed over the whole canvas
+    return mFrames[frameNr].isKeyFrame;
+}
+
+FrameSequenceState* FrameSequence_fastplay::createState(int sampleSize,
+        PixelFormat format) const {
+    return new FrameSequenceState_fastplay(*this, sampleSize, format);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Transcoding
+////////////////////////////////////////////////////////////////////////////////
+
+// Growable output, sized up front for the header and frame table
+struct OutputBuffer {
+    uint8_t* data;
+    size_t size;
+    size_t capacity;
+
+    OutputBuffer(size_t initialSize) : size(initialSize), capacity(initialSize * 2 + 4096) {
+        data = new uint8_t[capacity];
+        memset(data, 0, initialSize);
+    }
+
+    void append(const uint8_t* bytes, size_t count) {
+        if (size + count > capacity) {
+            capacity = max(capacity * 2, size + count);
+            uint8_t* grown = new uint8_t[capacity];
+            memcpy(grown, data, size);
+            delete[] data;
+            data = grown;
+        }
+        memcpy(data + size, bytes, count);
+        size += count;
+    }
+};
+
+// shrinks rect to bound the pixels that differ between two canvases, possibly to empty
+static void trimToChanges(PixelRect& rect, const Color8888* a, const Color8888* b, int stride) {
+    PixelRect changed;
+    changed.setEmpty();
+    for (int y = rect.top; y < rect.bottom; y++) {
+        const Color8888* rowA = a + y * stride;
+        const Color8888* rowB = b + y * stride;
+        int left = rect.left;
+        while (left < rect.right && rowA[left] == rowB[left]) left++;
+        if (left == rect.right) continue;
+        int right = rect.right;
+        while (rowA[right - 1] == rowB[right - 1]) right--;
+        changed.join(left, y, right, y + 1);
+    }
+    rect = changed;
+}
+
+uint8_t* FrameSequence_fastplay::transcode(const FrameSequence& source, int keyframeInterval,
+        size_t* outSize) {
+    const int width = source.getWidth();
+    const int height = source.getHeight();
+    const int frameCount = source.getFrameCount();
+    if (width > kMaxDimension || height > kMaxDimension) {
+        ALOGW("Fast play can't hold a %d x %d canvas", width, height);
+        return NULL;
+    }
+
+    FrameSequenceState* state = source.createState(1, PIXEL_FORMAT_8888);
+    if (!state) {
+        return NULL;
+    }
+
+    const size_t canvasPixels = (size_t) width * height;
+    Color8888* canvas = new Color8888[canvasPixels];
+    Color8888* previous = new Color8888[canvasPixels];
+    Color8888* rectPixels = new Color8888[canvasPixels];
+    const size_t compressedCapacity = lz4CompressBound(canvasPixels * sizeof(Color8888));
+    uint8_t* compressed = new uint8_t[compressedCapacity];
+    OutputBuffer output(HEADER_SIZE + (size_t) frameCount * FRAME_RECORD_SIZE);
+
+    bool success = true;
+    for (int i = 0; i < frameCount && success; i++) {
+        const bool isKeyFrame = i == 0 || (keyframeInterval > 0 && i % keyframeInterval == 0);
+        PixelRect rect;
+        const long delayMs = state->drawFrame(i, canvas, width, i - 1, &rect);
+        if (delayMs < 0) {
+            // the canvas may be partially drawn, don't store it as a frame
+            ALOGW("Couldn't draw frame %d to transcode", i);
+            success = false;
+            break;
+        }
+        if (isKeyFrame) {
+            rect.set(0, 0, width, height);
+        } else {
+            trimToChanges(rect, canvas, previous, width);
+        }
+
+        const int rectWidth = rect.right - rect.left;
+        const int rectHeight = rect.bottom - rect.top;
+        size_t compressedSize = 0;
+        if (!rect.isEmpty()) {
+            for (int y = 0; y < rectHeight; y++) {
+                memcpy(rectPixels + y * rectWidth,
+                        canvas + (rect.top + y) * width + rect.left,
+                        rectWidth * sizeof(Color8888));
+            }
+            compressedSize = lz4Compress((const uint8_t*) rectPixels,
+                    (size_t) rectWidth * rectHeight * sizeof(Color8888),
+                    compressed, compressedCapacity);
+            success = compressedSize > 0;
+        }
+
+        uint8_t* record = output.data + HEADER_SIZE + i * FRAME_RECORD_SIZE;
+        putLE32(record, delayMs);
+        putLE16(record + 4, rect.isEmpty() ? 0 : rect.left);
+        putLE16(record + 6, rect.isEmpty() ? 0 : rect.top);
+        putLE16(record + 8, rect.isEmpty() ? 0 : rect.right);
+        putLE16(record + 10, rect.isEmpty() ? 0 : rect.bottom);
+        putLE32(record + 12, output.size);
+        putLE32(record + 16, compressedSize);
+        putLE32(record + 20, isKeyFrame ? FRAME_FLAG_KEY : 0);
+        output.append(compressed, compressedSize);
+
+#if FASTPLAY_DEBUG
+        ALOGD("    Frame %d - rect %d %d %d %d, %zu bytes", i,
+                rect.left, rect.top, rect.right, rect.bottom, compressedSize);
+#endif
+
+        memcpy(previous, canvas, canvasPixels * sizeof(Color8888));
+    }
+
+    uint8_t* header = output.data;
+    memcpy(header, kMagic, kMagicSize);
+    putLE16(header + 4, VERSION);
+    putLE16(header + 6, source.isOpaque() ? FLAG_OPAQUE : 0);
+    putLE32(header + 8, width);
+    putLE32(header + 12, height);
+    putLE32(header + 16, frameCount);
+    putLE32(header + 20, source.getDefaultLoopCount());
+    putLE32(header + 24, output.size);
+
+    delete state;
+    delete[] canvas;
+    delete[] previous;
+    delete[] rectPixels;
+    delete[] compressed;
+
+    if (!success || output.size > 0xffffffffu) {
+        ALOGW("Fast play transcoding failed");
+        delete[] output.data;
+        return NULL;
+    }
+    *outSize = output.size;
+    return output.data;
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// draw helpers
+////////////////////////////////////////////////////////////////////////////////
+
+template <typename Pixel>
+static void copyLine(Pixel* dst, const Color8888* src, int width, int srcStep) {
+    for (; width > 0; width--, src += srcStep, dst++) {
+        *dst = toPixel(*src, dst);
+    }
+}
+
+static void copyLine(Color8888* dst, const Color8888* src, int width, int srcStep) {
+    if (srcStep == 1) {
+        memcpy(dst, src, width * sizeof(Color8888));
+    } else {
+        copyLine<Color8888>(dst, src, width, srcStep);
+    }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Frame sequence state
+////////////////////////////////////////////////////////////////////////////////
+
+FrameSequenceState_fastplay::FrameSequenceState_fastplay(
+        const FrameSequence_fastplay& frameSequence, int sampleSize, PixelFormat format) :
+        mFrameSequence(frameSequence), mPixelFormat(format), mSampleSize(sampleSize),
+        mWidth(getSampledSize(frameSequence.getWidth(), sampleSize)),
+        mHeight(getSampledSize(frameSequence.getHeight(), sampleSize)) {
+    mRectBuffer = new Color8888[frameSequence.getMaxRectPixels()];
+}
+
+FrameSequenceState_fastplay::~FrameSequenceState_fastplay() {
+    delete[] mRectBuffer;
+}
+
+template <typename Pixel>
+bool FrameSequenceState_fastplay::applyFrame(int frameNr, Pixel* outputPtr,
+        int outputPixelStride, PixelRect& dirtyRect) {
+    const FrameSequence_fastplay::Frame& frame = mFrameSequence.getFrame(frameNr);
+    const PixelRect& rect = frame.rect;
+    if (rect.isEmpty()) {
+        return true;
+    }
+
+    const int rectWidth = rect.right - rect.left;
+    const int rectHeight = rect.bottom - rect.top;
+    const size_t rectBytes = (size_t) rectWidth * rectHeight * sizeof(Color8888);
+    if (sizeof(Pixel) == sizeof(Color8888) && mSampleSize == 1
+            && rectWidth == outputPixelStride) {
+        // whole rows of the output, decompressed in place
+        dirtyRect.join(rect.left, rect.top, rect.right, rect.bottom);
+        return lz4Decompress(frame.data, frame.dataSize,
+                (uint8_t*) (outputPtr + rect.top * outputPixelStride), rectBytes);
+    }
+    if (!lz4Decompress(frame.data, frame.dataSize, (uint8_t*) mRectBuffer, rectBytes)) {
+        return false;
+    }
+
+    // output pixels whose sampled canvas position falls within the rect
+    const int left = getSampledSize(rect.left, mSampleSize);
+    const int top = getSampledSize(rect.top, mSampleSize);
+    const int right = getSampledSize(rect.right, mSampleSize);
+    const int bottom = getSampledSize(rect.bottom, mSampleSize);
+    for (int y = top; y < bottom; y++) {
+        const Color8888* src = mRectBuffer + (y * mSampleSize - rect.top) * rectWidth
+                + (left * mSampleSize - rect.left);
+        copyLine(outputPtr + y * outputPixelStride + left, src, right - left, mSampleSize);
+    }
+    dirtyRect.join(left, top, right, bottom);
+    return true;
+}
+
+template <typename Pixel>
+long FrameSequenceState_fastplay::drawPixels(int frameNr, Pixel* outputPtr,
+        int outputPixelStride, int previousFrameNr, PixelRect* outDirtyRect) {
+    // resume after the previous frame, unless a key frame since then makes the deltas moot
+    int start = frameNr;
+    while (!mFrameSequence.getFrame(start).isKeyFrame) {
+        start--;
+    }
+    if (previousFrameNr >= 0 && previousFrameNr < frameNr) {
+        start = max(start, previousFrameNr + 1);
+    }
+
+    PixelRect dirtyRect;
+    dirtyRect.setEmpty();
+    for (int i = start; i <= frameNr; i++) {
+        if (!applyFrame(i, outputPtr, outputPixelStride, dirtyRect)) {
+            ALOGW("Fast play decompression of frame %d failed", i);
+        }
+    }
+
+    if (outDirtyRect) {
+        *outDirtyRect = dirtyRect;
+    }
+    return mFrameSequence.getFrame(frameNr).delayMs;
+}
+
+long FrameSequenceState_fastplay::drawFrame(int frameNr,
+        void* outputPtr, int outputPixelStride, int previousFrameNr,
+        PixelRect* outDirtyRect) {
+    if (mPixelFormat == PIXEL_FORMAT_565) {
+        return drawPixels(frameNr, (Color565*) outputPtr, outputPixelStride, previousFrameNr,
+                outDirtyRect);
+    }
+    return drawPixels(frameNr, (Color8888*) outputPtr, outputPixelStride, previousFrameNr,
+            outDirtyRect);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Registry
+////////////////////////////////////////////////////////////////////////////////
+
+#include "Registry.h"
+
+static bool isFastPlay(void* header, int header_size) {
+    return !memcmp(kMagic, header, kMagicSize);
+}
+
+static bool acceptsBuffers() {
+    return true;
+}
+
+static FrameSequence* createFramesequence(Stream* stream) {
+    return new FrameSequence_fastplay(stream);
+}
+
+// Reads the header and frame table only, the frame data is left unread
+static bool probeFastPlay(Stream* stream, FrameSequenceInfo* info) {
+    uint8_t header[FrameSequence_fastplay::HEADER_SIZE];
+    if (stream->read(header, sizeof(header)) != sizeof(header)
+            || memcmp(header, kMagic, kMagicSize)
+            || getLE16(header + 4) != FrameSequence_fastplay::VERSION) {
+        return false;
+    }
+    info->opaque = getLE16(header + 6) & FrameSequence_fastplay::FLAG_OPAQUE;
+    info->width = getLE32(header + 8);
+    info->height = getLE32(header + 12);
+    const uint32_t frameCount = getLE32(header + 16);
+    info->loopCount = (int32_t) getLE32(header + 20);
+    const size_t size = getLE32(header + 24);
+    if (size < sizeof(header)
+            || frameCount > (size - sizeof(header)) / FrameSequence_fastplay::FRAME_RECORD_SIZE) {
+        return false;
+    }
+
+    // records hold the delays drawing returns, those of the frame before, so frame i's own
+    // delay is in record i + 1 and the last frame's in the first record
+    uint8_t record[FrameSequence_fastplay::FRAME_RECORD_SIZE];
+    int firstRecordDelayMs = 0;
+    for (uint32_t i = 0; i < frameCount; i++) {
+        if (stream->read(record, sizeof(record)) != sizeof(record)) {
+            return false;
+        }
+        if (i == 0) {
+            firstRecordDelayMs = getLE32(record);
+        } else {
+            info->addFrame(getLE32(record));
+        }
+    }
+    if (frameCount > 0) {
+        info->addFrame(firstRecordDelayMs);
+    }
+    return true;
+}
+
+static RegistryEntry gEntry = {
+        kMagicSize,
+        isFastPlay,
+        createFramesequence,
+        NULL,
+        acceptsBuffers,
+        probeFastPlay,
+        NULL,
+};
+static Registry gRegister(gEntry);
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef RASTERMILL_FRAMESQUENCE_FASTPLAY_H
+#define RASTERMILL_FRAMESQUENCE_FASTPLAY_H
+
+#include "Stream.h"
+#include "Color.h"
+#include "FrameSequence.h"
+
+/**
+ * Fast play container: frames pre-decoded by transcode(), stored as the rectangle of 8888
+ * pixels that changed since the previous frame, LZ4 compressed. Drawing a frame is a
+ * decompression and a copy per frame, with dirty rects and delays read from a table.
+ *
+ * All values are little endian.
+ *
+ *   header, 32 bytes:
+ *     "RMFP", u16 version, u16 flags (FLAG_OPAQUE), u32 width, u32 height, u32 frame count,
+ *     i32 loop count, u32 total size of the container, u32 reserved
+ *   frame table, 24 bytes per frame:
+ *     u32 delay in ms as returned when drawing the frame, u16 left, top, right, bottom of the
+ *     changed rect, u32 offset of the frame's data from the start of the container, u32 size
+ *     of its data, u32 flags (FRAME_FLAG_KEY)
+ *   frame data:
+ *     the rect's pixels row by row, as an LZ4 block
+ *
+ * Key frames cover the whole canvas and don't depend on earlier frames. The first frame is
+ * always one.
+ */
+class FrameSequence_fastplay : public FrameSequence {
+public:
+    static const int HEADER_SIZE = 32;
+    static const int FRAME_RECORD_SIZE = 24;
+    static const int VERSION = 1;
+    static const int FLAG_OPAQUE = 1;
+    static const int FRAME_FLAG_KEY = 1;
+
+    struct Frame {
+        long delayMs;
+        PixelRect rect;
+        const uint8_t* data;
+        size_t dataSize;
+        bool isKeyFrame;
+    };
+
+    FrameSequence_fastplay(Stream* stream);
+    virtual ~FrameSequence_fastplay();
+
+    virtual int getWidth() const {
+        return mFrames ? mWidth : 0;
+    }
+
+    virtual int getHeight() const {
+        return mFrames ? mHeight : 0;
+    }
+
+    virtual bool isOpaque() const {
+        return mOpaque;
+    }
+
+    virtual int getFrameCount() const {
+        return mFrames ? mFrameCount : 0;
+    }
+
+    virtual int getDefaultLoopCount() const {
+        return mLoopCount;
+    }
+
+    virtual jobject getRawByteBuffer() const {
+        return mRawByteBuffer;
+    }
+
+    virtual size_t getAllocationSize() const;
+
+    virtual long getFrameDelay(int frameNr) const;
+
+    virtual bool coversCanvas(int frameNr) const;
+
+    virtual FrameSequenceState* createState(int sampleSize, PixelFormat format) const;
+
+    const Frame& getFrame(int frameNr) const { return mFrames[frameNr]; }
+
+    // largest changed rect of any frame, in pixels
+    size_t getMaxRectPixels() const { return mMaxRectPixels; }
+
+    /**
+     * Draws every frame of source and writes them out as a fast play container, with a key
+     * frame every keyframeInterval frames (or only the first, if 0) for faster seeking.
+     *
+     * Returns a new[]'d buffer of *outSize bytes, or NULL on failure
+     */
+    static uint8_t* transcode(const FrameSequence& source, int keyframeInterval,
+            size_t* outSize);
+
+private:
+    bool parse();
+
+    int mWidth;
+    int mHeight;
+    bool mOpaque;
+    int mFrameCount;
+    int mLoopCount;
+    Frame* mFrames;
+    size_t mMaxRectPixels;
+
+    uint8_t* mData;
+    size_t mDataSize;
+
+    // if set, mData points into this buffer rather than a copy owned by the sequence
+    jobject mRawByteBuffer;
+};
+
+class FrameSequenceState_fastplay : public FrameSequenceState {
+public:
+    FrameSequenceState_fastplay(const FrameSequence_fastplay& frameSequence, int sampleSize,
+            PixelFormat format);
+    virtual ~FrameSequenceState_fastplay();
+
+    // returns frame's delay time in ms
+    virtual long drawFrame(int frameNr,
+            void* outputPtr, int outputPixelStride, int previousFrameNr,
+            PixelRect* outDirtyRect);
+
+    virtual PixelFormat getPixelFormat() const {
+        return mPixelFormat;
+    }
+
+    virtual int getFrameCount() const {
+        return mFrameSequence.getFrameCount();
+    }
+
+    virtual long getFrameDelay(int frameNr) const {
+        return mFrameSequence.getFrameDelay(frameNr);
+    }
+
+    virtual int getWidth() const {
+        return mWidth;
+    }
+
+    virtual int getHeight() const {
+        return mHeight;
+    }
+
+    virtual size_t getAllocationSize() const {
+        return mFrameSequence.getMaxRectPixels() * sizeof(Color8888);
+    }
+
+private:
+    template <typename Pixel>
+    long drawPixels(int frameNr, Pixel* outputPtr, int outputPixelStride, int previousFrameNr,
+            PixelRect* outDirtyRect);
+    template <typename Pixel>
+    bool applyFrame(int frameNr, Pixel* outputPtr, int outputPixelStride, PixelRect& dirtyRect);
+
+    const FrameSequence_fastplay& mFrameSequence;
+    const PixelFormat mPixelFormat;
+
+    // output canvas, sampling every mSampleSize-th pixel of the sequence's canvas
+    const int mSampleSize;
+    const int mWidth;
+    const int mHeight;
+
+    // decompressed pixels of a frame's rect
+    Color8888* mRectBuffer;
+};
+
+#endif //RASTERMILL_FRAMESQUENCE_FASTPLAY_H
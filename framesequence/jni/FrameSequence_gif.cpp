@@ -14,12 +14,14 @@
  * limitations under the License.
  */
 
+#include <stdlib.h>
 #include <string.h>
 #include "JNIHelpers.h"
 #include "utils/log.h"
 #include "utils/math.h"
 
 #include "FrameSequence_gif.h"
+#include "PixelKernels.h"
 
 #define GIF_DEBUG 0
 
@@ -28,11 +30,57 @@ static int streamReader(GifFileType* fileType, GifByteType* out, int size) {
     return (int) stream->read(out, size);
 }
 
+static int cursorReader(GifFileType* fileType, GifByteType* out, int size) {
+    GifDataCursor* cursor = (GifDataCursor*) fileType->UserData;
+    size_t remaining = cursor->size - cursor->position;
+    size_t bytes = min((size_t) size, remaining);
+    memcpy(out, cursor->data + cursor->position, bytes);
+    cursor->position += bytes;
+    return (int) bytes;
+}
+
+// Reads the remainder of the stream into a malloc'd buffer, returns NULL on failure
+static uint8_t* readStream(Stream* stream, size_t* outSize) {
+    size_t capacity = 16 * 1024;
+    size_t size = 0;
+    uint8_t* data = (uint8_t*) malloc(capacity);
+    while (data) {
+        size_t requested = capacity - size;
+        size_t bytesRead = stream->read(data + size, requested);
+        size += bytesRead;
+        if (bytesRead < requested) {
+            break;
+        }
+        capacity *= 2;
+        uint8_t* grown = (uint8_t*) realloc(data, capacity);
+        if (!grown) {
+            free(data);
+        }
+        data = grown;
+    }
+    if (data && size) {
+        // trim the slack from doubling, the data is held for the sequence's lifetime
+        uint8_t* trimmed = (uint8_t*) realloc(data, size);
+        if (trimmed) {
+            data = trimmed;
+        }
+    }
+    *outSize = size;
+    return data;
+}
+
+static void resetGcb(GraphicsControlBlock& gcb) {
+    gcb.DisposalMode = DISPOSAL_UNSPECIFIED;
+    gcb.UserInputFlag = false;
+    gcb.DelayTime = 0;
+    gcb.TransparentColor = NO_TRANSPARENT_COLOR;
+}
+
 static Color8888 gifColorToColor8888(const GifColorType& color) {
     return ARGB_TO_COLOR8888(0xff, color.Red, color.Green, color.Blue);
 }
 
-static long getDelayMs(GraphicsControlBlock& gcb) {
+static long getDelayMs(const GraphicsControlBlock& gcb) {
     return gcb.DelayTime * 10;
 }
 
@@ -40,99 +88,460 @@ static bool willBeCleared(const GraphicsControlBlock& gcb) {
     return gcb.DisposalMode == DISPOSE_BACKGROUND || gcb.DisposalMode == DISPOSE_PREVIOUS;
 }
 
+// true if the frame paints every pixel of the canvas, so no earlier frame shows through it
+static bool coversCanvas(const GifFileType* gif, const GraphicsControlBlock& gcb, int frameNr) {
+    const GifImageDesc& desc = gif->SavedImages[frameNr].ImageDesc;
+    return desc.Left == 0 && desc.Top == 0
+            && desc.Width == gif->SWidth && desc.Height == gif->SHeight
+            && gcb.TransparentColor == NO_TRANSPARENT_COLOR;
+}
+
+static void initIndex(GifIndex* index) {
+    index->offsets = NULL;
+    index->gcbs = NULL;
+    index->capacity = 0;
+    index->loopCount = 1;
+    resetGcb(index->pendingGcb);
+}
+
+static void freeIndex(GifIndex* index) {
+    delete[] index->offsets;
+    delete[] index->gcbs;
+    index->offsets = NULL;
+    index->gcbs = NULL;
+    index->capacity = 0;
+}
+
+/**
+ * Reads the next record of an opened GIF without decompressing any raster data. For an image,
+ * the frame's graphics control block and, if a cursor is given, the offset of its image
+ * descriptor are appended to index. The local color map of each frame is kept by giflib in
+ * SavedImages[i].ImageDesc.ColorMap.
+ */
+static bool indexRecord(GifFileType* gif, const GifDataCursor* cursor, GifIndex* index,
+        GifRecordType* outRecordType) {
+    GifRecordType& recordType = *outRecordType;
+    if (DGifGetRecordType(gif, &recordType) != GIF_OK) {
+        return false;
+    }
+
+    switch (recordType) {
+    case IMAGE_DESC_RECORD_TYPE: {
+        size_t offset = cursor ? cursor->position : 0;
+        if (DGifGetImageDesc(gif) != GIF_OK) {
+            return false;
+        }
+
+        // skip over the compressed raster, it is decoded on demand while drawing
+        int codeSize;
+        GifByteType* codeBlock;
+        if (DGifGetCode(gif, &codeSize, &codeBlock) != GIF_OK) {
+            return false;
+        }
+        while (codeBlock) {
+            if (DGifGetCodeNext(gif, &codeBlock) != GIF_OK) {
+                return false;
+            }
+        }
+
+        // DGifGetImageDesc has already appended the frame, so ImageCount includes it
+        const int frameCount = gif->ImageCount;
+        if (frameCount > index->capacity) {
+            const int capacity = max(index->capacity * 2, 16);
+            size_t* grownOffsets = new size_t[capacity];
+            GraphicsControlBlock* grownGcbs = new GraphicsControlBlock[capacity];
+            if (index->gcbs) {
+                memcpy(grownOffsets, index->offsets, (frameCount - 1) * sizeof(size_t));
+                memcpy(grownGcbs, index->gcbs, (frameCount - 1) * sizeof(GraphicsControlBlock));
+            }
+            delete[] index->offsets;
+            delete[] index->gcbs;
+            index->offsets = grownOffsets;
+            index->gcbs = grownGcbs;
+            index->capacity = capacity;
+        }
+        index->offsets[frameCount - 1] = offset;
+        index->gcbs[frameCount - 1] = index->pendingGcb;
+        resetGcb(index->pendingGcb);
+    } break;
+    case EXTENSION_RECORD_TYPE: {
+        int extCode;
+        GifByteType* extData;
+        if (DGifGetExtension(gif, &extCode, &extData) != GIF_OK) {
+            return false;
+        }
+        if (extData && extCode == GRAPHICS_EXT_FUNC_CODE) {
+            DGifExtensionToGCB(extData[0], extData + 1, &index->pendingGcb);
+        }
+        // look for "NETSCAPE2.0" app extension
+        bool loopExtension = extData && extCode == APPLICATION_EXT_FUNC_CODE
+                && extData[0] == 11
+                && !memcmp((const char*)(extData + 1), "NETSCAPE2.0", 11);
+        while (extData) {
+            if (DGifGetExtensionNext(gif, &extData) != GIF_OK) {
+                return false;
+            }
+            // verify extension contents and get loop count
+            if (loopExtension && extData && extData[0] == 3 && extData[1] == 1) {
+                index->loopCount = (int)(extData[3] << 8) + (int)(extData[2]);
+                loopExtension = false;
+            }
+        }
+    } break;
+    default:
+        break;
+    }
+    return true;
+}
+
+/**
+ * Walks the records of an opened GIF up to its trailer, see indexRecord
+ */
+static bool indexFrames(GifFileType* gif, const GifDataCursor* cursor, GifIndex* index) {
+    GifRecordType recordType;
+    do {
+        if (!indexRecord(gif, cursor, index, &recordType)) {
+            return false;
+        }
+    } while (recordType != TERMINATE_RECORD_TYPE);
+    return true;
+}
+
+// signature, version and logical screen descriptor, followed by the optional global color map
+static const size_t kScreenDescSize = 13;
+
+// size of a color map flagged in a descriptor's packed fields, 0 if there is none
+static size_t getColorMapSize(uint8_t packedFields) {
+    return (packedFields & 0x80) ? 3 << ((packedFields & 0x07) + 1) : 0;
+}
+
+/**
+ * Returns the size of the header up to the first record, or 0 if the header continues past
+ * the size bytes available
+ */
+static size_t getHeaderSize(const uint8_t* data, size_t size) {
+    if (size < kScreenDescSize) {
+        return 0;
+    }
+    const size_t headerSize = kScreenDescSize + getColorMapSize(data[10]);
+    return headerSize <= size ? headerSize : 0;
+}
+
+// returns the end of the data sub-blocks at position, or 0 if they continue past size
+static size_t skipSubBlocks(const uint8_t* data, size_t size, size_t position) {
+    while (position < size) {
+        const uint8_t blockSize = data[position++];
+        if (!blockSize) {
+            return position;
+        }
+        position += blockSize;
+    }
+    return 0;
+}
+
+/**
+ * Returns the end of the last record completely held by the size bytes of data, walking
+ * records from position, so that giflib is only handed records it can read without running out
+ * of data. Sets outTerminated if the trailer was reached. A byte that starts no record is
+ * handed over as is, for giflib to reject.
+ */
+static size_t findRecordsEnd(const uint8_t* data, size_t size, size_t position,
+        bool* outTerminated) {
+    while (position < size) {
+        size_t next = position + 1;
+        switch (data[position]) {
+        case TERMINATOR_INTRODUCER:
+            *outTerminated = true;
+            return next;
+        case EXTENSION_INTRODUCER:
+            // function code, then data sub-blocks
+            next = skipSubBlocks(data, size, next + 1);
+            break;
+        case DESCRIPTOR_INTRODUCER:
+            // position, size and packed fields, local color map, LZW code size, raster blocks
+            if (next + 9 > size) {
+                return position;
+            }
+            next += 9 + getColorMapSize(data[next + 8]);
+            next = skipSubBlocks(data, size, next + 1);
+            break;
+        default:
+            return next;
+        }
+        if (!next) {
+            return position;
+        }
+        position = next;
+    }
+    return position;
+}
+
+// Opaque background color from the global color map, if the first frame has no transparency
+static Color8888 computeBackgroundColor(const GifFileType* gif,
+        const GraphicsControlBlock& firstGcb) {
+    const ColorMapObject* cmap = gif->SColorMap;
+    if (cmap && firstGcb.TransparentColor == NO_TRANSPARENT_COLOR
+            && gif->SBackGroundColor < cmap->ColorCount) {
+        return gifColorToColor8888(cmap->Colors[gif->SBackGroundColor]);
+    }
+    return TRANSPARENT;
+}
+
 ////////////////////////////////////////////////////////////////////////////////
 // Frame sequence
 ////////////////////////////////////////////////////////////////////////////////
 
 FrameSequence_gif::FrameSequence_gif(Stream* stream) :
-        mLoopCount(1), mBgColor(TRANSPARENT), mPreservedFrames(NULL), mRestoringFrames(NULL) {
-    mGif = DGifOpen(stream, streamReader, NULL);
+        mGif(NULL), mBgColor(TRANSPARENT), mFrameCount(0), mData(NULL), mDataSize(0),
+        mRawByteBuffer(NULL), mPreservedFrames(NULL), mRestoringFrames(NULL), mFrameCapacity(0),
+        mLastUnclearedFrame(-1), mProgressive(false), mLoading(false), mDataCapacity(0) {
+    initIndex(&mIndex);
+    if (stream->getRawBuffer() != NULL) {
+        // the buffer is retained for the lifetime of the sequence, so it's read in place
+        mData = stream->getRawBufferAddr();
+        mDataSize = stream->getRawBufferSize();
+        mRawByteBuffer = stream->getRawBuffer();
+    } else {
+        mData = readStream(stream, &mDataSize);
+    }
+    if (!mData) {
+        ALOGW("Gif read failed");
+        return;
+    }
+
+    mCursor.data = mData;
+    mCursor.size = mDataSize;
+    mCursor.position = 0;
+    mGif = DGifOpen(&mCursor, cursorReader, NULL);
     if (!mGif) {
         ALOGW("Gif load failed");
         return;
     }
 
-    if (DGifSlurp(mGif) != GIF_OK) {
-        ALOGW("Gif slurp failed");
+    if (!indexFrames(mGif, &mCursor, &mIndex)) {
+        ALOGW("Gif index failed");
         DGifCloseFile(mGif, NULL);
         mGif = NULL;
         return;
     }
 
+    addIndexedFrames();
+
+#if GIF_DEBUG
     long durationMs = 0;
-    int lastUnclearedFrame = -1;
-    mPreservedFrames = new bool[mGif->ImageCount];
-    mRestoringFrames = new int[mGif->ImageCount];
-
-    GraphicsControlBlock gcb;
-    for (int i = 0; i < mGif->ImageCount; i++) {
-        const SavedImage& image = mGif->SavedImages[i];
-
-        // find the loop extension pair
-        for (int j = 0; (j + 1) < image.ExtensionBlockCount; j++) {
-            ExtensionBlock* eb1 = image.ExtensionBlocks + j;
-            ExtensionBlock* eb2 = image.ExtensionBlocks + j + 1;
-            if (eb1->Function == APPLICATION_EXT_FUNC_CODE
-                    // look for "NETSCAPE2.0" app extension
-                    && eb1->ByteCount == 11
-                    && !memcmp((const char*)(eb1->Bytes), "NETSCAPE2.0", 11)
-                    // verify extension contents and get loop count
-                    && eb2->Function == CONTINUE_EXT_FUNC_CODE
-                    && eb2->ByteCount == 3
-                    && eb2->Bytes[0] == 1) {
-                mLoopCount = (int)(eb2->Bytes[2] << 8) + (int)(eb2->Bytes[1]);
-            }
-        }
+    for (int i = 0; i < mFrameCount; i++) {
+        durationMs += getDelayMs(mIndex.gcbs[i]);
+    }
+    ALOGD("FrameSequence_gif created with size %d %d, frames %d dur %ld",
+            mGif->SWidth, mGif->SHeight, mFrameCount, durationMs);
+    for (int i = 0; i < mFrameCount; i++) {
+        ALOGD("    Frame %d - offset %zu, must preserve %d, restore point %d, trans color %d",
+                i, mIndex.offsets[i], mPreservedFrames[i], mRestoringFrames[i],
+                mIndex.gcbs[i].TransparentColor);
+    }
+#endif
+}
 
-        DGifSavedExtensionToGCB(mGif, i, &gcb);
+FrameSequence_gif::FrameSequence_gif() :
+        mGif(NULL), mBgColor(TRANSPARENT), mFrameCount(0), mData(NULL), mDataSize(0),
+        mRawByteBuffer(NULL), mPreservedFrames(NULL), mRestoringFrames(NULL), mFrameCapacity(0),
+        mLastUnclearedFrame(-1), mProgressive(true), mLoading(true), mDataCapacity(0) {
+    initIndex(&mIndex);
+    mCursor.data = NULL;
+    mCursor.size = 0;
+    mCursor.position = 0;
+    pthread_rwlock_init(&mDataLock, NULL);
+}
 
-        // timing
-        durationMs += getDelayMs(gcb);
+FrameSequence_gif::~FrameSequence_gif() {
+    if (mGif) {
+        DGifCloseFile(mGif, NULL);
+    }
+    if (mRawByteBuffer == NULL) {
+        free(mData);
+    }
+    freeIndex(&mIndex);
+    delete[] mPreservedFrames;
+    delete[] mRestoringFrames;
+    if (mProgressive) {
+        pthread_rwlock_destroy(&mDataLock);
+    }
+}
 
-        // preserve logic
+// computes the preserve logic of frames indexed since the last call, making them drawable
+void FrameSequence_gif::addIndexedFrames() {
+    const int frameCount = mGif->ImageCount;
+    if (frameCount > mFrameCapacity) {
+        bool* preservedFrames = new bool[mIndex.capacity];
+        int* restoringFrames = new int[mIndex.capacity];
+        if (mFrameCount) {
+            memcpy(preservedFrames, mPreservedFrames, mFrameCount * sizeof(bool));
+            memcpy(restoringFrames, mRestoringFrames, mFrameCount * sizeof(int));
+        }
+        delete[] mPreservedFrames;
+        delete[] mRestoringFrames;
+        mPreservedFrames = preservedFrames;
+        mRestoringFrames = restoringFrames;
+        mFrameCapacity = mIndex.capacity;
+    }
+
+    for (int i = mFrameCount; i < frameCount; i++) {
+        const GraphicsControlBlock& gcb = mIndex.gcbs[i];
+
+        // preserve logic - an earlier frame may only now turn out to be preserved, states that
+        // drew it without preserving redraw it when it is needed, see canDrawFrom
         mPreservedFrames[i] = false;
         mRestoringFrames[i] = -1;
-        if (gcb.DisposalMode == DISPOSE_PREVIOUS && lastUnclearedFrame >= 0) {
-            mPreservedFrames[lastUnclearedFrame] = true;
-            mRestoringFrames[i] = lastUnclearedFrame;
+        if (gcb.DisposalMode == DISPOSE_PREVIOUS && mLastUnclearedFrame >= 0) {
+            mPreservedFrames[mLastUnclearedFrame] = true;
+            mRestoringFrames[i] = mLastUnclearedFrame;
         }
         if (!willBeCleared(gcb)) {
-            lastUnclearedFrame = i;
+            mLastUnclearedFrame = i;
         }
     }
 
-#if GIF_DEBUG
-    ALOGD("FrameSequence_gif created with size %d %d, frames %d dur %ld",
-            mGif->SWidth, mGif->SHeight, mGif->ImageCount, durationMs);
-    for (int i = 0; i < mGif->ImageCount; i++) {
-        DGifSavedExtensionToGCB(mGif, i, &gcb);
-        ALOGD("    Frame %d - must preserve %d, restore point %d, trans color %d",
-                i, mPreservedFrames[i], mRestoringFrames[i], gcb.TransparentColor);
+    if (!mFrameCount && frameCount > 0) {
+        mBgColor = computeBackgroundColor(mGif, mIndex.gcbs[0]);
     }
-#endif
+    mFrameCount = frameCount;
+}
 
-    const ColorMapObject* cmap = mGif->SColorMap;
-    if (cmap) {
-        // calculate bg color
-        GraphicsControlBlock gcb;
-        DGifSavedExtensionToGCB(mGif, 0, &gcb);
-        if (gcb.TransparentColor == NO_TRANSPARENT_COLOR
-                && mGif->SBackGroundColor < cmap->ColorCount) {
-            mBgColor = gifColorToColor8888(cmap->Colors[mGif->SBackGroundColor]);
+// indexes the complete records appended since the last call, returns false if they're invalid
+bool FrameSequence_gif::indexAvailableRecords() {
+    if (!mGif) {
+        const size_t headerSize = getHeaderSize(mData, mDataSize);
+        if (!headerSize) {
+            return true;
+        }
+        mCursor.size = headerSize;
+        mGif = DGifOpen(&mCursor, cursorReader, NULL);
+        if (!mGif) {
+            ALOGW("Gif load failed");
+            return false;
+        }
+    }
+
+    bool terminated = false;
+    mCursor.size = findRecordsEnd(mData, mDataSize, mCursor.position, &terminated);
+    while (mCursor.position < mCursor.size) {
+        GifRecordType recordType;
+        if (!indexRecord(mGif, &mCursor, &mIndex, &recordType)) {
+            ALOGW("Gif index failed");
+            return false;
         }
     }
+
+    addIndexedFrames();
+    if (terminated) {
+        mLoading = false;
+    }
+    return true;
 }
 
-FrameSequence_gif::~FrameSequence_gif() {
+bool FrameSequence_gif::appendData(const uint8_t* data, size_t size) {
+    if (!mLoading) {
+        // anything past the trailer is ignored, as when not loading progressively
+        return true;
+    }
+
+    pthread_rwlock_wrlock(&mDataLock);
+    bool success = true;
+    if (mDataSize + size > mDataCapacity) {
+        const size_t capacity = max(max(mDataCapacity * 2, mDataSize + size),
+                (size_t) 16 * 1024);
+        uint8_t* grown = (uint8_t*) realloc(mData, capacity);
+        if (grown) {
+            mData = grown;
+            mDataCapacity = capacity;
+            mCursor.data = mData;
+        } else {
+            ALOGW("Gif read failed");
+            success = false;
+        }
+    }
+    if (success) {
+        memcpy(mData + mDataSize, data, size);
+        mDataSize += size;
+        success = indexAvailableRecords();
+    }
+    if (!success) {
+        // the frames indexed so far remain drawable
+        mLoading = false;
+    }
+    pthread_rwlock_unlock(&mDataLock);
+    return success;
+}
+
+void FrameSequence_gif::finishData() {
+    if (!mLoading) {
+        return;
+    }
+
+    pthread_rwlock_wrlock(&mDataLock);
+    mLoading = false;
+    if (mDataSize && mDataSize < mDataCapacity) {
+        // trim the slack from doubling, the data is held for the sequence's lifetime
+        uint8_t* trimmed = (uint8_t*) realloc(mData, mDataSize);
+        if (trimmed) {
+            mData = trimmed;
+            mDataCapacity = mDataSize;
+            mCursor.data = mData;
+        }
+    }
+    pthread_rwlock_unlock(&mDataLock);
+}
+
+void FrameSequence_gif::lockData() const {
+    if (mProgressive) {
+        pthread_rwlock_rdlock(&mDataLock);
+    }
+}
+
+void FrameSequence_gif::unlockData() const {
+    if (mProgressive) {
+        pthread_rwlock_unlock(&mDataLock);
+    }
+}
+
+size_t FrameSequence_gif::getAllocationSize() const {
+    lockData();
+    size_t size = mRawByteBuffer ? 0 : max(mDataSize, mDataCapacity);
+    size += mIndex.capacity * (sizeof(size_t) + sizeof(GraphicsControlBlock));
+    size += mFrameCapacity * (sizeof(bool) + sizeof(int));
     if (mGif) {
-        DGifCloseFile(mGif, NULL);
+        // frames indexed by giflib, with their local color maps
+        size += sizeof(GifFileType) + mGif->ImageCount * sizeof(SavedImage);
+        for (int i = 0; i < mGif->ImageCount; i++) {
+            const ColorMapObject* cmap = mGif->SavedImages[i].ImageDesc.ColorMap;
+            if (cmap) {
+                size += sizeof(ColorMapObject) + cmap->ColorCount * sizeof(GifColorType);
+            }
+        }
     }
-    delete[] mPreservedFrames;
-    delete[] mRestoringFrames;
+    unlockData();
+    return size;
+}
+
+long FrameSequence_gif::getFrameDelay(int frameNr) const {
+    lockData();
+    const long delayMs = getDelayMs(mIndex.gcbs[frameNr]);
+    unlockData();
+    return delayMs;
+}
+
+bool FrameSequence_gif::coversCanvas(int frameNr) const {
+    lockData();
+    const bool covers = ::coversCanvas(mGif, mIndex.gcbs[frameNr], frameNr);
+    unlockData();
+    return covers;
 }
 
-FrameSequenceState* FrameSequence_gif::createState() const {
-    return new FrameSequenceState_gif(*this);
+FrameSequenceState* FrameSequence_gif::createState(int sampleSize, PixelFormat format) const {
+    lockData();
+    FrameSequenceState* state = new FrameSequenceState_gif(*this, sampleSize, format);
+    unlockData();
+    return state;
 }
 
 ////////////////////////////////////////////////////////////////////////////////
@@ -147,80 +556,383 @@ static bool checkIfCover(const GifImageDesc& target, const GifImageDesc& covered
             && covered.Top + covered.Height <= target.Top + target.Height;
 }
 
-static void copyLine(Color8888* dst, const unsigned char* src, const ColorMapObject* cmap,
-                     int transparent, int width) {
-    for (; width > 0; width--, src++, dst++) {
-        if (*src != transparent && *src < cmap->ColorCount) {
-            *dst = gifColorToColor8888(cmap->Colors[*src]);
+template <typename Pixel>
+static void copyLine(Pixel* dst, const unsigned char* src, const Pixel* palette, int colorCount,
+                     int transparent, int width, int srcStep) {
+    for (; width > 0; width--, src += srcStep, dst++) {
+        if (*src != transparent && *src < colorCount) {
+            *dst = palette[*src];
         }
     }
 }
 
-static void setLineColor(Color8888* dst, Color8888 color, int width) {
+// full resolution 8888 rows go through the vectorized kernel
+static void copyLine(Color8888* dst, const unsigned char* src, const Color8888* palette,
+                     int colorCount, int transparent, int width, int srcStep) {
+    if (srcStep == 1) {
+        getPixelKernels().paletteLine(dst, src, palette, colorCount, transparent, width);
+    } else {
+        copyLine<Color8888>(dst, src, palette, colorCount, transparent, width, srcStep);
+    }
+}
+
+template <typename Pixel>
+static void setLineColor(Pixel* dst, Pixel color, int width) {
     for (; width > 0; width--, dst++) {
         *dst = color;
     }
 }
 
-static void getCopySize(const GifImageDesc& imageDesc, int maxWidth, int maxHeight,
-        GifWord& copyWidth, GifWord& copyHeight) {
-    copyWidth = imageDesc.Width;
-    if (imageDesc.Left + copyWidth > maxWidth) {
-        copyWidth = maxWidth - imageDesc.Left;
-    }
-    copyHeight = imageDesc.Height;
-    if (imageDesc.Top + copyHeight > maxHeight) {
-        copyHeight = maxHeight - imageDesc.Top;
-    }
+static void setLineColor(Color8888* dst, Color8888 color, int width) {
+    getPixelKernels().fillLine(dst, color, width);
+}
+
+// computes the part of imageDesc within the canvas, in output pixels of a canvas sampled every
+// sampleSize pixels - width or height are <= 0 if nothing of the image is sampled
+static void getSampledRect(const GifImageDesc& imageDesc, int canvasWidth, int canvasHeight,
+        int sampleSize, int& left, int& top, int& width, int& height) {
+    left = getSampledSize(imageDesc.Left, sampleSize);
+    top = getSampledSize(imageDesc.Top, sampleSize);
+    width = getSampledSize(min(imageDesc.Left + imageDesc.Width, canvasWidth), sampleSize) - left;
+    height = getSampledSize(min(imageDesc.Top + imageDesc.Height, canvasHeight), sampleSize) - top;
 }
 
 ////////////////////////////////////////////////////////////////////////////////
 // Frame sequence state
 ////////////////////////////////////////////////////////////////////////////////
 
-FrameSequenceState_gif::FrameSequenceState_gif(const FrameSequence_gif& frameSequence) :
-    mFrameSequence(frameSequence), mPreserveBuffer(NULL), mPreserveBufferFrame(-1) {
+FrameSequenceState_gif::FrameSequenceState_gif(const FrameSequence_gif& frameSequence,
+        int sampleSize, PixelFormat format) :
+    mFrameSequence(frameSequence), mPixelFormat(format),
+    mBytesPerPixel(getBytesPerPixel(format)), mSampleSize(sampleSize),
+    mWidth(getSampledSize(frameSequence.getWidth(), sampleSize)),
+    mHeight(getSampledSize(frameSequence.getHeight(), sampleSize)),
+    mGif(NULL), mLineBuffer(NULL), mLineBufferSize(0),
+    mPreserveBuffer(NULL), mPreserveBufferSize(0), mPreserveBufferFrame(-1),
+    mPreserveBufferLastRestore(-1), mPreserveRects(NULL), mPreserveRectCount(0),
+    mPreserveRectCapacity(0), mKeyframeCache(NULL) {
+    mCursor.data = frameSequence.getData();
+    mCursor.size = frameSequence.getDataSize();
+    mCursor.position = 0;
+    if (frameSequence.getGif()) {
+        mGif = DGifOpen(&mCursor, cursorReader, NULL);
+    }
 }
 
 FrameSequenceState_gif::~FrameSequenceState_gif() {
-       delete[] mPreserveBuffer;
+    if (mGif) {
+        DGifCloseFile(mGif, NULL);
+    }
+    delete[] mLineBuffer;
+    delete[] mPreserveBuffer;
+    delete[] mPreserveRects;
+    delete mKeyframeCache;
+}
+
+void FrameSequenceState_gif::setKeyframeCacheSize(size_t maxBytes) {
+    delete mKeyframeCache;
+    mKeyframeCache = NULL;
+    if (maxBytes) {
+        mKeyframeCache = new KeyframeCache(mWidth, mHeight, mBytesPerPixel,
+                mFrameSequence.getFrameCount(), maxBytes);
+        if (!mKeyframeCache->isEnabled()) {
+            ALOGW("Keyframe cache of %zu bytes can't hold a single frame", maxBytes);
+            delete mKeyframeCache;
+            mKeyframeCache = NULL;
+        }
+    }
+}
+
+size_t FrameSequenceState_gif::getAllocationSize() const {
+    // line buffer as wide as the widest frame, and the preserve buffer, whose disjoint rects
+    // cover the canvas at most
+    size_t size = mFrameSequence.getWidth() * sizeof(GifPixelType);
+    size += mWidth * mHeight * mBytesPerPixel;
+    size += mPreserveRectCapacity * sizeof(PixelRect);
+    if (mKeyframeCache) {
+        size += mKeyframeCache->getMaxSize();
+    }
+    return size;
+}
+
+void FrameSequenceState_gif::trim() {
+    if (mKeyframeCache) {
+        mKeyframeCache->clear();
+    }
 }
 
-void FrameSequenceState_gif::savePreserveBuffer(Color8888* outputPtr, int outputPixelStride, int frameNr) {
-    if (frameNr == mPreserveBufferFrame) return;
+/**
+ * Returns true if frames start through frameNr can be drawn over a buffer holding frame
+ * start - 1, i.e. every DISPOSE_PREVIOUS restore on the way is either preserved while drawing or
+ * already held by the preserve buffer, which only covers restores up to the last one indexed
+ * when it was saved.
+ */
+bool FrameSequenceState_gif::canDrawFrom(int start, int frameNr) const {
+    for (int i = max(start - 1, 0); i < frameNr; i++) {
+        int neededPreservedFrame = mFrameSequence.getRestoringFrame(i);
+        if (neededPreservedFrame >= 0 && neededPreservedFrame < start - 1
+                && (mPreserveBufferFrame != neededPreservedFrame
+                        || i > mPreserveBufferLastRestore)) {
+#if GIF_DEBUG
+            ALOGD("frame %d needs frame %d preserved, but %d is currently",
+                    i, neededPreservedFrame, mPreserveBufferFrame);
+#endif
+            return false;
+        }
+    }
+    return true;
+}
+
+/**
+ * Returns the latest frame up to frameNr that paints the whole canvas and stays on it, with no
+ * frame after it up to frameNr restoring one before it, or 0 if there is none. Drawing frameNr
+ * can start there over any buffer contents, without the frames before it.
+ */
+int FrameSequenceState_gif::findCoveringStart(int frameNr) const {
+    const GifFileType* gif = mFrameSequence.getGif();
+    // earliest frame restored by the frames from start up to frameNr
+    int earliestRestored = frameNr;
+    for (int start = frameNr; start > 0; start--) {
+        if (start < frameNr) {
+            const int restoredFrame = mFrameSequence.getRestoringFrame(start);
+            if (restoredFrame >= 0) {
+                earliestRestored = min(earliestRestored, restoredFrame);
+            }
+        }
+        const GraphicsControlBlock& gcb = mFrameSequence.getGcb(start);
+        if (earliestRestored >= start && (start == frameNr || !willBeCleared(gcb))
+                && coversCanvas(gif, gcb, start)) {
+            return start;
+        }
+    }
+    return 0;
+}
+
+/**
+ * Decompresses frameNr's raster from the sequence's data straight onto the output, skipping
+ * transparent pixels. Returns false if the frame data is corrupt, in which case the frame may be
+ * partially drawn.
+ */
+template <typename Pixel>
+bool FrameSequenceState_gif::decodeFrame(int frameNr, Pixel* outputPtr, int outputPixelStride) {
+    const SavedImage& frame = mFrameSequence.getGif()->SavedImages[frameNr];
+    const ColorMapObject* cmap = mFrameSequence.getGif()->SColorMap;
+    if (frame.ImageDesc.ColorMap) {
+        cmap = frame.ImageDesc.ColorMap;
+    }
+
+    // If a cmap is missing, the frame can't be decoded, so we skip it.
+    if (!cmap) return true;
+
+    int left, top, copyWidth, copyHeight;
+    getSampledRect(frame.ImageDesc, mFrameSequence.getWidth(), mFrameSequence.getHeight(),
+            mSampleSize, left, top, copyWidth, copyHeight);
+    if (copyWidth <= 0 || copyHeight <= 0) return true;
+
+    mCursor.position = mFrameSequence.getFrameOffset(frameNr);
+    if (DGifGetImageDesc(mGif) != GIF_OK) {
+        return false;
+    }
+    // DGifGetImageDesc appends to SavedImages on every call, drop the entry again so repeated
+    // draws don't grow the decoder - the frame sequence already holds the indexed descriptor
+    mGif->ImageCount--;
+    SavedImage& appended = mGif->SavedImages[mGif->ImageCount];
+    if (appended.ImageDesc.ColorMap) {
+        GifFreeMapObject(appended.ImageDesc.ColorMap);
+        appended.ImageDesc.ColorMap = NULL;
+    }
+
+    const int frameWidth = frame.ImageDesc.Width;
+    if (frameWidth > mLineBufferSize) {
+        delete[] mLineBuffer;
+        mLineBuffer = new GifPixelType[frameWidth];
+        mLineBufferSize = frameWidth;
+    }
+
+    // convert the color map to output pixels once, rather than per pixel
+    Pixel palette[256];
+    const int colorCount = min(cmap->ColorCount, 256);
+    for (int i = 0; i < colorCount; i++) {
+        palette[i] = toPixel(gifColorToColor8888(cmap->Colors[i]), outputPtr);
+    }
+
+    const int transparent = mFrameSequence.getGcb(frameNr).TransparentColor;
+    Pixel* dst = outputPtr + left + top * outputPixelStride;
+    // source rows and columns of the first sampled pixel, relative to the frame
+    const int srcX = left * mSampleSize - frame.ImageDesc.Left;
+    const int srcY = top * mSampleSize - frame.ImageDesc.Top;
+    // rows past the last sampled one needn't be decompressed
+    const int srcHeight = srcY + (copyHeight - 1) * mSampleSize + 1;
+    if (frame.ImageDesc.Interlace) {
+        // rows arrive in four passes, every row must be read to reach the later passes
+        static const int kPassOffsets[] = { 0, 4, 2, 1 };
+        static const int kPassJumps[] = { 8, 8, 4, 2 };
+        for (int pass = 0; pass < 4; pass++) {
+            for (int y = kPassOffsets[pass]; y < frame.ImageDesc.Height; y += kPassJumps[pass]) {
+                if (DGifGetLine(mGif, mLineBuffer, frameWidth) != GIF_OK) {
+                    return false;
+                }
+                if (y >= srcY && y < srcHeight && (y - srcY) % mSampleSize == 0) {
+                    copyLine(dst + (y - srcY) / mSampleSize * outputPixelStride,
+                            mLineBuffer + srcX, palette, colorCount, transparent, copyWidth,
+                            mSampleSize);
+                }
+            }
+        }
+    } else {
+        for (int y = 0; y < srcHeight; y++) {
+            if (DGifGetLine(mGif, mLineBuffer, frameWidth) != GIF_OK) {
+                return false;
+            }
+            if (y >= srcY && (y - srcY) % mSampleSize == 0) {
+                copyLine(dst, mLineBuffer + srcX, palette, colorCount, transparent, copyWidth,
+                        mSampleSize);
+                dst += outputPixelStride;
+            }
+        }
+    }
+    return true;
+}
+
+/**
+ * Saves the output pixels of frameNr that the frames following it draw over, up to the last
+ * indexed frame restoring it. Outside of those frames' rects, the output keeps frameNr's pixels
+ * until then. Overlapping rects are merged, so that a region is never saved twice.
+ */
+void FrameSequenceState_gif::savePreserveBuffer(const void* outputPtr, int outputPixelStride,
+        int frameNr) {
+    // frames up to the next one left on the canvas are cleared, some by restoring frameNr
+    const int frameCount = mFrameSequence.getFrameCount();
+    int lastRestore = -1;
+    for (int i = frameNr + 1; i < frameCount; i++) {
+        if (mFrameSequence.getRestoringFrame(i) == frameNr) {
+            lastRestore = i;
+        }
+        if (!willBeCleared(mFrameSequence.getGcb(i))) break;
+    }
+    if (frameNr == mPreserveBufferFrame && lastRestore == mPreserveBufferLastRestore) return;
 
     mPreserveBufferFrame = frameNr;
-    const int width = mFrameSequence.getWidth();
-    const int height = mFrameSequence.getHeight();
-    if (!mPreserveBuffer) {
-        mPreserveBuffer = new Color8888[width * height];
+    mPreserveBufferLastRestore = lastRestore;
+    const int maxRects = max(lastRestore - frameNr, 0);
+    if (maxRects > mPreserveRectCapacity) {
+        delete[] mPreserveRects;
+        mPreserveRects = new PixelRect[maxRects];
+        mPreserveRectCapacity = maxRects;
     }
-    for (int y = 0; y < height; y++) {
-        memcpy(mPreserveBuffer + width * y,
-                outputPtr + outputPixelStride * y,
-                width * 4);
+    mPreserveRectCount = 0;
+    for (int i = frameNr + 1; i <= lastRestore; i++) {
+        PixelRect rect;
+        rect.setEmpty();
+        joinFrameRect(rect, i);
+        if (rect.isEmpty()) continue;
+
+        // growing the rect may make it overlap rects already passed, so rescan after each merge
+        for (int j = 0; j < mPreserveRectCount; ) {
+            const PixelRect& saved = mPreserveRects[j];
+            if (rect.intersects(saved)) {
+                rect.join(saved.left, saved.top, saved.right, saved.bottom);
+                mPreserveRects[j] = mPreserveRects[--mPreserveRectCount];
+                j = 0;
+            } else {
+                j++;
+            }
+        }
+        mPreserveRects[mPreserveRectCount++] = rect;
+    }
+
+    size_t size = 0;
+    for (int i = 0; i < mPreserveRectCount; i++) {
+        const PixelRect& rect = mPreserveRects[i];
+        size += (rect.right - rect.left) * (rect.bottom - rect.top) * mBytesPerPixel;
+    }
+    if (size > mPreserveBufferSize) {
+        delete[] mPreserveBuffer;
+        mPreserveBuffer = new uint8_t[size];
+        mPreserveBufferSize = size;
+    }
+
+    const int outputStrideBytes = outputPixelStride * mBytesPerPixel;
+    uint8_t* dst = mPreserveBuffer;
+    for (int i = 0; i < mPreserveRectCount; i++) {
+        const PixelRect& rect = mPreserveRects[i];
+        const int rowBytes = (rect.right - rect.left) * mBytesPerPixel;
+        const uint8_t* src = (const uint8_t*) outputPtr + outputStrideBytes * rect.top
+                + rect.left * mBytesPerPixel;
+        for (int y = rect.top; y < rect.bottom; y++) {
+            memcpy(dst, src, rowBytes);
+            dst += rowBytes;
+            src += outputStrideBytes;
+        }
     }
 }
 
-void FrameSequenceState_gif::restorePreserveBuffer(Color8888* outputPtr, int outputPixelStride) {
-    const int width = mFrameSequence.getWidth();
-    const int height = mFrameSequence.getHeight();
-    if (!mPreserveBuffer) {
+// restores the preserved pixels within rect, pixels outside the saved rects are left as they are
+void FrameSequenceState_gif::restorePreserveBuffer(void* outputPtr, int outputPixelStride,
+        const PixelRect& rect) {
+    if (mPreserveBufferFrame < 0) {
         ALOGD("preserve buffer not allocated! ah!");
         return;
     }
-    for (int y = 0; y < height; y++) {
-        memcpy(outputPtr + outputPixelStride * y,
-                mPreserveBuffer + width * y,
-                width * 4);
+    const int outputStrideBytes = outputPixelStride * mBytesPerPixel;
+    const uint8_t* saved = mPreserveBuffer;
+    for (int i = 0; i < mPreserveRectCount; i++) {
+        const PixelRect& savedRect = mPreserveRects[i];
+        const int savedRowBytes = (savedRect.right - savedRect.left) * mBytesPerPixel;
+        const int left = max(rect.left, savedRect.left);
+        const int top = max(rect.top, savedRect.top);
+        const int right = min(rect.right, savedRect.right);
+        const int bottom = min(rect.bottom, savedRect.bottom);
+        if (left < right && top < bottom) {
+            const uint8_t* src = saved + savedRowBytes * (top - savedRect.top)
+                    + (left - savedRect.left) * mBytesPerPixel;
+            uint8_t* dst = (uint8_t*) outputPtr + outputStrideBytes * top
+                    + left * mBytesPerPixel;
+            for (int y = top; y < bottom; y++) {
+                memcpy(dst, src, (right - left) * mBytesPerPixel);
+                src += savedRowBytes;
+                dst += outputStrideBytes;
+            }
+        }
+        saved += savedRowBytes * (savedRect.bottom - savedRect.top);
     }
 }
 
+// grows rect to cover the output pixels of frameNr's image
+void FrameSequenceState_gif::joinFrameRect(PixelRect& rect, int frameNr) const {
+    int left, top, width, height;
+    getSampledRect(mFrameSequence.getGif()->SavedImages[frameNr].ImageDesc,
+            mFrameSequence.getWidth(), mFrameSequence.getHeight(), mSampleSize,
+            left, top, width, height);
+    rect.join(left, top, left + width, top + height);
+}
+
 long FrameSequenceState_gif::drawFrame(int frameNr,
-        Color8888* outputPtr, int outputPixelStride, int previousFrameNr) {
+        void* outputPtr, int outputPixelStride, int previousFrameNr,
+        PixelRect* outDirtyRect) {
+    // appends to a progressively loaded sequence may have moved its data since the last draw
+    mFrameSequence.lockData();
+    mCursor.data = mFrameSequence.getData();
+    mCursor.size = mFrameSequence.getDataSize();
+    long delayMs;
+    if (mPixelFormat == PIXEL_FORMAT_565) {
+        delayMs = drawPixels(frameNr, (Color565*) outputPtr, outputPixelStride, previousFrameNr,
+                outDirtyRect);
+    } else {
+        delayMs = drawPixels(frameNr, (Color8888*) outputPtr, outputPixelStride, previousFrameNr,
+                outDirtyRect);
+    }
+    mFrameSequence.unlockData();
+    return delayMs;
+}
 
-    GifFileType* gif = mFrameSequence.getGif();
-    if (!gif) {
+template <typename Pixel>
+long FrameSequenceState_gif::drawPixels(int frameNr,
+        Pixel* outputPtr, int outputPixelStride, int previousFrameNr,
+        PixelRect* outDirtyRect) {
+
+    const GifFileType* gif = mFrameSequence.getGif();
+    if (!gif || !mGif) {
         ALOGD("Cannot drawFrame, mGif is NULL");
         return -1;
     }
@@ -230,26 +942,44 @@ long FrameSequenceState_gif::drawFrame(int frameNr,
             this, frameNr, outputPtr, previousFrameNr);
 #endif
 
-    const int height = mFrameSequence.getHeight();
-    const int width = mFrameSequence.getWidth();
-
-    GraphicsControlBlock gcb;
+    const int height = mHeight;
+    const int width = mWidth;
 
     int start = max(previousFrameNr + 1, 0);
+    if (!canDrawFrom(start, frameNr)) {
+        start = 0;
+    }
+    // skip the frames a later one paints over entirely, the buffer's contents don't matter then
+    const int coveringStart = findCoveringStart(frameNr);
+    bool drawnOver = coveringStart > start;
+    if (drawnOver) {
+        start = coveringStart;
+    }
 
-    for (int i = max(start - 1, 0); i < frameNr; i++) {
-        int neededPreservedFrame = mFrameSequence.getRestoringFrame(i);
-        if (neededPreservedFrame >= 0 && (mPreserveBufferFrame != neededPreservedFrame)) {
+    bool restoredKeyframe = false;
+    if (mKeyframeCache) {
+        // restoring a later snapshot skips drawing the frames up to it
+        for (int keyframe = mKeyframeCache->findLatest(start, frameNr); keyframe >= 0;
+                keyframe = mKeyframeCache->findLatest(start, keyframe - 1)) {
+            if (canDrawFrom(keyframe + 1, frameNr)) {
 #if GIF_DEBUG
-            ALOGD("frame %d needs frame %d preserved, but %d is currently, so drawing from scratch",
-                    i, neededPreservedFrame, mPreserveBufferFrame);
+                ALOGD("restoring snapshot of frame %d", keyframe);
 #endif
-            start = 0;
+                mKeyframeCache->restore(keyframe, outputPtr, outputPixelStride);
+                start = keyframe + 1;
+                restoredKeyframe = true;
+                drawnOver = false;
+                break;
+            }
         }
     }
 
+    // changes since previousFrameNr, if the buffer isn't entirely redrawn
+    PixelRect dirtyRect;
+    dirtyRect.setEmpty();
+
     for (int i = start; i <= frameNr; i++) {
-        DGifSavedExtensionToGCB(gif, i, &gcb);
+        const GraphicsControlBlock& gcb = mFrameSequence.getGcb(i);
         const SavedImage& frame = gif->SavedImages[i];
 
 #if GIF_DEBUG
@@ -259,15 +989,12 @@ long FrameSequenceState_gif::drawFrame(int frameNr,
 #endif
         if (i == 0) {
             //clear bitmap
-            Color8888 bgColor = mFrameSequence.getBackgroundColor();
+            Pixel bgColor = toPixel(mFrameSequence.getBackgroundColor(), outputPtr);
             for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    outputPtr[y * outputPixelStride + x] = bgColor;
-                }
+                setLineColor(outputPtr + y * outputPixelStride, bgColor, width);
             }
         } else {
-            GraphicsControlBlock prevGcb;
-            DGifSavedExtensionToGCB(gif, i - 1, &prevGcb);
+            const GraphicsControlBlock& prevGcb = mFrameSequence.getGcb(i - 1);
             const SavedImage& prevFrame = gif->SavedImages[i - 1];
             bool prevFrameDisposed = willBeCleared(prevGcb);
 
@@ -278,23 +1005,33 @@ long FrameSequenceState_gif::drawFrame(int frameNr,
             if (prevFrameDisposed && !prevFrameCompletelyCovered) {
                 switch (prevGcb.DisposalMode) {
                 case DISPOSE_BACKGROUND: {
-                    Color8888* dst = outputPtr + prevFrame.ImageDesc.Left +
-                            prevFrame.ImageDesc.Top * outputPixelStride;
-
-                    GifWord copyWidth, copyHeight;
-                    getCopySize(prevFrame.ImageDesc, width, height, copyWidth, copyHeight);
+                    int left, top, copyWidth, copyHeight;
+                    getSampledRect(prevFrame.ImageDesc, mFrameSequence.getWidth(),
+                            mFrameSequence.getHeight(), mSampleSize,
+                            left, top, copyWidth, copyHeight);
+                    Pixel* dst = outputPtr + left + top * outputPixelStride;
                     for (; copyHeight > 0; copyHeight--) {
-                        setLineColor(dst, TRANSPARENT, copyWidth);
+                        setLineColor(dst, (Pixel) TRANSPARENT, copyWidth);
                         dst += outputPixelStride;
                     }
+                    joinFrameRect(dirtyRect, i - 1);
                 } break;
                 case DISPOSE_PREVIOUS: {
-                    restorePreserveBuffer(outputPtr, outputPixelStride);
+                    // undoes every frame drawn since the preserved one
+                    PixelRect undoneRect;
+                    undoneRect.setEmpty();
+                    for (int j = mFrameSequence.getRestoringFrame(i - 1) + 1; j < i; j++) {
+                        joinFrameRect(undoneRect, j);
+                    }
+                    restorePreserveBuffer(outputPtr, outputPixelStride, undoneRect);
+                    dirtyRect.join(undoneRect.left, undoneRect.top, undoneRect.right,
+                            undoneRect.bottom);
                 } break;
                 }
             }
 
-            if (mFrameSequence.getPreservedFrame(i - 1)) {
+            // the buffer doesn't hold the frame before one that is drawn over
+            if (mFrameSequence.getPreservedFrame(i - 1) && !(drawnOver && i == start)) {
                 // currently drawn frame will be restored by a following DISPOSE_PREVIOUS draw, so
                 // we preserve it
                 savePreserveBuffer(outputPtr, outputPixelStride, i - 1);
@@ -304,32 +1041,27 @@ long FrameSequenceState_gif::drawFrame(int frameNr,
         bool willBeCleared = gcb.DisposalMode == DISPOSE_BACKGROUND
                 || gcb.DisposalMode == DISPOSE_PREVIOUS;
         if (i == frameNr || !willBeCleared) {
-            const ColorMapObject* cmap = gif->SColorMap;
-            if (frame.ImageDesc.ColorMap) {
-                cmap = frame.ImageDesc.ColorMap;
+            joinFrameRect(dirtyRect, i);
+            if (!decodeFrame(i, outputPtr, outputPixelStride)) {
+                ALOGW("Gif decode of frame %d failed", i);
+            } else if (mKeyframeCache && mKeyframeCache->shouldSave(i)) {
+                mKeyframeCache->save(i, outputPtr, outputPixelStride);
             }
+        }
+    }
 
-            // If a cmap is missing, the frame can't be decoded, so we skip it.
-            if (cmap) {
-                const unsigned char* src = (unsigned char*)frame.RasterBits;
-                Color8888* dst = outputPtr + frame.ImageDesc.Left +
-                        frame.ImageDesc.Top * outputPixelStride;
-                GifWord copyWidth, copyHeight;
-                getCopySize(frame.ImageDesc, width, height, copyWidth, copyHeight);
-                for (; copyHeight > 0; copyHeight--) {
-                    copyLine(dst, src, cmap, gcb.TransparentColor, copyWidth);
-                    src += frame.ImageDesc.Width;
-                    dst += outputPixelStride;
-                }
-            }
+    if (outDirtyRect) {
+        if (start == 0 || drawnOver || restoredKeyframe) {
+            outDirtyRect->set(0, 0, width, height);
+        } else {
+            *outDirtyRect = dirtyRect;
         }
     }
 
     // return last frame's delay
-    const int maxFrame = gif->ImageCount;
+    const int maxFrame = mFrameSequence.getFrameCount();
     const int lastFrame = (frameNr + maxFrame - 1) % maxFrame;
-    DGifSavedExtensionToGCB(gif, lastFrame, &gcb);
-    return getDelayMs(gcb);
+    return getDelayMs(mFrameSequence.getGcb(lastFrame));
 }
 
 ////////////////////////////////////////////////////////////////////////////////
@@ -345,18 +1077,66 @@ static bool isGif(void* header, int header_size) {
 }
 
 static bool acceptsBuffers() {
-    return false;
+    return true;
 }
 
 static FrameSequence* createFramesequence(Stream* stream) {
     return new FrameSequence_gif(stream);
 }
 
+static bool probeGif(Stream* stream, FrameSequenceInfo* info) {
+    GifFileType* gif = DGifOpen(stream, streamReader, NULL);
+    if (!gif) {
+        return false;
+    }
+
+    GifIndex index;
+    initIndex(&index);
+    bool success = indexFrames(gif, NULL, &index);
+    if (success) {
+        info->width = gif->SWidth;
+        info->height = gif->SHeight;
+        info->loopCount = index.loopCount;
+        for (int i = 0; i < gif->ImageCount; i++) {
+            info->addFrame(getDelayMs(index.gcbs[i]));
+        }
+        if (gif->ImageCount > 0) {
+            Color8888 bgColor = computeBackgroundColor(gif, index.gcbs[0]);
+            info->opaque = (bgColor & COLOR_8888_ALPHA_MASK) == COLOR_8888_ALPHA_MASK;
+        }
+    }
+
+    freeIndex(&index);
+    DGifCloseFile(gif, NULL);
+    return success;
+}
+
+// data is read in chunks of this size until the first frame is complete
+static const size_t kProgressiveChunkSize = 4 * 1024;
+
+static FrameSequence* createProgressiveFramesequence(Stream* stream) {
+    FrameSequence_gif* frameSequence = new FrameSequence_gif();
+    uint8_t chunk[kProgressiveChunkSize];
+    while (frameSequence->isLoading() && !frameSequence->getFrameCount()) {
+        const size_t size = stream->read(chunk, sizeof(chunk));
+        if (size) {
+            frameSequence->appendData(chunk, size);
+        }
+        if (size < sizeof(chunk)) {
+            // end of the stream
+            frameSequence->finishData();
+        }
+    }
+    return frameSequence;
+}
+
 static RegistryEntry gEntry = {
         GIF_STAMP_LEN,
         isGif,
         createFramesequence,
         NULL,
         acceptsBuffers,
+        probeGif,
+        createProgressiveFramesequence,
 };
 static Registry gRegister(gEntry);
@@ -17,16 +17,47 @@
 #ifndef RASTERMILL_FRAMESQUENCE_GIF_H
 #define RASTERMILL_FRAMESQUENCE_GIF_H
 
+#include <pthread.h>
+
 #include "config.h"
 #include "gif_lib.h"
 
 #include "Stream.h"
 #include "Color.h"
 #include "FrameSequence.h"
+#include "KeyframeCache.h"
+
+// Read position within a GIF held in memory, passed to giflib as UserData.
+struct GifDataCursor {
+    const uint8_t* data;
+    size_t size;
+    size_t position;
+};
+
+// Per frame metadata gathered while walking a GIF's records, see indexRecord.
+struct GifIndex {
+    // array of offsets per frame - position in the data of the frame's image descriptor
+    size_t* offsets;
+
+    // array of graphics control blocks per frame
+    GraphicsControlBlock* gcbs;
+
+    // number of frames the arrays can hold
+    int capacity;
+
+    int loopCount;
+
+    // control block read since the last image, applying to the next
+    GraphicsControlBlock pendingGcb;
+};
 
 class FrameSequence_gif : public FrameSequence {
 public:
     FrameSequence_gif(Stream* stream);
+
+    // creates an empty sequence that is loaded progressively, see appendData
+    FrameSequence_gif();
+
     virtual ~FrameSequence_gif();
 
     virtual int getWidth() const {
@@ -42,52 +73,164 @@ public:
     }
 
     virtual int getFrameCount() const {
-        return mGif ? mGif->ImageCount : 0;
+        return mFrameCount;
     }
 
     virtual int getDefaultLoopCount() const {
-        return mLoopCount;
+        return mIndex.loopCount;
     }
 
     virtual jobject getRawByteBuffer() const {
-        return NULL;
+        return mRawByteBuffer;
     }
 
-    virtual FrameSequenceState* createState() const;
+    virtual size_t getAllocationSize() const;
+
+    virtual long getFrameDelay(int frameNr) const;
 
-    GifFileType* getGif() const { return mGif; }
+    virtual bool coversCanvas(int frameNr) const;
+
+    virtual bool isLoading() const {
+        return mLoading;
+    }
+
+    virtual bool appendData(const uint8_t* data, size_t size);
+
+    virtual void finishData();
+
+    virtual FrameSequenceState* createState(int sampleSize, PixelFormat format) const;
+
+    /**
+     * Held by states while drawing, as appends may move the data and grow the per frame arrays.
+     * Does nothing for sequences that weren't created progressively.
+     */
+    void lockData() const;
+    void unlockData() const;
+
+    // shared by all states, which only read it and decode through a GifFileType of their own
+    const GifFileType* getGif() const { return mGif; }
     Color8888 getBackgroundColor() const { return mBgColor; }
     bool getPreservedFrame(int frameIndex) const { return mPreservedFrames[frameIndex]; }
     int getRestoringFrame(int frameIndex) const { return mRestoringFrames[frameIndex]; }
+    const GraphicsControlBlock& getGcb(int frameIndex) const { return mIndex.gcbs[frameIndex]; }
+    size_t getFrameOffset(int frameIndex) const { return mIndex.offsets[frameIndex]; }
+    const uint8_t* getData() const { return mData; }
+    size_t getDataSize() const { return mDataSize; }
 
 private:
+    bool indexAvailableRecords();
+    void addIndexedFrames();
+
     GifFileType* mGif;
-    int mLoopCount;
+    GifIndex mIndex;
     Color8888 mBgColor;
 
+    // frames indexed and drawable, lags mGif->ImageCount only while records are indexed
+    int mFrameCount;
+
+    // compressed GIF contents, frames are decoded from here on demand
+    uint8_t* mData;
+    size_t mDataSize;
+    GifDataCursor mCursor;
+
+    // if set, mData points into this buffer rather than a copy owned by the sequence
+    jobject mRawByteBuffer;
+
     // array of bool per frame - if true, frame data is used by a later DISPOSE_PREVIOUS frame
     bool* mPreservedFrames;
 
     // array of ints per frame - if >= 0, points to the index of the preserve that frame needs
     int* mRestoringFrames;
+
+    // number of frames mPreservedFrames and mRestoringFrames can hold
+    int mFrameCapacity;
+
+    // latest frame that isn't disposed of, restored by a following DISPOSE_PREVIOUS frame
+    int mLastUnclearedFrame;
+
+    // progressive loading - mData is mDataCapacity bytes, of which the complete records up to
+    // mCursor.size have been handed to giflib
+    const bool mProgressive;
+    bool mLoading;
+    size_t mDataCapacity;
+    mutable pthread_rwlock_t mDataLock;
 };
 
 class FrameSequenceState_gif : public FrameSequenceState {
 public:
-    FrameSequenceState_gif(const FrameSequence_gif& frameSequence);
+    FrameSequenceState_gif(const FrameSequence_gif& frameSequence, int sampleSize,
+            PixelFormat format);
     virtual ~FrameSequenceState_gif();
 
     // returns frame's delay time in ms
     virtual long drawFrame(int frameNr,
-            Color8888* outputPtr, int outputPixelStride, int previousFrameNr);
+            void* outputPtr, int outputPixelStride, int previousFrameNr,
+            PixelRect* outDirtyRect);
+
+    virtual PixelFormat getPixelFormat() const {
+        return mPixelFormat;
+    }
+
+    virtual int getFrameCount() const {
+        return mFrameSequence.getFrameCount();
+    }
+
+    virtual long getFrameDelay(int frameNr) const {
+        return mFrameSequence.getFrameDelay(frameNr);
+    }
+
+    virtual int getWidth() const {
+        return mWidth;
+    }
+
+    virtual int getHeight() const {
+        return mHeight;
+    }
+
+    virtual void setKeyframeCacheSize(size_t maxBytes);
+
+    virtual void trim();
+
+    virtual size_t getAllocationSize() const;
 
 private:
-    void savePreserveBuffer(Color8888* outputPtr, int outputPixelStride, int frameNr);
-    void restorePreserveBuffer(Color8888* outputPtr, int outputPixelStride);
+    bool canDrawFrom(int start, int frameNr) const;
+    int findCoveringStart(int frameNr) const;
+    void joinFrameRect(PixelRect& rect, int frameNr) const;
+    template <typename Pixel>
+    long drawPixels(int frameNr, Pixel* outputPtr, int outputPixelStride, int previousFrameNr,
+            PixelRect* outDirtyRect);
+    template <typename Pixel>
+    bool decodeFrame(int frameNr, Pixel* outputPtr, int outputPixelStride);
+    void savePreserveBuffer(const void* outputPtr, int outputPixelStride, int frameNr);
+    void restorePreserveBuffer(void* outputPtr, int outputPixelStride, const PixelRect& rect);
 
     const FrameSequence_gif& mFrameSequence;
-    Color8888* mPreserveBuffer;
+    const PixelFormat mPixelFormat;
+    const int mBytesPerPixel;
+
+    // output canvas, sampling every mSampleSize-th pixel of the sequence's canvas
+    const int mSampleSize;
+    const int mWidth;
+    const int mHeight;
+
+    // decoder over the sequence's data, only used to decompress frame rasters
+    GifFileType* mGif;
+    GifDataCursor mCursor;
+    GifPixelType* mLineBuffer;
+    int mLineBufferSize;
+
+    // pixels of mPreserveBufferFrame within each of the disjoint mPreserveRects, row by row and
+    // rect after rect - the regions drawn over until mPreserveBufferLastRestore restores them
+    uint8_t* mPreserveBuffer;
+    size_t mPreserveBufferSize;
     int mPreserveBufferFrame;
+    int mPreserveBufferLastRestore;
+    PixelRect* mPreserveRects;
+    int mPreserveRectCount;
+    int mPreserveRectCapacity;
+
+    KeyframeCache* mKeyframeCache;
 };
 
 #endif //RASTERMILL_FRAMESQUENCE_GIF_H
@@ -21,6 +21,7 @@
 #include "webp/format_constants.h"
 
 #include "FrameSequence_webp.h"
+#include "PixelKernels.h"
 
 #define WEBP_DEBUG 0
 
@@ -28,6 +29,14 @@
 // Frame sequence
 ////////////////////////////////////////////////////////////////////////////////
 
+static uint32_t GetLE16(const uint8_t* const data) {
+    return data[0] | (data[1] << 8);
+}
+
+static uint32_t GetLE24(const uint8_t* const data) {
+    return GetLE16(data) | (data[2] << 16);
+}
+
 static uint32_t GetLE32(const uint8_t* const data) {
     return MKFOURCC(data[0], data[1], data[2], data[3]);
 }
@@ -37,15 +46,6 @@ static bool isFullFrame(const WebPIterator& frame, int canvasWidth, int canvasHe
     return (frame.width == canvasWidth && frame.height == canvasHeight);
 }
 
-// Returns true if the rectangle defined by 'frame' contains pixel (x, y).
-static bool FrameContainsPixel(const WebPIterator& frame, int x, int y) {
-    const int left = frame.x_offset;
-    const int right = left + frame.width;
-    const int top = frame.y_offset;
-    const int bottom = top + frame.height;
-    return x >= left && x < right && y >= top && y < bottom;
-}
-
 // Construct mIsKeyFrame array.
 void FrameSequence_webp::constructDependencyChain() {
     const size_t frameCount = getFrameCount();
@@ -144,8 +144,35 @@ FrameSequence_webp::~FrameSequence_webp() {
     }
 }
 
-FrameSequenceState* FrameSequence_webp::createState() const {
-    return new FrameSequenceState_webp(*this);
+size_t FrameSequence_webp::getAllocationSize() const {
+    // the demuxer's frame table isn't exposed, and is small next to the data
+    return (mRawByteBuffer ? 0 : mData.size) + getFrameCount() * sizeof(bool);
+}
+
+long FrameSequence_webp::getFrameDelay(int frameNr) const {
+    WebPIterator iter;
+    if (!WebPDemuxGetFrame(mDemux, frameNr + 1, &iter)) {  // 1-based
+        return 0;
+    }
+    const int delayMs = iter.duration;
+    WebPDemuxReleaseIterator(&iter);
+    return delayMs;
+}
+
+bool FrameSequence_webp::coversCanvas(int frameNr) const {
+    WebPIterator iter;
+    if (!WebPDemuxGetFrame(mDemux, frameNr + 1, &iter)) {  // 1-based
+        return false;
+    }
+    // without alpha, blending onto the canvas replaces it too
+    const bool covers = isFullFrame(iter, getWidth(), getHeight())
+            && (!iter.has_alpha || iter.blend_method == WEBP_MUX_NO_BLEND);
+    WebPDemuxReleaseIterator(&iter);
+    return covers;
+}
+
+FrameSequenceState* FrameSequence_webp::createState(int sampleSize, PixelFormat format) const {
+    return new FrameSequenceState_webp(*this, sampleSize, format);
 }
 
 ////////////////////////////////////////////////////////////////////////////////
@@ -168,13 +195,34 @@ static bool checkIfCover(const WebPIterator& target, const WebPIterator& covered
            && covered_y_max <= target_y_max;
 }
 
+// Computes the rectangle of 'frame' in output pixels of a canvas sampled every 'sampleSize'
+// pixels. Width or height are 0 if no pixel of the frame is sampled.
+static void getSampledRect(const WebPIterator& frame, int sampleSize,
+        int& left, int& top, int& width, int& height) {
+    left = getSampledSize(frame.x_offset, sampleSize);
+    top = getSampledSize(frame.y_offset, sampleSize);
+    width = getSampledSize(frame.x_offset + frame.width, sampleSize) - left;
+    height = getSampledSize(frame.y_offset + frame.height, sampleSize) - top;
+}
+
 // Clear all pixels in a line to transparent.
-static void clearLine(Color8888* dst, int width) {
+template <typename Pixel>
+static void clearLine(Pixel* dst, int width) {
     memset(dst, 0, width * sizeof(*dst));  // Note: Assumes TRANSPARENT == 0x0.
 }
 
+// Replace fully transparent pixels in 'dst' by the pixels of 'src'.
+static void underlayLine(Color8888* dst, const Color8888* src, int width) {
+    getPixelKernels().underlayLine(dst, src, width);
+}
+
+// 565 output is opaque, so there is nothing to replace.
+static void underlayLine(Color565* dst, const Color565* src, int width) {
+}
+
 // Copy all pixels from 'src' to 'dst'.
-static void copyFrame(const Color8888* src, int srcStride, Color8888* dst, int dstStride,
+template <typename Pixel>
+static void copyFrame(const Pixel* src, int srcStride, Pixel* dst, int dstStride,
         int width, int height) {
     for (int y = 0; y < height; y++) {
         memcpy(dst, src, width * sizeof(*dst));
@@ -187,29 +235,71 @@ static void copyFrame(const Color8888* src, int srcStride, Color8888* dst, int d
 // Frame sequence state
 ////////////////////////////////////////////////////////////////////////////////
 
-FrameSequenceState_webp::FrameSequenceState_webp(const FrameSequence_webp& frameSequence) :
-        mFrameSequence(frameSequence) {
+FrameSequenceState_webp::FrameSequenceState_webp(const FrameSequence_webp& frameSequence,
+        int sampleSize, PixelFormat format)
+        : mFrameSequence(frameSequence)
+        , mPixelFormat(format)
+        , mSampleSize(sampleSize)
+        , mWidth(getSampledSize(frameSequence.getWidth(), sampleSize))
+        , mHeight(getSampledSize(frameSequence.getHeight(), sampleSize))
+        , mKeyframeCache(NULL) {
     WebPInitDecoderConfig(&mDecoderConfig);
     mDecoderConfig.output.is_external_memory = 1;
-    mDecoderConfig.output.colorspace = MODE_rgbA;  // Pre-multiplied alpha mode.
-    const int canvasWidth = mFrameSequence.getWidth();
-    const int canvasHeight = mFrameSequence.getHeight();
-    mPreservedBuffer = new Color8888[canvasWidth * canvasHeight];
+    if (format == PIXEL_FORMAT_565) {
+        // Only used for opaque sequences. Android's libwebp is built with WEBP_SWAP_16BIT_CSP,
+        // so pixels come out in the byte order of RGB_565 bitmaps.
+        mDecoderConfig.output.colorspace = MODE_RGB_565;
+    } else {
+        mDecoderConfig.output.colorspace = MODE_rgbA;  // Pre-multiplied alpha mode.
+    }
+    // Frames are scaled by the decoder to their rectangle on the sampled canvas.
+    mDecoderConfig.options.use_scaling = (sampleSize > 1);
+    mPreservedBuffer = new uint8_t[mWidth * mHeight * getBytesPerPixel(format)];
 }
 
 FrameSequenceState_webp::~FrameSequenceState_webp() {
     delete[] mPreservedBuffer;
+    delete mKeyframeCache;
+}
+
+void FrameSequenceState_webp::setKeyframeCacheSize(size_t maxBytes) {
+    delete mKeyframeCache;
+    mKeyframeCache = NULL;
+    if (maxBytes) {
+        mKeyframeCache = new KeyframeCache(mWidth, mHeight, getBytesPerPixel(mPixelFormat),
+                mFrameSequence.getFrameCount(), maxBytes);
+        if (!mKeyframeCache->isEnabled()) {
+            ALOGW("Keyframe cache of %zu bytes can't hold a single frame", maxBytes);
+            delete mKeyframeCache;
+            mKeyframeCache = NULL;
+        }
+    }
+}
+
+size_t FrameSequenceState_webp::getAllocationSize() const {
+    size_t size = mWidth * mHeight * getBytesPerPixel(mPixelFormat);
+    if (mKeyframeCache) {
+        size += mKeyframeCache->getMaxSize();
+    }
+    return size;
+}
+
+void FrameSequenceState_webp::trim() {
+    if (mKeyframeCache) {
+        mKeyframeCache->clear();
+    }
 }
 
-void FrameSequenceState_webp::initializeFrame(const WebPIterator& currIter, Color8888* currBuffer,
-        int currStride, const WebPIterator& prevIter, const Color8888* prevBuffer, int prevStride) {
-    const int canvasWidth = mFrameSequence.getWidth();
-    const int canvasHeight = mFrameSequence.getHeight();
+template <typename Pixel>
+void FrameSequenceState_webp::initializeFrame(const WebPIterator& currIter, Pixel* currBuffer,
+        int currStride, const WebPIterator& prevIter, const Pixel* prevBuffer, int prevStride) {
+    const int canvasWidth = mWidth;
+    const int canvasHeight = mHeight;
     const bool currFrameIsKeyFrame = mFrameSequence.isKeyFrame(currIter.frame_num - 1);
 
     if (currFrameIsKeyFrame) {  // Clear canvas.
         for (int y = 0; y < canvasHeight; y++) {
-            Color8888* dst = currBuffer + y * currStride;
+            Pixel* dst = currBuffer + y * currStride;
             clearLine(dst, canvasWidth);
         }
     } else {
@@ -222,65 +312,77 @@ void FrameSequenceState_webp::initializeFrame(const WebPIterator& currIter, Colo
                 checkIfCover(currIter, prevIter);
         if ((prevIter.dispose_method == WEBP_MUX_DISPOSE_BACKGROUND) &&
                 !prevFrameCompletelyCovered) {
-            Color8888* dst = currBuffer + prevIter.x_offset + prevIter.y_offset * currStride;
-            for (int j = 0; j < prevIter.height; j++) {
-                clearLine(dst, prevIter.width);
+            int left, top, width, height;
+            getSampledRect(prevIter, mSampleSize, left, top, width, height);
+            Pixel* dst = currBuffer + left + top * currStride;
+            for (int j = 0; j < height; j++) {
+                clearLine(dst, width);
                 dst += currStride;
             }
         }
     }
 }
 
-bool FrameSequenceState_webp::decodeFrame(const WebPIterator& currIter, Color8888* currBuffer,
-        int currStride, const WebPIterator& prevIter, const Color8888* prevBuffer, int prevStride) {
-    Color8888* dst = currBuffer + currIter.x_offset + currIter.y_offset * currStride;
+template <typename Pixel>
+bool FrameSequenceState_webp::decodeFrame(const WebPIterator& currIter, Pixel* currBuffer,
+        int currStride, const WebPIterator& prevIter, const Pixel* prevBuffer, int prevStride) {
+    int left, top, width, height;
+    getSampledRect(currIter, mSampleSize, left, top, width, height);
+    if (width <= 0 || height <= 0) {
+        return true;  // Frame falls between sampled pixels.
+    }
+
+    Pixel* dst = currBuffer + left + top * currStride;
+    mDecoderConfig.options.scaled_width = width;
+    mDecoderConfig.options.scaled_height = height;
     mDecoderConfig.output.u.RGBA.rgba = (uint8_t*)dst;
-    mDecoderConfig.output.u.RGBA.stride = currStride * 4;
-    mDecoderConfig.output.u.RGBA.size = mDecoderConfig.output.u.RGBA.stride * currIter.height;
+    mDecoderConfig.output.u.RGBA.stride = currStride * sizeof(Pixel);
+    mDecoderConfig.output.u.RGBA.size = mDecoderConfig.output.u.RGBA.stride * height;
 
     const WebPData& currFrame = currIter.fragment;
     if (WebPDecode(currFrame.bytes, currFrame.size, &mDecoderConfig) != VP8_STATUS_OK) {
         return false;
     }
 
-    const int canvasWidth = mFrameSequence.getWidth();
-    const int canvasHeight = mFrameSequence.getHeight();
     const bool currFrameIsKeyFrame = mFrameSequence.isKeyFrame(currIter.frame_num - 1);
     // During the decoding of current frame, we may have set some pixels to be transparent
     // (i.e. alpha < 255). However, the value of each of these pixels should have been determined
     // by blending it against the value of that pixel in the previous frame if WEBP_MUX_BLEND was
     // specified. So, we correct these pixels based on disposal method of the previous frame and
-    // the previous frame buffer.
-    if (currIter.blend_method == WEBP_MUX_BLEND && !currFrameIsKeyFrame) {
+    // the previous frame buffer. 565 output is opaque, so has nothing to correct.
+    if (currIter.blend_method == WEBP_MUX_BLEND && !currFrameIsKeyFrame
+            && mPixelFormat == PIXEL_FORMAT_8888) {
+        // FIXME: Use alpha-blending when alpha is between 0 and 255.
         if (prevIter.dispose_method == WEBP_MUX_DISPOSE_NONE) {
-            for (int y = 0; y < currIter.height; y++) {
-                const int canvasY = currIter.y_offset + y;
-                for (int x = 0; x < currIter.width; x++) {
-                    const int canvasX = currIter.x_offset + x;
-                    Color8888& currPixel = currBuffer[canvasY * currStride + canvasX];
-                    // FIXME: Use alpha-blending when alpha is between 0 and 255.
-                    if (!(currPixel & COLOR_8888_ALPHA_MASK)) {
-                        const Color8888 prevPixel = prevBuffer[canvasY * prevStride + canvasX];
-                        currPixel = prevPixel;
-                    }
-                }
+            for (int y = top; y < top + height; y++) {
+                underlayLine(currBuffer + y * currStride + left,
+                        prevBuffer + y * prevStride + left, width);
             }
         } else {  // prevIter.dispose_method == WEBP_MUX_DISPOSE_BACKGROUND
             // Need to restore transparent pixels to as they were just after frame initialization.
             // That is:
             //   * Transparent if it belongs to previous frame rectangle <-- This is a no-op.
             //   * Pixel in the previous canvas otherwise <-- Need to restore.
-            for (int y = 0; y < currIter.height; y++) {
-                const int canvasY = currIter.y_offset + y;
-                for (int x = 0; x < currIter.width; x++) {
-                    const int canvasX = currIter.x_offset + x;
-                    Color8888& currPixel = currBuffer[canvasY * currStride + canvasX];
-                    // FIXME: Use alpha-blending when alpha is between 0 and 255.
-                    if (!(currPixel & COLOR_8888_ALPHA_MASK)
-                            && !FrameContainsPixel(prevIter, canvasX, canvasY)) {
-                        const Color8888 prevPixel = prevBuffer[canvasY * prevStride + canvasX];
-                        currPixel = prevPixel;
-                    }
+            int prevLeft, prevTop, prevWidth, prevHeight;
+            getSampledRect(prevIter, mSampleSize, prevLeft, prevTop, prevWidth, prevHeight);
+            const int right = left + width;
+            const int prevRight = prevLeft + prevWidth;
+            for (int y = top; y < top + height; y++) {
+                Pixel* currRow = currBuffer + y * currStride;
+                const Pixel* prevRow = prevBuffer + y * prevStride;
+                if (y < prevTop || y >= prevTop + prevHeight) {
+                    underlayLine(currRow + left, prevRow + left, width);
+                    continue;
+                }
+                // Only the spans left and right of the previous frame rectangle.
+                const int leftSpanEnd = min(right, prevLeft);
+                if (leftSpanEnd > left) {
+                    underlayLine(currRow + left, prevRow + left, leftSpanEnd - left);
+                }
+                const int rightSpanStart = max(left, prevRight);
+                if (right > rightSpanStart) {
+                    underlayLine(currRow + rightSpanStart, prevRow + rightSpanStart,
+                            right - rightSpanStart);
                 }
             }
         }
@@ -288,17 +390,37 @@ bool FrameSequenceState_webp::decodeFrame(const WebPIterator& currIter, Color888
     return true;
 }
 
+// Grows 'rect' to cover the output pixels of 'frame'.
+static void joinSampledRect(PixelRect& rect, const WebPIterator& frame, int sampleSize) {
+    int left, top, width, height;
+    getSampledRect(frame, sampleSize, left, top, width, height);
+    rect.join(left, top, left + width, top + height);
+}
+
 long FrameSequenceState_webp::drawFrame(int frameNr,
-        Color8888* outputPtr, int outputPixelStride, int previousFrameNr) {
-    WebPDemuxer* demux = mFrameSequence.getDemuxer();
+        void* outputPtr, int outputPixelStride, int previousFrameNr,
+        PixelRect* outDirtyRect) {
+    if (mPixelFormat == PIXEL_FORMAT_565) {
+        return drawPixels(frameNr, (Color565*) outputPtr, outputPixelStride, previousFrameNr,
+                outDirtyRect);
+    }
+    return drawPixels(frameNr, (Color8888*) outputPtr, outputPixelStride, previousFrameNr,
+            outDirtyRect);
+}
+
+template <typename Pixel>
+long FrameSequenceState_webp::drawPixels(int frameNr,
+        Pixel* outputPtr, int outputPixelStride, int previousFrameNr,
+        PixelRect* outDirtyRect) {
+    const WebPDemuxer* demux = mFrameSequence.getDemuxer();
     ALOG_ASSERT(demux, "Cannot drawFrame, mDemux is NULL");
 
 #if WEBP_DEBUG
     ALOGD("  drawFrame called for frame# %d, previous frame# %d", frameNr, previousFrameNr);
 #endif
 
-    const int canvasWidth = mFrameSequence.getWidth();
-    const int canvasHeight = mFrameSequence.getHeight();
+    const int canvasWidth = mWidth;
+    const int canvasHeight = mHeight;
 
     // Find the first frame to be decoded.
     int start = max(previousFrameNr + 1, 0);
@@ -311,15 +433,30 @@ long FrameSequenceState_webp::drawFrame(int frameNr,
         earliestRequired--;
     }
 
+    // A snapshot at or after the key frame saves decoding up to it.
+    const int keyframe = mKeyframeCache ? mKeyframeCache->findLatest(start, frameNr) : -1;
+    if (keyframe >= 0) {
+#if WEBP_DEBUG
+        ALOGD("      restoring snapshot of frame %d", keyframe);
+#endif
+        mKeyframeCache->restore(keyframe, outputPtr, outputPixelStride);
+        start = keyframe + 1;
+    }
+
+    // Changes since 'previousFrameNr', unless a key frame or snapshot redraws the whole canvas.
+    bool redrawn = keyframe >= 0;
+    PixelRect dirtyRect;
+    dirtyRect.setEmpty();
+
     WebPIterator currIter;
     WebPIterator prevIter;
     int ok = WebPDemuxGetFrame(demux, start, &currIter);  // Get frame number 'start - 1'.
     ALOG_ASSERT(ok, "Could not retrieve frame# %d", start - 1);
 
     // Use preserve buffer only if needed.
-    Color8888* prevBuffer = (frameNr == 0) ? outputPtr : mPreservedBuffer;
+    Pixel* prevBuffer = (frameNr == 0) ? outputPtr : (Pixel*) mPreservedBuffer;
     int prevStride = (frameNr == 0) ? outputPixelStride : canvasWidth;
-    Color8888* currBuffer = outputPtr;
+    Pixel* currBuffer = outputPtr;
     int currStride = outputPixelStride;
 
     for (int i = start; i <= frameNr; i++) {
@@ -333,7 +470,7 @@ long FrameSequenceState_webp::drawFrame(int frameNr,
               (currIter.blend_method == WEBP_MUX_BLEND) ? "yes" : "no", currIter.duration);
 #endif
         // We swap the prev/curr buffers as we go.
-        Color8888* tmpBuffer = prevBuffer;
+        Pixel* tmpBuffer = prevBuffer;
         prevBuffer = currBuffer;
         currBuffer = tmpBuffer;
 
@@ -347,12 +484,21 @@ long FrameSequenceState_webp::drawFrame(int frameNr,
 #endif
         // Process this frame.
         initializeFrame(currIter, currBuffer, currStride, prevIter, prevBuffer, prevStride);
+        if (mFrameSequence.isKeyFrame(i)) {
+            redrawn = true;
+        } else if (prevIter.dispose_method == WEBP_MUX_DISPOSE_BACKGROUND) {
+            joinSampledRect(dirtyRect, prevIter, mSampleSize);
+        }
 
         if (i == frameNr || !willBeCleared(currIter)) {
+            joinSampledRect(dirtyRect, currIter, mSampleSize);
             if (!decodeFrame(currIter, currBuffer, currStride, prevIter, prevBuffer, prevStride)) {
                 ALOGE("Error decoding frame# %d", i);
                 return -1;
             }
+            if (mKeyframeCache && mKeyframeCache->shouldSave(i)) {
+                mKeyframeCache->save(i, currBuffer, currStride);
+            }
         }
     }
 
@@ -360,6 +506,14 @@ long FrameSequenceState_webp::drawFrame(int frameNr,
         copyFrame(currBuffer, currStride, outputPtr, outputPixelStride, canvasWidth, canvasHeight);
     }
 
+    if (outDirtyRect) {
+        if (redrawn) {
+            outDirtyRect->set(0, 0, canvasWidth, canvasHeight);
+        } else {
+            *outDirtyRect = dirtyRect;
+        }
+    }
+
     // Return last frame's delay.
     const int frameCount = mFrameSequence.getFrameCount();
     const int lastFrame = (frameNr + frameCount - 1) % frameCount;
@@ -394,12 +548,108 @@ static FrameSequence* createFramesequence(Stream* stream) {
     return new FrameSequence_webp(stream);
 }
 
+// Walks the RIFF chunks, reading only chunk headers and frame headers and skipping all payloads.
+static bool probeWebP(Stream* stream, FrameSequenceInfo* info) {
+    // enough of a VP8/VP8L chunk for WebPGetFeatures to find the dimensions and alpha
+    static const size_t kBitstreamHeaderSize = 30;
+    static const size_t kVP8XChunkSize = 10;
+    static const size_t kANIMChunkSize = 6;
+    static const size_t kANMFHeaderSize = 16;
+
+    uint8_t header[CHUNK_HEADER_SIZE + kBitstreamHeaderSize];
+    if (stream->read(header, RIFF_HEADER_SIZE) != RIFF_HEADER_SIZE) {
+        return false;
+    }
+    uint32_t riffSize = GetLE32(header + TAG_SIZE);
+    if (riffSize < TAG_SIZE || riffSize > MAX_CHUNK_PAYLOAD) {
+        return false;
+    }
+
+    bool extendedFormat = false;
+    bool animated = false;
+    size_t remaining = riffSize - TAG_SIZE;
+    while (remaining >= CHUNK_HEADER_SIZE) {
+        if (stream->read(header, CHUNK_HEADER_SIZE) != CHUNK_HEADER_SIZE) {
+            return false;
+        }
+        remaining -= CHUNK_HEADER_SIZE;
+        const uint32_t fourcc = GetLE32(header);
+        const uint32_t payloadSize = GetLE32(header + TAG_SIZE);
+        const size_t paddedSize = (size_t) payloadSize + (payloadSize & 1);
+        if (paddedSize > remaining) {
+            return false;
+        }
+
+        size_t headerSize = 0;
+        uint8_t* payload = header + CHUNK_HEADER_SIZE;
+        if (fourcc == MKFOURCC('V', 'P', '8', 'X') && payloadSize >= kVP8XChunkSize) {
+            headerSize = kVP8XChunkSize;
+        } else if (fourcc == MKFOURCC('A', 'N', 'I', 'M') && payloadSize >= kANIMChunkSize) {
+            headerSize = kANIMChunkSize;
+        } else if (fourcc == MKFOURCC('A', 'N', 'M', 'F') && payloadSize >= kANMFHeaderSize) {
+            headerSize = kANMFHeaderSize;
+        } else if (fourcc == MKFOURCC('V', 'P', '8', ' ')
+                || fourcc == MKFOURCC('V', 'P', '8', 'L')) {
+            headerSize = min((size_t) payloadSize, kBitstreamHeaderSize);
+        }
+        if (stream->read(payload, headerSize) != headerSize) {
+            return false;
+        }
+
+        switch (fourcc) {
+        case MKFOURCC('V', 'P', '8', 'X'):
+            if (headerSize) {
+                extendedFormat = true;
+                animated = payload[0] & ANIMATION_FLAG;
+                info->opaque = !(payload[0] & ALPHA_FLAG);
+                info->width = 1 + GetLE24(payload + 4);
+                info->height = 1 + GetLE24(payload + 7);
+            }
+            break;
+        case MKFOURCC('A', 'N', 'I', 'M'):
+            if (headerSize) {
+                info->loopCount = GetLE16(payload + 4);
+            }
+            break;
+        case MKFOURCC('A', 'N', 'M', 'F'):
+            if (headerSize && animated) {
+                info->addFrame(GetLE24(payload + 12));
+            }
+            break;
+        case MKFOURCC('V', 'P', '8', ' '):
+        case MKFOURCC('V', 'P', '8', 'L'):
+            if (!animated && !info->frameCount) {
+                if (!extendedFormat) {
+                    WebPBitstreamFeatures features;
+                    if (WebPGetFeatures(header, CHUNK_HEADER_SIZE + headerSize, &features)
+                            != VP8_STATUS_OK) {
+                        return false;
+                    }
+                    info->width = features.width;
+                    info->height = features.height;
+                    info->opaque = !features.has_alpha;
+                }
+                info->addFrame(0);
+            }
+            break;
+        }
+
+        if (stream->skip(paddedSize - headerSize) != paddedSize - headerSize) {
+            return false;
+        }
+        remaining -= paddedSize;
+    }
+    return true;
+}
+
 static RegistryEntry gEntry = {
         RIFF_HEADER_SIZE,
         isWebP,
         createFramesequence,
         NULL,
         acceptsWebPBuffer,
+        probeWebP,
+        NULL,
 };
 static Registry gRegister(gEntry);
 
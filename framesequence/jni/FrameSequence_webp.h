@@ -24,6 +24,7 @@
 #include "Stream.h"
 #include "Color.h"
 #include "FrameSequence.h"
+#include "KeyframeCache.h"
 
 // Parser for a possibly-animated WebP bitstream.
 class FrameSequence_webp : public FrameSequence {
@@ -64,9 +65,16 @@ public:
         return mRawByteBuffer;
     }
 
-    virtual FrameSequenceState* createState() const;
+    virtual size_t getAllocationSize() const;
 
-    WebPDemuxer* getDemuxer() const { return mDemux; }
+    virtual long getFrameDelay(int frameNr) const;
+
+    virtual bool coversCanvas(int frameNr) const;
+
+    virtual FrameSequenceState* createState(int sampleSize, PixelFormat format) const;
+
+    // shared by all states, the demuxer is only read once the sequence is created
+    const WebPDemuxer* getDemuxer() const { return mDemux; }
 
     bool isKeyFrame(size_t frameNr) const { return mIsKeyFrame[frameNr]; }
 
@@ -85,22 +93,61 @@ private:
 // Produces frames of a possibly-animated WebP file for display.
 class FrameSequenceState_webp : public FrameSequenceState {
 public:
-    FrameSequenceState_webp(const FrameSequence_webp& frameSequence);
+    FrameSequenceState_webp(const FrameSequence_webp& frameSequence, int sampleSize,
+            PixelFormat format);
     virtual ~FrameSequenceState_webp();
 
     // Returns frame's delay time in milliseconds.
     virtual long drawFrame(int frameNr,
-            Color8888* outputPtr, int outputPixelStride, int previousFrameNr);
+            void* outputPtr, int outputPixelStride, int previousFrameNr,
+            PixelRect* outDirtyRect);
+
+    virtual PixelFormat getPixelFormat() const {
+        return mPixelFormat;
+    }
+
+    virtual int getFrameCount() const {
+        return mFrameSequence.getFrameCount();
+    }
+
+    virtual long getFrameDelay(int frameNr) const {
+        return mFrameSequence.getFrameDelay(frameNr);
+    }
+
+    virtual int getWidth() const {
+        return mWidth;
+    }
+
+    virtual int getHeight() const {
+        return mHeight;
+    }
+
+    virtual void setKeyframeCacheSize(size_t maxBytes);
+
+    virtual void trim();
+
+    virtual size_t getAllocationSize() const;
 
 private:
-    void initializeFrame(const WebPIterator& currIter, Color8888* currBuffer, int currStride,
-            const WebPIterator& prevIter, const Color8888* prevBuffer, int prevStride);
-    bool decodeFrame(const WebPIterator& iter, Color8888* currBuffer, int currStride,
-            const WebPIterator& prevIter, const Color8888* prevBuffer, int prevStride);
+    template <typename Pixel>
+    long drawPixels(int frameNr, Pixel* outputPtr, int outputPixelStride, int previousFrameNr,
+            PixelRect* outDirtyRect);
+    template <typename Pixel>
+    void initializeFrame(const WebPIterator& currIter, Pixel* currBuffer, int currStride,
+            const WebPIterator& prevIter, const Pixel* prevBuffer, int prevStride);
+    template <typename Pixel>
+    bool decodeFrame(const WebPIterator& iter, Pixel* currBuffer, int currStride,
+            const WebPIterator& prevIter, const Pixel* prevBuffer, int prevStride);
 
     const FrameSequence_webp& mFrameSequence;
+    const PixelFormat mPixelFormat;
+    // Output canvas, sampling every mSampleSize-th pixel of the sequence's canvas.
+    const int mSampleSize;
+    const int mWidth;
+    const int mHeight;
     WebPDecoderConfig mDecoderConfig;
-    Color8888* mPreservedBuffer;
+    uint8_t* mPreservedBuffer;
+    KeyframeCache* mKeyframeCache;
 };
 
 #endif //RASTERMILL_FRAMESQUENCE_WEBP_H
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "KeyframeCache.h"
+
+#include <string.h>
+
+#include "utils/math.h"
+
+KeyframeCache::KeyframeCache(int width, int height, int bytesPerPixel, int frameCount,
+        size_t maxBytes)
+        : mWidth(width)
+        , mHeight(height)
+        , mBytesPerPixel(bytesPerPixel)
+        , mInterval(0)
+        , mSnapshotCount(0)
+        , mSnapshots(NULL) {
+    const size_t canvasBytes = (size_t) width * height * bytesPerPixel;
+    const size_t maxSnapshots = canvasBytes ? maxBytes / canvasBytes : 0;
+    if (!maxSnapshots || frameCount <= 0) {
+        return;
+    }
+
+    mInterval = (int) ((frameCount + maxSnapshots - 1) / maxSnapshots);
+    mSnapshotCount = (frameCount + mInterval - 1) / mInterval;
+    mSnapshots = new uint8_t*[mSnapshotCount];
+    memset(mSnapshots, 0, mSnapshotCount * sizeof(uint8_t*));
+}
+
+KeyframeCache::~KeyframeCache() {
+    clear();
+    delete[] mSnapshots;
+}
+
+bool KeyframeCache::shouldSave(int frameNr) const {
+    // frames added to a loading sequence after the cache was sized aren't snapshotted
+    return isEnabled() && frameNr % mInterval == 0 && frameNr / mInterval < mSnapshotCount
+            && !mSnapshots[frameNr / mInterval];
+}
+
+void KeyframeCache::save(int frameNr, const void* src, int srcPixelStride) {
+    const int rowBytes = mWidth * mBytesPerPixel;
+    const int srcStrideBytes = srcPixelStride * mBytesPerPixel;
+    uint8_t*& snapshot = mSnapshots[frameNr / mInterval];
+    if (!snapshot) {
+        snapshot = new uint8_t[rowBytes * mHeight];
+    }
+    for (int y = 0; y < mHeight; y++) {
+        memcpy(snapshot + rowBytes * y, (const uint8_t*) src + srcStrideBytes * y, rowBytes);
+    }
+}
+
+int KeyframeCache::findLatest(int minFrameNr, int maxFrameNr) const {
+    if (!isEnabled() || maxFrameNr < 0) {
+        return -1;
+    }
+    for (int i = min(maxFrameNr / mInterval, mSnapshotCount - 1);
+            i >= 0 && i * mInterval >= minFrameNr; i--) {
+        if (mSnapshots[i]) {
+            return i * mInterval;
+        }
+    }
+    return -1;
+}
+
+void KeyframeCache::restore(int frameNr, void* dst, int dstPixelStride) const {
+    const int rowBytes = mWidth * mBytesPerPixel;
+    const int dstStrideBytes = dstPixelStride * mBytesPerPixel;
+    const uint8_t* snapshot = mSnapshots[frameNr / mInterval];
+    for (int y = 0; y < mHeight; y++) {
+        memcpy((uint8_t*) dst + dstStrideBytes * y, snapshot + rowBytes * y, rowBytes);
+    }
+}
+
+size_t KeyframeCache::getMaxSize() const {
+    return (size_t) mSnapshotCount * (mWidth * mHeight * mBytesPerPixel + sizeof(uint8_t*));
+}
+
+void KeyframeCache::clear() {
+    for (int i = 0; i < mSnapshotCount; i++) {
+        delete[] mSnapshots[i];
+        mSnapshots[i] = NULL;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef RASTERMILL_KEYFRAME_CACHE_H
+#define RASTERMILL_KEYFRAME_CACHE_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+/**
+ * Snapshots of fully composed canvases, used by frame sequence states as restore points so that
+ * drawing an arbitrary frame doesn't require replaying every frame before it.
+ *
+ * Snapshots are taken at evenly spaced frames, spaced so that a snapshot of every candidate frame
+ * fits within the byte budget. Drawing any frame then costs at most one restore plus the deltas
+ * up to the next snapshot interval.
+ */
+class KeyframeCache {
+public:
+    KeyframeCache(int width, int height, int bytesPerPixel, int frameCount, size_t maxBytes);
+    ~KeyframeCache();
+
+    // false if the budget can't hold a single canvas, in which case nothing is ever cached
+    bool isEnabled() const { return mInterval > 0; }
+
+    // true if frameNr is a snapshot candidate that hasn't been saved yet
+    bool shouldSave(int frameNr) const;
+
+    void save(int frameNr, const void* src, int srcPixelStride);
+
+    /**
+     * Returns the latest snapshotted frame in [minFrameNr, maxFrameNr], or -1 if there is none
+     */
+    int findLatest(int minFrameNr, int maxFrameNr) const;
+
+    void restore(int frameNr, void* dst, int dstPixelStride) const;
+
+    // frees all snapshots, they are taken again as frames are drawn
+    void clear();
+
+    // bytes held once every snapshot is taken
+    size_t getMaxSize() const;
+
+private:
+    const int mWidth;
+    const int mHeight;
+    const int mBytesPerPixel;
+    int mInterval;
+    int mSnapshotCount;
+    uint8_t** mSnapshots;
+};
+
+#endif // RASTERMILL_KEYFRAME_CACHE_H
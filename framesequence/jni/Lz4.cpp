@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "Lz4.h"
+
+#include <string.h>
+
+#include "utils/math.h"
+
+// A block is a series of sequences, each a token byte (literal length in the high nibble, match
+// length - kMinMatch in the low one), extra literal length bytes, the literals, a little endian
+// 16 bit match offset and extra match length bytes. The last sequence is literals only.
+static const size_t kMinMatch = 4;
+// the format requires the last 5 bytes to be literals, and no match to start in the last 12
+static const size_t kLastLiterals = 5;
+static const size_t kMatchStartLimit = 12;
+static const size_t kMaxOffset = 65535;
+static const int kHashBits = 12;
+// after this many misses, the search starts skipping ahead through incompressible data
+static const int kSkipTrigger = 6;
+
+static inline uint32_t read32(const uint8_t* p) {
+    uint32_t value;
+    memcpy(&value, p, sizeof(value));
+    return value;
+}
+
+static inline uint32_t hash(uint32_t sequence) {
+    return (sequence * 2654435761U) >> (32 - kHashBits);
+}
+
+size_t lz4CompressBound(size_t srcSize) {
+    return srcSize + srcSize / 255 + 16;
+}
+
+// writes a length continuation, returns NULL if it doesn't fit
+static uint8_t* writeLength(uint8_t* op, const uint8_t* oend, size_t length) {
+    for (; length >= 255; length -= 255) {
+        if (op >= oend) return NULL;
+        *op++ = 255;
+    }
+    if (op >= oend) return NULL;
+    *op++ = (uint8_t) length;
+    return op;
+}
+
+// writes a sequence, or only literals if matchLength is 0, returns NULL if it doesn't fit
+static uint8_t* writeSequence(uint8_t* op, const uint8_t* oend, const uint8_t* literals,
+        size_t literalLength, size_t offset, size_t matchLength) {
+    if (op >= oend) return NULL;
+    uint8_t* token = op++;
+    *token = (uint8_t) (min(literalLength, (size_t) 15) << 4);
+    if (literalLength >= 15 && !(op = writeLength(op, oend, literalLength - 15))) return NULL;
+    if ((size_t) (oend - op) < literalLength) return NULL;
+    memcpy(op, literals, literalLength);
+    op += literalLength;
+
+    if (!matchLength) return op;
+
+    if (oend - op < 2) return NULL;
+    *op++ = (uint8_t) offset;
+    *op++ = (uint8_t) (offset >> 8);
+    const size_t length = matchLength - kMinMatch;
+    *token |= (uint8_t) min(length, (size_t) 15);
+    if (length >= 15 && !(op = writeLength(op, oend, length - 15))) return NULL;
+    return op;
+}
+
+size_t lz4Compress(const uint8_t* src, size_t srcSize, uint8_t* dst, size_t dstCapacity) {
+    uint32_t table[1 << kHashBits];
+    memset(table, 0, sizeof(table));
+
+    const uint8_t* const end = src + srcSize;
+    const uint8_t* const oend = dst + dstCapacity;
+    const uint8_t* anchor = src;
+    uint8_t* op = dst;
+
+    if (srcSize > kMatchStartLimit) {
+        const uint8_t* const matchLimit = end - kLastLiterals;
+        const uint8_t* const startLimit = end - kMatchStartLimit;
+        const uint8_t* ip = src;
+        int misses = 0;
+        while (ip < startLimit) {
+            const uint32_t sequence = read32(ip);
+            const uint32_t h = hash(sequence);
+            const uint8_t* candidate = src + table[h];
+            table[h] = (uint32_t) (ip - src);
+            if (candidate >= ip || (size_t) (ip - candidate) > kMaxOffset
+                    || read32(candidate) != sequence) {
+                ip += 1 + (misses++ >> kSkipTrigger);
+                continue;
+            }
+
+            size_t matchLength = kMinMatch;
+            while (ip + matchLength < matchLimit && candidate[matchLength] == ip[matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(op, oend, anchor, ip - anchor, ip - candidate, matchLength);
+            if (!op) return 0;
+            ip += matchLength;
+            anchor = ip;
+            misses = 0;
+        }
+    }
+
+    op = writeSequence(op, oend, anchor, end - anchor, 0, 0);
+    return op ? op - dst : 0;
+}
+
+// reads a length continuation, returns false if the input ends first
+static bool readLength(const uint8_t*& ip, const uint8_t* iend, size_t& length) {
+    uint8_t byte;
+    do {
+        if (ip >= iend) return false;
+        byte = *ip++;
+        length += byte;
+    } while (byte == 255);
+    return true;
+}
+
+bool lz4Decompress(const uint8_t* src, size_t srcSize, uint8_t* dst, size_t dstSize) {
+    const uint8_t* ip = src;
+    const uint8_t* const iend = src + srcSize;
+    uint8_t* op = dst;
+    uint8_t* const oend = dst + dstSize;
+
+    while (ip < iend) {
+        const uint8_t token = *ip++;
+
+        size_t literalLength = token >> 4;
+        if (literalLength == 15 && !readLength(ip, iend, literalLength)) return false;
+        if (literalLength > (size_t) (iend - ip) || literalLength > (size_t) (oend - op)) {
+            return false;
+        }
+        memcpy(op, ip, literalLength);
+        ip += literalLength;
+        op += literalLength;
+
+        if (ip == iend) break; // last sequence
+
+        if (iend - ip < 2) return false;
+        const size_t offset = ip[0] | (ip[1] << 8);
+        ip += 2;
+        if (!offset || offset > (size_t) (op - dst)) return false;
+
+        size_t matchLength = token & 15;
+        if (matchLength == 15 && !readLength(ip, iend, matchLength)) return false;
+        matchLength += kMinMatch;
+        if (matchLength > (size_t) (oend - op)) return false;
+
+        // copy in chunks that don't overlap their source, doubling as the copied run grows -
+        // runs of a repeated pixel have an offset of a single pixel
+        const uint8_t* match = op - offset;
+        while (matchLength) {
+            const size_t chunk = min(matchLength, (size_t) (op - match));
+            memcpy(op, match, chunk);
+            op += chunk;
+            matchLength -= chunk;
+        }
+    }
+    return op == oend;
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef RASTERMILL_LZ4_H
+#define RASTERMILL_LZ4_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+/**
+ * Compressor and decompressor for the LZ4 block format, used by the fast play container. Both
+ * work on whole blocks in memory; decompression validates its input, as it may come from an
+ * untrusted file.
+ */
+
+// worst case compressed size of srcSize bytes
+size_t lz4CompressBound(size_t srcSize);
+
+/**
+ * Compresses srcSize bytes into dst, returning the compressed size, or 0 if it exceeds
+ * dstCapacity
+ */
+size_t lz4Compress(const uint8_t* src, size_t srcSize, uint8_t* dst, size_t dstCapacity);
+
+/**
+ * Decompresses a block into dst, returning false unless the block is well formed and expands to
+ * exactly dstSize bytes
+ */
+bool lz4Decompress(const uint8_t* src, size_t srcSize, uint8_t* dst, size_t dstSize);
+
+#endif // RASTERMILL_LZ4_H
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "PixelKernels.h"
+
+#if defined(__x86_64__) || defined(__i386__)
+#include <immintrin.h>
+#endif
+
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+#include <arm_neon.h>
+#endif
+
+////////////////////////////////////////////////////////////////////////////////
+// Scalar
+////////////////////////////////////////////////////////////////////////////////
+
+static void paletteLineScalar(Color8888* dst, const uint8_t* src, const Color8888* palette,
+        int colorCount, int transparent, int width) {
+    for (; width > 0; width--, src++, dst++) {
+        if (*src != transparent && *src < colorCount) {
+            *dst = palette[*src];
+        }
+    }
+}
+
+static void fillLineScalar(Color8888* dst, Color8888 color, int width) {
+    for (; width > 0; width--, dst++) {
+        *dst = color;
+    }
+}
+
+static void underlayLineScalar(Color8888* dst, const Color8888* src, int width) {
+    for (; width > 0; width--, src++, dst++) {
+        if (!(*dst & COLOR_8888_ALPHA_MASK)) {
+            *dst = *src;
+        }
+    }
+}
+
+static const PixelKernels gScalarKernels = {
+    "scalar",
+    paletteLineScalar,
+    fillLineScalar,
+    underlayLineScalar,
+};
+
+////////////////////////////////////////////////////////////////////////////////
+// SSE2 - baseline on x86_64, and on x86 for Android
+////////////////////////////////////////////////////////////////////////////////
+
+#if defined(__SSE2__)
+
+static void fillLineSse2(Color8888* dst, Color8888 color, int width) {
+    const __m128i colors = _mm_set1_epi32(color);
+    for (; width >= 4; width -= 4, dst += 4) {
+        _mm_storeu_si128((__m128i*) dst, colors);
+    }
+    fillLineScalar(dst, color, width);
+}
+
+static void underlayLineSse2(Color8888* dst, const Color8888* src, int width) {
+    const __m128i alphaMask = _mm_set1_epi32(COLOR_8888_ALPHA_MASK);
+    const __m128i zero = _mm_setzero_si128();
+    for (; width >= 4; width -= 4, src += 4, dst += 4) {
+        const __m128i d = _mm_loadu_si128((const __m128i*) dst);
+        const __m128i s = _mm_loadu_si128((const __m128i*) src);
+        const __m128i transparent = _mm_cmpeq_epi32(_mm_and_si128(d, alphaMask), zero);
+        _mm_storeu_si128((__m128i*) dst,
+                _mm_or_si128(_mm_and_si128(transparent, s), _mm_andnot_si128(transparent, d)));
+    }
+    underlayLineScalar(dst, src, width);
+}
+
+// without a gather instruction, palette lookups stay scalar
+static const PixelKernels gSse2Kernels = {
+    "sse2",
+    paletteLineScalar,
+    fillLineSse2,
+    underlayLineSse2,
+};
+
+#endif // __SSE2__
+
+////////////////////////////////////////////////////////////////////////////////
+// AVX2 - selected at runtime on x86
+////////////////////////////////////////////////////////////////////////////////
+
+#if defined(__x86_64__) || defined(__i386__)
+
+#define AVX2_TARGET __attribute__((target("avx2")))
+
+AVX2_TARGET
+static void paletteLineAvx2(Color8888* dst, const uint8_t* src, const Color8888* palette,
+        int colorCount, int transparent, int width) {
+    const __m256i transparentIndex = _mm256_set1_epi32(transparent);
+    const __m256i indexLimit = _mm256_set1_epi32(colorCount);
+    for (; width >= 8; width -= 8, src += 8, dst += 8) {
+        const __m256i indices = _mm256_cvtepu8_epi32(_mm_loadl_epi64((const __m128i*) src));
+        // lanes to write: index != transparent && index < colorCount
+        const __m256i write = _mm256_andnot_si256(
+                _mm256_cmpeq_epi32(indices, transparentIndex),
+                _mm256_cmpgt_epi32(indexLimit, indices));
+        const __m256i previous = _mm256_loadu_si256((const __m256i*) dst);
+        const __m256i colors = _mm256_mask_i32gather_epi32(previous, (const int*) palette,
+                indices, write, sizeof(Color8888));
+        _mm256_storeu_si256((__m256i*) dst, colors);
+    }
+    paletteLineScalar(dst, src, palette, colorCount, transparent, width);
+}
+
+AVX2_TARGET
+static void fillLineAvx2(Color8888* dst, Color8888 color, int width) {
+    const __m256i colors = _mm256_set1_epi32(color);
+    for (; width >= 8; width -= 8, dst += 8) {
+        _mm256_storeu_si256((__m256i*) dst, colors);
+    }
+    fillLineScalar(dst, color, width);
+}
+
+AVX2_TARGET
+static void underlayLineAvx2(Color8888* dst, const Color8888* src, int width) {
+    const __m256i alphaMask = _mm256_set1_epi32(COLOR_8888_ALPHA_MASK);
+    const __m256i zero = _mm256_setzero_si256();
+    for (; width >= 8; width -= 8, src += 8, dst += 8) {
+        const __m256i d = _mm256_loadu_si256((const __m256i*) dst);
+        const __m256i s = _mm256_loadu_si256((const __m256i*) src);
+        const __m256i transparent = _mm256_cmpeq_epi32(_mm256_and_si256(d, alphaMask), zero);
+        _mm256_storeu_si256((__m256i*) dst, _mm256_blendv_epi8(d, s, transparent));
+    }
+    underlayLineScalar(dst, src, width);
+}
+
+static const PixelKernels gAvx2Kernels = {
+    "avx2",
+    paletteLineAvx2,
+    fillLineAvx2,
+    underlayLineAvx2,
+};
+
+#endif // __x86_64__ || __i386__
+
+////////////////////////////////////////////////////////////////////////////////
+// NEON - always present on arm64, and required by the armeabi-v7a build
+////////////////////////////////////////////////////////////////////////////////
+
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+
+static void fillLineNeon(Color8888* dst, Color8888 color, int width) {
+    const uint32x4_t colors = vdupq_n_u32(color);
+    for (; width >= 4; width -= 4, dst += 4) {
+        vst1q_u32(dst, colors);
+    }
+    fillLineScalar(dst, color, width);
+}
+
+static void underlayLineNeon(Color8888* dst, const Color8888* src, int width) {
+    const uint32x4_t alphaMask = vdupq_n_u32(COLOR_8888_ALPHA_MASK);
+    for (; width >= 4; width -= 4, src += 4, dst += 4) {
+        const uint32x4_t d = vld1q_u32(dst);
+        const uint32x4_t s = vld1q_u32(src);
+        // all ones where alpha is non-zero, keeping the destination there
+        const uint32x4_t visible = vtstq_u32(d, alphaMask);
+        vst1q_u32(dst, vbslq_u32(visible, d, s));
+    }
+    underlayLineScalar(dst, src, width);
+}
+
+// table lookups only reach 64 bytes, so palette lookups stay scalar
+static const PixelKernels gNeonKernels = {
+    "neon",
+    paletteLineScalar,
+    fillLineNeon,
+    underlayLineNeon,
+};
+
+#endif // __ARM_NEON__ || __ARM_NEON
+
+////////////////////////////////////////////////////////////////////////////////
+// Selection
+////////////////////////////////////////////////////////////////////////////////
+
+static const PixelKernels& selectPixelKernels() {
+#if defined(__x86_64__) || defined(__i386__)
+    // may run before the compiler runtime's own initialization
+    __builtin_cpu_init();
+    if (__builtin_cpu_supports("avx2")) {
+        return gAvx2Kernels;
+    }
+#endif
+#if defined(__SSE2__)
+    return gSse2Kernels;
+#elif defined(__ARM_NEON__) || defined(__ARM_NEON)
+    return gNeonKernels;
+#else
+    return gScalarKernels;
+#endif
+}
+
+static const PixelKernels& gPixelKernels = selectPixelKernels();
+
+const PixelKernels& getPixelKernels() {
+    return gPixelKernels;
+}
+
+const PixelKernels& getScalarPixelKernels() {
+    return gScalarKernels;
+}
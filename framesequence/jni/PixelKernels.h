@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef RASTERMILL_PIXEL_KERNELS_H
+#define RASTERMILL_PIXEL_KERNELS_H
+
+#include <stdint.h>
+
+#include "Color.h"
+
+/**
+ * Row kernels for the inner loops of the decoders, with vectorized implementations picked for
+ * the CPU at load time
+ */
+struct PixelKernels {
+    const char* name;
+
+    /**
+     * Sets dst[i] to palette[src[i]], leaving pixels whose index is transparent or not below
+     * colorCount untouched. The palette must have 256 entries, even if fewer colors are valid.
+     */
+    void (*paletteLine)(Color8888* dst, const uint8_t* src, const Color8888* palette,
+            int colorCount, int transparent, int width);
+
+    // sets width pixels to color
+    void (*fillLine)(Color8888* dst, Color8888 color, int width);
+
+    // replaces the pixels of dst with zero alpha by the pixels of src
+    void (*underlayLine)(Color8888* dst, const Color8888* src, int width);
+};
+
+// kernels for the current CPU
+const PixelKernels& getPixelKernels();
+
+// portable reference kernels, for comparison in benchmarks
+const PixelKernels& getScalarPixelKernels();
+
+#endif // RASTERMILL_PIXEL_KERNELS_H
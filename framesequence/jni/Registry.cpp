@@ -17,6 +17,7 @@
 #include "Registry.h"
 
 #include "Stream.h"
+#include "utils/math.h"
 
 static Registry* gHead = 0;
 static int gHeaderBytesRequired = 0;
@@ -36,8 +37,13 @@ const RegistryEntry* Registry::Find(Stream* stream) {
     Registry* registry = gHead;
 
     if (stream->getRawBuffer() != NULL) {
+        // check the header in place, peeking would advance the raw buffer
+        const int headerSize = min(gHeaderBytesRequired, stream->getRawBufferSize());
+        void* header = stream->getRawBufferAddr();
         while (registry) {
-            if (registry->mImpl.acceptsBuffer()) {
+            if (registry->mImpl.acceptsBuffer()
+                    && headerSize >= registry->mImpl.requiredHeaderBytes
+                    && registry->mImpl.checkHeader(header, headerSize)) {
                 return &(registry->mImpl);
             }
             registry = registry->mNext;
@@ -56,4 +62,3 @@ const RegistryEntry* Registry::Find(Stream* stream) {
     }
     return 0;
 }
-
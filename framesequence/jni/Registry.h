@@ -21,6 +21,7 @@
 #include <stdint.h>
 
 class FrameSequence;
+struct FrameSequenceInfo;
 class Decoder;
 class Stream;
 
@@ -30,6 +31,9 @@ struct RegistryEntry {
     FrameSequence* (*createFrameSequence)(Stream* stream);
     Decoder* (*createDecoder)(Stream* stream);
     bool (*acceptsBuffer)();
+    bool (*probe)(Stream* stream, FrameSequenceInfo* info);
+    // may be NULL if the type can't be drawn before all of its data has arrived
+    FrameSequence* (*createProgressiveFrameSequence)(Stream* stream);
 };
 
 /**
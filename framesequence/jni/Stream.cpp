@@ -79,6 +79,41 @@ size_t Stream::read(void* buffer, size_t size) {
     return bytes_read;
 }
 
+size_t Stream::skip(size_t size) {
+    size_t bytes_skipped = 0;
+    size_t peek_remaining = mPeekSize - mPeekOffset;
+    if (peek_remaining) {
+        bytes_skipped = min(size, peek_remaining);
+        mPeekOffset += bytes_skipped;
+        if (mPeekOffset == mPeekSize) {
+            delete[] mPeekBuffer;
+            mPeekBuffer = 0;
+            mPeekOffset = 0;
+            mPeekSize = 0;
+        }
+        size -= bytes_skipped;
+    }
+    if (size) {
+        bytes_skipped += doSkip(size);
+    }
+    return bytes_skipped;
+}
+
+size_t Stream::doSkip(size_t size) {
+    char buffer[4096];
+    size_t bytes_skipped = 0;
+    while (size) {
+        size_t requested = min(size, sizeof(buffer));
+        size_t bytes_read = doRead(buffer, requested);
+        bytes_skipped += bytes_read;
+        size -= bytes_read;
+        if (bytes_read < requested) {
+            break;
+        }
+    }
+    return bytes_skipped;
+}
+
 uint8_t* Stream::getRawBufferAddr() {
     return NULL;
 }
@@ -115,6 +150,13 @@ size_t MemoryStream::doRead(void* buffer, size_t size) {
     return size;
 }
 
+size_t MemoryStream::doSkip(size_t size) {
+    size = min(size, mRemaining);
+    mBuffer += size;
+    mRemaining -= size;
+    return size;
+}
+
 size_t FileStream::doRead(void* buffer, size_t size) {
     return fread(buffer, 1, size, mFd);
 }
@@ -128,7 +170,8 @@ size_t JavaInputStream::doRead(void* dstBuffer, size_t size) {
         jint bytesRead = mEnv->CallIntMethod(mInputStream,
                 gInputStreamClassInfo.read, mByteArray, 0, requested);
         if (mEnv->ExceptionCheck() || bytesRead < 0) {
-            return 0;
+            // report what was read before the end of the stream, callers treat a short read as EOF
+            return totalBytesRead;
         }
 
         mEnv->GetByteArrayRegion(mByteArray, 0, bytesRead, (jbyte*)dstBuffer);
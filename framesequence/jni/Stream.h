@@ -28,12 +28,14 @@ public:
 
     size_t peek(void* buffer, size_t size);
     size_t read(void* buffer, size_t size);
+    size_t skip(size_t size);
     virtual uint8_t* getRawBufferAddr();
     virtual jobject getRawBuffer();
     virtual int getRawBufferSize();
 
 protected:
     virtual size_t doRead(void* buffer, size_t size) = 0;
+    virtual size_t doSkip(size_t size);
 
 private:
     char* mPeekBuffer;
@@ -53,6 +55,7 @@ public:
 
 protected:
     virtual size_t doRead(void* buffer, size_t size);
+    virtual size_t doSkip(size_t size);
 
 private:
     uint8_t* mBuffer;
@@ -0,0 +1,579 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Decodes a corpus of frame sequences through the registered decoders, reporting per file the
+ * construction time, percentiles of per frame draw times and the peak native heap in use. Built
+ * as a host binary by Android.bp, or on any Linux machine with giflib and libwebp with:
+ *
+ *   g++ -O2 -I.. -I$JAVA_HOME/include -I$JAVA_HOME/include/linux \
+ *       ../Stream.cpp ../FrameSequence.cpp ../Registry.cpp ../FrameSequence_gif.cpp \
+ *       ../FrameSequence_webp.cpp ../FrameSequence_fastplay.cpp ../KeyframeCache.cpp \
+ *       ../Lz4.cpp ../PixelKernels.cpp FrameSequenceBenchmark.cpp \
+ *       -lgif -lwebp -lwebpdemux -lpthread -o framesequence_benchmark
+ *
+ * jni.h is only needed for its types, nothing calls into a VM. Usage:
+ *
+ *   framesequence_benchmark [--loops N] [--sample-size N] [--rgb565] [--json] PATH...
+ *   framesequence_benchmark --check-concurrency [--sample-size N] [--rgb565] PATH...
+ *
+ * where each PATH is a file or a directory of files. --json prints a single JSON document
+ * instead of a table, to be saved and compared between builds.
+ *
+ * --check-concurrency instead checks that states of one sequence draw concurrently: frames 0,
+ * 25, 50 and 75 are drawn by parallel states on their own threads, and compared byte for byte
+ * with the same frames drawn serially. Exits with 1 if any differs. Meant to be run on a build
+ * with -fsanitize=thread added to the command above, to also catch races that happen not to
+ * corrupt the output.
+ */
+
+#include <dirent.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/resource.h>
+#include <sys/stat.h>
+#include <time.h>
+
+#if defined(__GLIBC__)
+#include <malloc.h>
+#endif
+
+#include "FrameSequence.h"
+#include "Stream.h"
+#include "utils/math.h"
+
+struct Options {
+    int loops;
+    int sampleSize;
+    PixelFormat format;
+    bool json;
+    bool checkConcurrency;
+};
+
+struct Percentiles {
+    double p50;
+    double p90;
+    double p99;
+    double max;
+    double mean;
+};
+
+struct Result {
+    const char* path;
+    // NULL on success
+    const char* error;
+    const char* type;
+    int width;
+    int height;
+    int frameCount;
+    size_t fileSize;
+    double constructMs;
+    Percentiles frameMs;
+    // peak heap in use while decoding, over the heap in use before construction
+    long peakHeapBytes;
+};
+
+static double nowMs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+// bytes of native heap in use, including large blocks served by mmap, or -1 where the C library
+// doesn't tell
+static long getHeapInUse() {
+#if defined(__GLIBC__) && (__GLIBC__ > 2 || (__GLIBC__ == 2 && __GLIBC_MINOR__ >= 33))
+    const struct mallinfo2 info = mallinfo2();
+    return (long) (info.uordblks + info.hblkhd);
+#elif defined(__GLIBC__)
+    const struct mallinfo info = mallinfo();
+    return (long) (unsigned) info.uordblks + (long) (unsigned) info.hblkhd;
+#else
+    return -1;
+#endif
+}
+
+static const char* getType(const uint8_t* data, size_t size) {
+    if (size >= 6 && !memcmp(data, "GIF", 3)) return "gif";
+    if (size >= 12 && !memcmp(data, "RIFF", 4) && !memcmp(data + 8, "WEBP", 4)) return "webp";
+    if (size >= 4 && !memcmp(data, "RMFP", 4)) return "fastplay";
+    return "unknown";
+}
+
+static int compareDoubles(const void* a, const void* b) {
+    const double x = *(const double*) a;
+    const double y = *(const double*) b;
+    return x < y ? -1 : x > y ? 1 : 0;
+}
+
+// nearest rank percentiles, sorts samples
+static Percentiles computePercentiles(double* samples, int count) {
+    Percentiles percentiles;
+    memset(&percentiles, 0, sizeof(percentiles));
+    if (!count) return percentiles;
+
+    qsort(samples, count, sizeof(double), compareDoubles);
+    double sum = 0;
+    for (int i = 0; i < count; i++) {
+        sum += samples[i];
+    }
+    percentiles.p50 = samples[(count * 50 + 99) / 100 - 1];
+    percentiles.p90 = samples[(count * 90 + 99) / 100 - 1];
+    percentiles.p99 = samples[(count * 99 + 99) / 100 - 1];
+    percentiles.max = samples[count - 1];
+    percentiles.mean = sum / count;
+    return percentiles;
+}
+
+// reads a whole file into a new[]'d buffer, returns NULL on failure
+static uint8_t* readFile(const char* path, size_t* outSize) {
+    FILE* file = fopen(path, "rb");
+    if (!file) return NULL;
+
+    uint8_t* data = NULL;
+    struct stat st;
+    if (!fstat(fileno(file), &st) && st.st_size > 0) {
+        data = new uint8_t[st.st_size];
+        if (fread(data, 1, st.st_size, file) != (size_t) st.st_size) {
+            delete[] data;
+            data = NULL;
+        }
+        *outSize = st.st_size;
+    }
+    fclose(file);
+    return data;
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Benchmark
+////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * Constructs the sequence from memory, as decodeByteArray does, then draws every frame in order
+ * for the given number of loops, each frame following the previous one in the same buffer as
+ * FrameSequenceDrawable does. Appends the frame times to allFrameMs, as far as they fit.
+ */
+static void benchmarkFile(const char* path, const Options& options, Result& result,
+        double* allFrameMs, int allFrameCapacity, int* allFrameCount) {
+    memset(&result, 0, sizeof(result));
+    result.path = path;
+    result.type = "unknown";
+
+    size_t size = 0;
+    uint8_t* data = readFile(path, &size);
+    if (!data) {
+        result.error = "unreadable";
+        return;
+    }
+    result.fileSize = size;
+    result.type = getType(data, size);
+
+    const long baseHeap = getHeapInUse();
+    long peakHeap = baseHeap;
+
+    double start = nowMs();
+    MemoryStream stream(data, size, NULL);
+    FrameSequence* frameSequence = FrameSequence::create(&stream);
+    result.constructMs = nowMs() - start;
+    if (!frameSequence) {
+        result.error = "unsupported or invalid";
+        delete[] data;
+        return;
+    }
+    peakHeap = max(peakHeap, getHeapInUse());
+
+    result.width = frameSequence->getWidth();
+    result.height = frameSequence->getHeight();
+    result.frameCount = frameSequence->getFrameCount();
+    if (options.format == PIXEL_FORMAT_565 && !frameSequence->isOpaque()) {
+        result.error = "not opaque, can't draw RGB_565";
+        delete frameSequence;
+        delete[] data;
+        return;
+    }
+
+    FrameSequenceState* state = frameSequence->createState(options.sampleSize, options.format);
+    const int width = getSampledSize(result.width, options.sampleSize);
+    const int height = getSampledSize(result.height, options.sampleSize);
+    uint8_t* output = new uint8_t[(size_t) width * height * getBytesPerPixel(options.format)];
+    peakHeap = max(peakHeap, getHeapInUse());
+
+    const int sampleCount = result.frameCount * options.loops;
+    double* frameMs = new double[sampleCount];
+    int previousFrameNr = -1;
+    for (int i = 0; i < sampleCount; i++) {
+        const int frameNr = i % result.frameCount;
+        start = nowMs();
+        state->drawFrame(frameNr, output, width, previousFrameNr, NULL);
+        frameMs[i] = nowMs() - start;
+        if (*allFrameCount < allFrameCapacity) {
+            allFrameMs[(*allFrameCount)++] = frameMs[i];
+        }
+        previousFrameNr = frameNr;
+        peakHeap = max(peakHeap, getHeapInUse());
+    }
+    result.frameMs = computePercentiles(frameMs, sampleCount);
+    result.peakHeapBytes = baseHeap < 0 ? -1 : peakHeap - baseHeap;
+
+    delete[] frameMs;
+    delete[] output;
+    delete state;
+    delete frameSequence;
+    delete[] data;
+}
+
+// returns the number of frames, or 0 if the file can't be decoded
+static int countFrames(const char* path) {
+    size_t size = 0;
+    uint8_t* data = readFile(path, &size);
+    if (!data) return 0;
+    FrameSequenceInfo info;
+    MemoryStream stream(data, size, NULL);
+    const int frameCount = FrameSequence::probe(&stream, &info) ? info.frameCount : 0;
+    delete[] data;
+    return frameCount;
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Concurrency check
+////////////////////////////////////////////////////////////////////////////////
+
+// frames drawn in parallel, wrapped around shorter sequences
+static const int kCheckedFrames[] = { 0, 25, 50, 75 };
+static const int kCheckedFrameCount = sizeof(kCheckedFrames) / sizeof(kCheckedFrames[0]);
+// times each thread draws its frame, to widen the window for races
+static const int kCheckRepeats = 4;
+
+struct DrawTask {
+    const FrameSequence* frameSequence;
+    const Options* options;
+    int frameNr;
+    uint8_t* output;
+    size_t outputSize;
+    bool failed;
+};
+
+// draws the task's frame from scratch with a state of its own, kCheckRepeats times
+static void* drawTask(void* arg) {
+    DrawTask* task = reinterpret_cast<DrawTask*>(arg);
+    FrameSequenceState* state = task->frameSequence->createState(task->options->sampleSize,
+            task->options->format);
+    const int width = getSampledSize(task->frameSequence->getWidth(),
+            task->options->sampleSize);
+    for (int i = 0; i < kCheckRepeats; i++) {
+        memset(task->output, 0, task->outputSize);
+        if (state->drawFrame(task->frameNr, task->output, width, -1, NULL) < 0) {
+            task->failed = true;
+        }
+    }
+    delete state;
+    return NULL;
+}
+
+/**
+ * Draws kCheckedFrames of one sequence serially, then again on parallel threads each with its
+ * own state, and compares the outputs. Returns NULL if they're identical, or the error.
+ */
+static const char* checkConcurrency(const char* path, const Options& options) {
+    size_t size = 0;
+    uint8_t* data = readFile(path, &size);
+    if (!data) return "unreadable";
+    MemoryStream stream(data, size, NULL);
+    FrameSequence* frameSequence = FrameSequence::create(&stream);
+    if (!frameSequence) {
+        delete[] data;
+        return "unsupported or invalid";
+    }
+    if (options.format == PIXEL_FORMAT_565 && !frameSequence->isOpaque()) {
+        delete frameSequence;
+        delete[] data;
+        return "not opaque, can't draw RGB_565";
+    }
+
+    const size_t outputSize = (size_t) getSampledSize(frameSequence->getWidth(),
+            options.sampleSize) * getSampledSize(frameSequence->getHeight(), options.sampleSize)
+            * getBytesPerPixel(options.format);
+    DrawTask serial[kCheckedFrameCount];
+    DrawTask parallel[kCheckedFrameCount];
+    for (int i = 0; i < kCheckedFrameCount; i++) {
+        DrawTask task;
+        task.frameSequence = frameSequence;
+        task.options = &options;
+        task.frameNr = kCheckedFrames[i] % frameSequence->getFrameCount();
+        task.outputSize = outputSize;
+        task.failed = false;
+        serial[i] = task;
+        serial[i].output = new uint8_t[outputSize];
+        parallel[i] = task;
+        parallel[i].output = new uint8_t[outputSize];
+    }
+
+    for (int i = 0; i < kCheckedFrameCount; i++) {
+        drawTask(&serial[i]);
+    }
+    pthread_t threads[kCheckedFrameCount];
+    int started = 0;
+    for (; started < kCheckedFrameCount; started++) {
+        if (pthread_create(&threads[started], NULL, drawTask, &parallel[started])) break;
+    }
+    for (int i = 0; i < started; i++) {
+        pthread_join(threads[i], NULL);
+    }
+
+    const char* error = started < kCheckedFrameCount ? "couldn't start threads" : NULL;
+    for (int i = 0; i < kCheckedFrameCount && !error; i++) {
+        if (serial[i].failed || parallel[i].failed) {
+            error = "draw failed";
+        } else if (memcmp(serial[i].output, parallel[i].output, outputSize)) {
+            error = "parallel draw differs from serial draw";
+        }
+    }
+
+    for (int i = 0; i < kCheckedFrameCount; i++) {
+        delete[] serial[i].output;
+        delete[] parallel[i].output;
+    }
+    delete frameSequence;
+    delete[] data;
+    return error;
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Corpus
+////////////////////////////////////////////////////////////////////////////////
+
+struct PathList {
+    char** paths;
+    int count;
+    int capacity;
+};
+
+static void addPath(PathList& list, const char* path) {
+    if (list.count == list.capacity) {
+        list.capacity = list.capacity ? list.capacity * 2 : 64;
+        char** grown = new char*[list.capacity];
+        if (list.paths) {
+            memcpy(grown, list.paths, list.count * sizeof(char*));
+        }
+        delete[] list.paths;
+        list.paths = grown;
+    }
+    list.paths[list.count++] = strdup(path);
+}
+
+static int comparePaths(const void* a, const void* b) {
+    return strcmp(*(char* const*) a, *(char* const*) b);
+}
+
+// adds path if it's a file, or the files directly in it, sorted for stable output
+static void collectPaths(PathList& list, const char* path) {
+    struct stat st;
+    if (stat(path, &st)) {
+        fprintf(stderr, "can't access %s\n", path);
+        return;
+    }
+    if (!S_ISDIR(st.st_mode)) {
+        addPath(list, path);
+        return;
+    }
+
+    DIR* dir = opendir(path);
+    if (!dir) {
+        fprintf(stderr, "can't open %s\n", path);
+        return;
+    }
+    const int first = list.count;
+    struct dirent* entry;
+    while ((entry = readdir(dir))) {
+        if (entry->d_name[0] == '.') continue;
+        char child[4096];
+        snprintf(child, sizeof(child), "%s/%s", path, entry->d_name);
+        if (!stat(child, &st) && S_ISREG(st.st_mode)) {
+            addPath(list, child);
+        }
+    }
+    closedir(dir);
+    qsort(list.paths + first, list.count - first, sizeof(char*), comparePaths);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Output
+////////////////////////////////////////////////////////////////////////////////
+
+static void printJsonString(const char* string) {
+    putchar('"');
+    for (const char* c = string; *c; c++) {
+        if (*c == '"' || *c == '\\') {
+            printf("\\%c", *c);
+        } else if ((unsigned char) *c < 0x20) {
+            printf("\\u%04x", *c);
+        } else {
+            putchar(*c);
+        }
+    }
+    putchar('"');
+}
+
+static void printJsonPercentiles(const Percentiles& percentiles) {
+    printf("{\"p50\": %.4f, \"p90\": %.4f, \"p99\": %.4f, \"max\": %.4f, \"mean\": %.4f}",
+            percentiles.p50, percentiles.p90, percentiles.p99, percentiles.max,
+            percentiles.mean);
+}
+
+static void printJson(const Options& options, const Result* results, int count,
+        const Percentiles& overall, int frameCount, long maxRssKb) {
+    printf("{\n  \"options\": {\"loops\": %d, \"sampleSize\": %d, \"format\": \"%s\"},\n",
+            options.loops, options.sampleSize,
+            options.format == PIXEL_FORMAT_565 ? "rgb565" : "rgba8888");
+    printf("  \"files\": [\n");
+    for (int i = 0; i < count; i++) {
+        const Result& result = results[i];
+        printf("    {\"path\": ");
+        printJsonString(result.path);
+        printf(", \"type\": \"%s\", \"bytes\": %zu", result.type, result.fileSize);
+        if (result.error) {
+            printf(", \"error\": ");
+            printJsonString(result.error);
+        } else {
+            printf(", \"width\": %d, \"height\": %d, \"frames\": %d, \"constructMs\": %.4f,"
+                    " \"peakHeapBytes\": %ld, \"frameMs\": ",
+                    result.width, result.height, result.frameCount, result.constructMs,
+                    result.peakHeapBytes);
+            printJsonPercentiles(result.frameMs);
+        }
+        printf("}%s\n", i + 1 < count ? "," : "");
+    }
+    printf("  ],\n  \"summary\": {\"frames\": %d, \"maxRssKb\": %ld, \"frameMs\": ",
+            frameCount, maxRssKb);
+    printJsonPercentiles(overall);
+    printf("}\n}\n");
+}
+
+static void printTable(const Result* results, int count, const Percentiles& overall,
+        int frameCount, long maxRssKb) {
+    printf("%-40s %-8s %11s %6s %9s %8s %8s %8s %8s %10s\n", "file", "type", "size", "frames",
+            "create ms", "p50 ms", "p90 ms", "p99 ms", "max ms", "peak KiB");
+    for (int i = 0; i < count; i++) {
+        const Result& result = results[i];
+        const char* name = strrchr(result.path, '/');
+        name = name ? name + 1 : result.path;
+        if (result.error) {
+            printf("%-40.40s %-8s %s\n", name, result.type, result.error);
+            continue;
+        }
+        char size[16];
+        snprintf(size, sizeof(size), "%dx%d", result.width, result.height);
+        printf("%-40.40s %-8s %11s %6d %9.3f %8.3f %8.3f %8.3f %8.3f %10ld\n",
+                name, result.type, size, result.frameCount, result.constructMs,
+                result.frameMs.p50, result.frameMs.p90, result.frameMs.p99, result.frameMs.max,
+                result.peakHeapBytes < 0 ? -1 : result.peakHeapBytes / 1024);
+    }
+    printf("\nall %d frames: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms;"
+            " max RSS %ld KiB\n", frameCount, overall.p50, overall.p90, overall.p99,
+            overall.max, maxRssKb);
+}
+
+static void usage(const char* name) {
+    fprintf(stderr, "usage: %s [--loops N] [--sample-size N] [--rgb565] [--json] PATH...\n"
+            "       %s --check-concurrency [--sample-size N] [--rgb565] PATH...\n",
+            name, name);
+}
+
+int main(int argc, char** argv) {
+    Options options;
+    options.loops = 3;
+    options.sampleSize = 1;
+    options.format = PIXEL_FORMAT_8888;
+    options.json = false;
+    options.checkConcurrency = false;
+
+    PathList paths;
+    memset(&paths, 0, sizeof(paths));
+    for (int i = 1; i < argc; i++) {
+        if (!strcmp(argv[i], "--loops") && i + 1 < argc) {
+            options.loops = atoi(argv[++i]);
+        } else if (!strcmp(argv[i], "--sample-size") && i + 1 < argc) {
+            options.sampleSize = atoi(argv[++i]);
+        } else if (!strcmp(argv[i], "--rgb565")) {
+            options.format = PIXEL_FORMAT_565;
+        } else if (!strcmp(argv[i], "--json")) {
+            options.json = true;
+        } else if (!strcmp(argv[i], "--check-concurrency")) {
+            options.checkConcurrency = true;
+        } else if (argv[i][0] == '-') {
+            usage(argv[0]);
+            return 2;
+        } else {
+            collectPaths(paths, argv[i]);
+        }
+    }
+    if (!paths.count || options.loops < 1 || options.sampleSize < 1) {
+        usage(argv[0]);
+        return 2;
+    }
+
+    if (options.checkConcurrency) {
+        int failures = 0;
+        for (int i = 0; i < paths.count; i++) {
+            const char* error = checkConcurrency(paths.paths[i], options);
+            printf("%s: %s\n", paths.paths[i], error ? error : "ok");
+            if (error) {
+                failures++;
+            }
+            free(paths.paths[i]);
+        }
+        delete[] paths.paths;
+        return failures ? 1 : 0;
+    }
+
+    // sized up front, so that growing it doesn't show up in the heap measurements
+    int totalFrames = 0;
+    for (int i = 0; i < paths.count; i++) {
+        totalFrames += countFrames(paths.paths[i]);
+    }
+    const int allFrameCapacity = max(totalFrames * options.loops, 1);
+    double* allFrameMs = new double[allFrameCapacity];
+    int allFrameCount = 0;
+
+    Result* results = new Result[paths.count];
+    int failures = 0;
+    for (int i = 0; i < paths.count; i++) {
+        benchmarkFile(paths.paths[i], options, results[i], allFrameMs, allFrameCapacity,
+                &allFrameCount);
+        if (results[i].error) {
+            failures++;
+        }
+    }
+    const Percentiles overall = computePercentiles(allFrameMs, allFrameCount);
+
+    struct rusage usage;
+    getrusage(RUSAGE_SELF, &usage);
+    if (options.json) {
+        printJson(options, results, paths.count, overall, allFrameCount, usage.ru_maxrss);
+    } else {
+        printTable(results, paths.count, overall, allFrameCount, usage.ru_maxrss);
+    }
+
+    for (int i = 0; i < paths.count; i++) {
+        free(paths.paths[i]);
+    }
+    delete[] paths.paths;
+    delete[] results;
+    delete[] allFrameMs;
+    return failures ? 1 : 0;
+}
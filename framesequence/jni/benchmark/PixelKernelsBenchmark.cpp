@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Compares the kernels selected for this CPU against the scalar ones, checking that both
+ * produce the same pixels. Built as a host binary by Android.bp, or on any Linux machine with:
+ *
+ *   g++ -O2 -I.. ../PixelKernels.cpp PixelKernelsBenchmark.cpp -o pixel_kernels_benchmark
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "PixelKernels.h"
+
+// a 1080p canvas
+static const int kWidth = 1920;
+static const int kHeight = 1080;
+static const int kIterations = 50;
+
+static double nowMs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+struct Buffers {
+    uint8_t* indices;
+    Color8888* palette;
+    Color8888* src;
+    Color8888* dst;
+};
+
+// deterministic contents, a quarter of pixels transparent as is common in animation deltas
+static void fillBuffers(Buffers& buffers) {
+    srand(1);
+    for (int i = 0; i < 256; i++) {
+        buffers.palette[i] = (Color8888) rand() | COLOR_8888_ALPHA_MASK;
+    }
+    for (int i = 0; i < kWidth * kHeight; i++) {
+        buffers.indices[i] = rand() & 0xff;
+        buffers.src[i] = (Color8888) rand();
+        buffers.dst[i] = (rand() & 3) ? ((Color8888) rand() | COLOR_8888_ALPHA_MASK) : TRANSPARENT;
+    }
+}
+
+enum Kernel {
+    KERNEL_PALETTE,
+    KERNEL_FILL,
+    KERNEL_UNDERLAY,
+    KERNEL_COUNT,
+};
+
+static const char* kKernelNames[] = { "paletteLine", "fillLine", "underlayLine" };
+
+static void runFrame(const PixelKernels& kernels, Kernel kernel, Buffers& buffers) {
+    for (int y = 0; y < kHeight; y++) {
+        Color8888* dst = buffers.dst + y * kWidth;
+        switch (kernel) {
+        case KERNEL_PALETTE:
+            // 200 valid colors, index 7 transparent
+            kernels.paletteLine(dst, buffers.indices + y * kWidth, buffers.palette, 200, 7, kWidth);
+            break;
+        case KERNEL_FILL:
+            kernels.fillLine(dst, 0xff102030, kWidth);
+            break;
+        case KERNEL_UNDERLAY:
+            kernels.underlayLine(dst, buffers.src + y * kWidth, kWidth);
+            break;
+        default:
+            break;
+        }
+    }
+}
+
+// returns the best time for one frame, leaving the output of a single run in buffers.dst
+static double timeKernel(const PixelKernels& kernels, Kernel kernel, Buffers& buffers,
+        Color8888* initialDst) {
+    double bestMs = -1;
+    for (int i = 0; i < kIterations; i++) {
+        memcpy(buffers.dst, initialDst, kWidth * kHeight * sizeof(Color8888));
+        double start = nowMs();
+        runFrame(kernels, kernel, buffers);
+        double elapsed = nowMs() - start;
+        if (bestMs < 0 || elapsed < bestMs) {
+            bestMs = elapsed;
+        }
+    }
+    return bestMs;
+}
+
+int main(int argc, char** argv) {
+    const PixelKernels& scalar = getScalarPixelKernels();
+    const PixelKernels& selected = getPixelKernels();
+    const size_t pixelCount = kWidth * kHeight;
+
+    Buffers buffers;
+    buffers.indices = new uint8_t[pixelCount];
+    buffers.palette = new Color8888[256];
+    buffers.src = new Color8888[pixelCount];
+    buffers.dst = new Color8888[pixelCount];
+    fillBuffers(buffers);
+
+    Color8888* initialDst = new Color8888[pixelCount];
+    Color8888* expected = new Color8888[pixelCount];
+    memcpy(initialDst, buffers.dst, pixelCount * sizeof(Color8888));
+
+    printf("canvas %dx%d, best of %d runs, selected kernels: %s\n",
+            kWidth, kHeight, kIterations, selected.name);
+    printf("%-14s %12s %12s %9s\n", "kernel", "scalar ms", "selected ms", "speedup");
+
+    int failures = 0;
+    for (int kernel = 0; kernel < KERNEL_COUNT; kernel++) {
+        double scalarMs = timeKernel(scalar, (Kernel) kernel, buffers, initialDst);
+        memcpy(expected, buffers.dst, pixelCount * sizeof(Color8888));
+        double selectedMs = timeKernel(selected, (Kernel) kernel, buffers, initialDst);
+        bool matches = !memcmp(expected, buffers.dst, pixelCount * sizeof(Color8888));
+        if (!matches) {
+            failures++;
+        }
+
+        printf("%-14s %12.3f %12.3f %8.2fx%s\n", kKernelNames[kernel], scalarMs, selectedMs,
+                scalarMs / selectedMs, matches ? "" : "  MISMATCH");
+    }
+
+    delete[] buffers.indices;
+    delete[] buffers.palette;
+    delete[] buffers.src;
+    delete[] buffers.dst;
+    delete[] initialDst;
+    delete[] expected;
+    return failures ? 1 : 0;
+}
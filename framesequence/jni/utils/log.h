@@ -17,7 +17,39 @@
 #ifndef LOG_H_
 #define LOG_H_
 
+#ifdef __ANDROID__
 #include <android/log.h>
+#else
+// host builds, such as the benchmark, print to stderr rather than depend on liblog
+#include <stdarg.h>
+#include <stdio.h>
+#include <stdlib.h>
+
+enum {
+    ANDROID_LOG_VERBOSE = 2,
+    ANDROID_LOG_DEBUG,
+    ANDROID_LOG_INFO,
+    ANDROID_LOG_WARN,
+    ANDROID_LOG_ERROR,
+    ANDROID_LOG_FATAL,
+};
+
+#define LOG_PRI(priority, tag, ...) \
+    ((void) fprintf(stderr, "%s: ", tag), (void) fprintf(stderr, __VA_ARGS__), \
+            (void) fputc('\n', stderr))
+
+static inline void __android_log_assert(const char* cond, const char* tag, const char* fmt, ...) {
+    fprintf(stderr, "%s: assertion failed: %s ", tag, cond ? cond : "");
+    if (fmt) {
+        va_list args;
+        va_start(args, fmt);
+        vfprintf(stderr, fmt, args);
+        va_end(args);
+    }
+    fputc('\n', stderr);
+    abort();
+}
+#endif
 
 #ifdef __cplusplus
 extern "C" {
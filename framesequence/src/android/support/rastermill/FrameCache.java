@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pixels of every frame of a sequence, kept as they are first decoded so that later loops are
+ * copied from memory instead of decoded. Frames are stored raw, or deflated to trade a cheap
+ * inflate per frame for memory. Frames are stored at the state's size, so they can be copied into
+ * any Bitmap at least that large, whatever Bitmap they were decoded into.
+ *
+ * Once the frames stop fitting in the byte budget the cache gives up and drops them all.
+ * Not thread safe, only used from a drawable's decoding thread.
+ */
+class FrameCache {
+    private static final int DEFLATE_CHUNK_SIZE = 16 * 1024;
+
+    private final int mWidth;
+    private final int mHeight;
+    // bytes of a raw frame
+    private final int mFrameBytes;
+    private final long mMaxBytes;
+    private final boolean mCompressed;
+
+    private byte[][] mFrames;
+    private final long[] mDelays;
+    // frame each frame's dirty rect was computed against, see State#getFrame
+    private final int[] mDirtySinceFrames;
+    private final Rect[] mDirtyRects;
+    private long mBytes;
+    private int mCachedCount;
+
+    // raw pixels of a frame, to stage compression
+    private byte[] mScratch;
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    private byte[] mDeflateChunk;
+
+    FrameCache(int frameCount, int width, int height, Bitmap.Config config, long maxBytes,
+            boolean compressed) {
+        mWidth = width;
+        mHeight = height;
+        mFrameBytes = width * height * (config == Bitmap.Config.RGB_565 ? 2 : 4);
+        mMaxBytes = maxBytes;
+        mCompressed = compressed;
+        mFrames = new byte[frameCount][];
+        mDelays = new long[frameCount];
+        mDirtySinceFrames = new int[frameCount];
+        mDirtyRects = new Rect[frameCount];
+    }
+
+    /** Returns true once the budget was exceeded, after which nothing is cached. */
+    boolean isAbandoned() {
+        return mFrames == null;
+    }
+
+    private byte[] getScratch() {
+        if (mScratch == null) {
+            mScratch = new byte[mFrameBytes];
+        }
+        return mScratch;
+    }
+
+    private void abandon() {
+        mFrames = null;
+        mBytes = 0;
+        mCachedCount = 0;
+        mScratch = null;
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
+    }
+
+    /**
+     * Keeps a copy of a frame just decoded into bitmap, along with its delay and the dirty rect
+     * reported for it against sinceFrameNr.
+     */
+    void put(int frameNr, Bitmap bitmap, long delayMs, int sinceFrameNr, Rect dirtyRect) {
+        if (mFrames == null || mFrames[frameNr] != null) return;
+
+        if (!mCompressed && (long) mFrameBytes * mFrames.length > mMaxBytes) {
+            // raw frames are all the same size, no need to wait for the budget to run out
+            abandon();
+            return;
+        }
+
+        byte[] frame;
+        if (mCompressed) {
+            frame = deflate(bitmap);
+        } else {
+            frame = new byte[mFrameBytes];
+            FrameSequence.readPixels(bitmap, frame, mWidth, mHeight);
+        }
+        if (mBytes + frame.length > mMaxBytes) {
+            abandon();
+            return;
+        }
+
+        mFrames[frameNr] = frame;
+        mDelays[frameNr] = delayMs;
+        mDirtySinceFrames[frameNr] = sinceFrameNr;
+        mDirtyRects[frameNr] = dirtyRect != null ? new Rect(dirtyRect) : null;
+        mBytes += frame.length;
+        mCachedCount++;
+        if (mCachedCount == mFrames.length) {
+            // only needed to fill the cache
+            if (mDeflater != null) {
+                mDeflater.end();
+                mDeflater = null;
+            }
+            mDeflateChunk = null;
+        }
+    }
+
+    /**
+     * Copies a cached frame into the top left of bitmap, which must be at least the state's size.
+     * outDirtyRect is set as State#getFrame would for previousFrameNr, or to the whole frame
+     * if that's unknown.
+     *
+     * @return the frame's delay in milliseconds, or -1 if it isn't cached
+     */
+    long get(int frameNr, Bitmap bitmap, int previousFrameNr, Rect outDirtyRect) {
+        if (mFrames == null || mFrames[frameNr] == null) return -1;
+
+        final byte[] frame = mFrames[frameNr];
+        if (mCompressed) {
+            inflate(frame, bitmap);
+        } else {
+            FrameSequence.writePixels(frame, mWidth, mHeight, bitmap);
+        }
+
+        if (outDirtyRect != null) {
+            final Rect dirty = mDirtyRects[frameNr];
+            if (dirty != null && previousFrameNr >= 0
+                    && mDirtySinceFrames[frameNr] == previousFrameNr) {
+                outDirtyRect.set(dirty);
+            } else {
+                outDirtyRect.set(0, 0, mWidth, mHeight);
+            }
+        }
+        return mDelays[frameNr];
+    }
+
+    private byte[] deflate(Bitmap bitmap) {
+        final byte[] raw = getScratch();
+        FrameSequence.readPixels(bitmap, raw, mWidth, mHeight);
+        if (mDeflater == null) {
+            mDeflater = new Deflater(Deflater.BEST_SPEED);
+            mDeflateChunk = new byte[DEFLATE_CHUNK_SIZE];
+        }
+        mDeflater.setInput(raw, 0, mFrameBytes);
+        mDeflater.finish();
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(DEFLATE_CHUNK_SIZE);
+        while (!mDeflater.finished()) {
+            output.write(mDeflateChunk, 0, mDeflater.deflate(mDeflateChunk));
+        }
+        mDeflater.reset();
+        return output.toByteArray();
+    }
+
+    private void inflate(byte[] frame, Bitmap bitmap) {
+        final byte[] raw = getScratch();
+        if (mInflater == null) {
+            mInflater = new Inflater();
+        }
+        mInflater.setInput(frame);
+        try {
+            mInflater.inflate(raw, 0, mFrameBytes);
+        } catch (DataFormatException e) {
+            // only ever fed our own output
+            throw new IllegalStateException(e);
+        } finally {
+            mInflater.reset();
+        }
+        FrameSequence.writePixels(raw, mWidth, mHeight, bitmap);
+    }
+
+    /** Drops all cached frames, and stops caching. */
+    void clear() {
+        abandon();
+    }
+}
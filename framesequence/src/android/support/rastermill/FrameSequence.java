@@ -17,22 +17,81 @@
 package android.support.rastermill;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.Log;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 
-public class FrameSequence {
+/**
+ * An encoded animation, decoded a frame at a time by {@link State}s.
+ *
+ * The native memory of a sequence is freed once it is {@link #close() closed} and all of its
+ * States are, or once they're all collected if they never were.
+ */
+public class FrameSequence implements Closeable {
     static {
         System.loadLibrary("framesequence");
     }
 
+    private static final String TAG = "FrameSequence";
+
+    /**
+     * Thumbnail of the first frame, the cheapest to draw.
+     */
+    public static final int THUMBNAIL_FIRST_FRAME = 0;
+
+    /**
+     * Thumbnail of the first frame replacing the whole canvas by itself, skipping leading frames
+     * that only draw part of the picture. The first frame if there is none.
+     */
+    public static final int THUMBNAIL_FIRST_KEYFRAME = 1;
+
+    /**
+     * Thumbnail of the most colorful of up to 16 frames spread over the sequence, skipping
+     * blank or faded frames. Scores the frames at a small size first, so costs a pass over the
+     * sequence.
+     */
+    public static final int THUMBNAIL_MOST_COLORFUL = 2;
+
+    // frames scored for THUMBNAIL_MOST_COLORFUL, and the size of their longer side in pixels
+    private static final int COLORFULNESS_CANDIDATES = 16;
+    private static final int COLORFULNESS_SIZE = 32;
+
     private final long mNativeFrameSequence;
+    private final NativeReclaimer.Handle mHandle;
     private final int mWidth;
     private final int mHeight;
     private final boolean mOpaque;
-    private final int mFrameCount;
     private final int mDefaultLoopCount;
 
+    // grows while a progressively decoded sequence loads, see continueLoading()
+    private volatile int mFrameCount;
+    private volatile boolean mLoading;
+    private InputStream mLoadingStream;
+    private byte[] mLoadingBuffer;
+    private final ArrayList<OnFramesLoadedListener> mOnFramesLoadedListeners =
+            new ArrayList<OnFramesLoadedListener>();
+
+    /**
+     * Notified as the frames of a sequence returned by
+     * {@link #decodeStreamProgressively(InputStream)} are loaded.
+     */
+    public interface OnFramesLoadedListener {
+        /**
+         * Called on the thread running {@link #continueLoading()}, each time frames were added
+         * to {@link #getFrameCount()}, and once more when loading ends.
+         */
+        void onFramesLoaded(FrameSequence frameSequence);
+    }
+
     public int getWidth() { return mWidth; }
     public int getHeight() { return mHeight; }
     public boolean isOpaque() { return mOpaque; }
@@ -41,22 +100,86 @@ public class FrameSequence {
 
     private static native FrameSequence nativeDecodeByteArray(byte[] data, int offset, int length);
     private static native FrameSequence nativeDecodeStream(InputStream is, byte[] tempStorage);
+    private static native FrameSequence nativeDecodeStreamProgressively(InputStream is,
+            byte[] tempStorage);
+    private static native int nativeAppendData(long nativeFrameSequence, byte[] data, int offset,
+            int length);
+    private static native int nativeFinishData(long nativeFrameSequence);
+    private static native boolean nativeIsLoading(long nativeFrameSequence);
     private static native FrameSequence nativeDecodeByteBuffer(ByteBuffer buffer, int offset, int capacity);
     private static native void nativeDestroyFrameSequence(long nativeFrameSequence);
-    private static native long nativeCreateState(long nativeFrameSequence);
+    private static native long nativeGetAllocationSize(long nativeFrameSequence);
+    private static native long nativeCreateState(long nativeFrameSequence, int sampleSize,
+            boolean rgb565);
+    private static native byte[] nativeTranscodeFastPlay(long nativeFrameSequence,
+            int keyframeInterval);
+    private static native int nativeGetFrameDelay(long nativeFrameSequence, int frameNr);
+    private static native int nativeFindFirstCoveringFrame(long nativeFrameSequence);
     private static native void nativeDestroyState(long nativeState);
+    private static native void nativeSetKeyframeCacheSize(long nativeState, long maxBytes);
+    private static native void nativeTrimState(long nativeState);
+    private static native long nativeGetStateAllocationSize(long nativeState);
     private static native long nativeGetFrame(long nativeState, int frameNr,
-            Bitmap output, int previousFrameNr);
+            Bitmap output, int previousFrameNr, Rect outDirtyRect);
+    private static native long nativeGetFrameIntoBuffer(long nativeState, int frameNr,
+            ByteBuffer buffer, int bufferOffset, int strideBytes, int previousFrameNr,
+            Rect outDirtyRect);
+    private static native void nativeGetFrames(long nativeState, int fromFrameNr, int toFrameNr,
+            Bitmap atlas, ByteBuffer buffer, int bufferOffset, int columns, int width, int height,
+            int[] outDelaysMs);
+    private static native void nativeCopyPixels(Bitmap bitmap, byte[] pixels, int width,
+            int height, boolean intoBitmap);
+    private static native Info nativeProbeByteArray(byte[] data, int offset, int length);
+    private static native Info nativeProbeStream(InputStream is, byte[] tempStorage);
+    private static native Info nativeProbeByteBuffer(ByteBuffer buffer, int offset, int capacity);
 
     @SuppressWarnings("unused") // called by native
     private FrameSequence(long nativeFrameSequence, int width, int height,
-                          boolean opaque, int frameCount, int defaultLoopCount) {
+                          boolean opaque, int frameCount, int defaultLoopCount,
+                          boolean loading) {
         mNativeFrameSequence = nativeFrameSequence;
         mWidth = width;
         mHeight = height;
         mOpaque = opaque;
         mFrameCount = frameCount;
         mDefaultLoopCount = defaultLoopCount;
+        mLoading = loading;
+        mHandle = new SequenceHandle(this, nativeFrameSequence);
+        mHandle.setNativeBytes(nativeGetAllocationSize(nativeFrameSequence));
+    }
+
+    // must not reference the sequence, or it would never be collected
+    private static final class SequenceHandle extends NativeReclaimer.Handle {
+        private final long mNativeFrameSequence;
+
+        SequenceHandle(FrameSequence frameSequence, long nativeFrameSequence) {
+            super(frameSequence, null);
+            mNativeFrameSequence = nativeFrameSequence;
+        }
+
+        @Override
+        protected void free() {
+            nativeDestroyFrameSequence(mNativeFrameSequence);
+        }
+    }
+
+    /**
+     * Releases the native memory of the sequence, or once its remaining {@link State}s are
+     * closed, which keep drawing frames until then. The sequence can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        mHandle.release();
+    }
+
+    // holds the native sequence until mHandle.unref(), so that a concurrent close can't free it
+    private void acquireNative() {
+        if (mNativeFrameSequence == 0) {
+            throw new IllegalStateException("attempted to use incorrectly built FrameSequence");
+        }
+        if (!mHandle.acquire()) {
+            throw new IllegalStateException("attempted to use closed FrameSequence");
+        }
     }
 
     public static FrameSequence decodeByteArray(byte[] data) {
@@ -90,25 +213,507 @@ public class FrameSequence {
         return nativeDecodeStream(stream, tempStorage);
     }
 
-    State createState() {
-        if (mNativeFrameSequence == 0) {
-            throw new IllegalStateException("attempted to use incorrectly built FrameSequence");
+    /**
+     * Decodes only as much of stream as needed for the first frame, so that it can be drawn
+     * before the rest of the stream arrives - time to first frame then depends on the size of
+     * the first frame rather than of the whole sequence. The remaining frames are loaded by
+     * {@link #continueLoading()}, until then the stream must remain open. It isn't closed by
+     * loading.
+     *
+     * Only GIFs are loaded progressively. Other formats are read completely, as by
+     * {@link #decodeStream(InputStream)}, and returned not {@link #isLoading() loading}.
+     */
+    public static FrameSequence decodeStreamProgressively(InputStream stream) {
+        if (stream == null) throw new IllegalArgumentException();
+        // kept for continueLoading() while the sequence is loading
+        byte[] tempStorage = new byte[16 * 1024];
+        FrameSequence frameSequence = nativeDecodeStreamProgressively(stream, tempStorage);
+        if (frameSequence != null && frameSequence.mLoading) {
+            synchronized (frameSequence) {
+                frameSequence.mLoadingStream = stream;
+                frameSequence.mLoadingBuffer = tempStorage;
+            }
+        }
+        return frameSequence;
+    }
+
+    /**
+     * Returns true while frames of a sequence returned by
+     * {@link #decodeStreamProgressively(InputStream)} are still being loaded, that is
+     * {@link #getFrameCount()} may still grow.
+     */
+    public boolean isLoading() { return mLoading; }
+
+    /**
+     * Reads the rest of the stream of a sequence returned by
+     * {@link #decodeStreamProgressively(InputStream)}, adding frames as soon as their data has
+     * arrived and notifying {@link OnFramesLoadedListener}s. Blocks until the stream ends, so
+     * should not be called on the UI thread. Does nothing if the sequence isn't loading, or is
+     * already loaded by another call.
+     *
+     * Loading ends early on invalid data, a stream error or once the sequence is closed, with the
+     * frames loaded so far.
+     */
+    public void continueLoading() {
+        final InputStream stream;
+        final byte[] buffer;
+        synchronized (this) {
+            stream = mLoadingStream;
+            buffer = mLoadingBuffer;
+            mLoadingStream = null;
+            mLoadingBuffer = null;
+        }
+        if (stream == null) return;
+        if (!mHandle.acquire()) {
+            // closed before loading
+            mLoading = false;
+            notifyFramesLoaded();
+            return;
         }
 
-        long nativeState = nativeCreateState(mNativeFrameSequence);
-        if (nativeState == 0) {
-            return null;
+        try {
+            int bytesRead;
+            while (!mHandle.isReleased() && (bytesRead = stream.read(buffer)) >= 0) {
+                int frameCount = nativeAppendData(mNativeFrameSequence, buffer, 0, bytesRead);
+                if (!nativeIsLoading(mNativeFrameSequence)) {
+                    // reached the end of the sequence, or invalid data
+                    break;
+                }
+                if (frameCount != mFrameCount) {
+                    mFrameCount = frameCount;
+                    notifyFramesLoaded();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "exception during progressive load: " + e);
+        } finally {
+            // the count is published before loading ends, so readers of both never miss frames
+            mFrameCount = nativeFinishData(mNativeFrameSequence);
+            mLoading = false;
+            mHandle.setNativeBytes(nativeGetAllocationSize(mNativeFrameSequence));
+            mHandle.unref();
+            notifyFramesLoaded();
         }
-        return new State(nativeState);
     }
 
-    @Override
-    protected void finalize() throws Throwable {
+    /**
+     * Adds a listener notified as frames are loaded. Listeners added once loading has ended are
+     * never called, so check {@link #isLoading()} after adding one.
+     */
+    public void addOnFramesLoadedListener(OnFramesLoadedListener listener) {
+        if (listener == null) throw new IllegalArgumentException();
+        synchronized (mOnFramesLoadedListeners) {
+            mOnFramesLoadedListeners.add(listener);
+        }
+    }
+
+    public void removeOnFramesLoadedListener(OnFramesLoadedListener listener) {
+        synchronized (mOnFramesLoadedListeners) {
+            mOnFramesLoadedListeners.remove(listener);
+        }
+    }
+
+    private void notifyFramesLoaded() {
+        final OnFramesLoadedListener[] listeners;
+        synchronized (mOnFramesLoadedListeners) {
+            if (mOnFramesLoadedListeners.isEmpty()) return;
+            // listeners may remove themselves while called
+            listeners = mOnFramesLoadedListeners.toArray(
+                    new OnFramesLoadedListener[mOnFramesLoadedListeners.size()]);
+        }
+        for (OnFramesLoadedListener listener : listeners) {
+            listener.onFramesLoaded(this);
+        }
+    }
+
+    /**
+     * Decodes the file at path by memory mapping it, so that neither a Java heap copy nor per-read
+     * JNI callbacks are needed. The mapping is held along with the sequence's native memory, so
+     * it is released once the sequence is {@link #close() closed} and all of its States are, or
+     * once they're all collected if they never were.
+     */
+    public static FrameSequence decodeFile(String path) throws IOException {
+        if (path == null) throw new IllegalArgumentException();
+        FileInputStream stream = new FileInputStream(path);
+        try {
+            return decodeFileChannel(stream.getChannel());
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Decodes from the current position of fd to the end of the file by memory mapping it. The
+     * descriptor remains owned by the caller, and may be closed once this returns.
+     */
+    public static FrameSequence decodeFileDescriptor(FileDescriptor fd) throws IOException {
+        if (fd == null) throw new IllegalArgumentException();
+        // not closed, as that would close the caller's descriptor
+        FileInputStream stream = new FileInputStream(fd);
+        return decodeFileChannel(stream.getChannel());
+    }
+
+    private static FrameSequence decodeFileChannel(FileChannel channel) throws IOException {
+        long position = channel.position();
+        MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, position, channel.size() - position);
+        return nativeDecodeByteBuffer(buffer, 0, buffer.remaining());
+    }
+
+    /**
+     * Reads the dimensions, frame count, loop count and frame delays of an encoded frame sequence
+     * from its headers, without decoding any frames or allocating pixel buffers.
+     *
+     * @return the info, or null if the data isn't a supported and valid frame sequence
+     */
+    public static Info probe(byte[] data) {
+        return probe(data, 0, data.length);
+    }
+
+    public static Info probe(byte[] data, int offset, int length) {
+        if (data == null) throw new IllegalArgumentException();
+        if (offset < 0 || length < 0 || (offset + length > data.length)) {
+            throw new IllegalArgumentException("invalid offset/length parameters");
+        }
+        return nativeProbeByteArray(data, offset, length);
+    }
+
+    public static Info probe(ByteBuffer buffer) {
+        if (buffer == null) throw new IllegalArgumentException();
+        if (!buffer.isDirect()) {
+            if (buffer.hasArray()) {
+                byte[] byteArray = buffer.array();
+                return probe(byteArray, buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+            } else {
+                throw new IllegalArgumentException("Cannot have non-direct ByteBuffer with no byte array");
+            }
+        }
+        return nativeProbeByteBuffer(buffer, buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * Note: the stream is consumed up to the end of the encoded data, as per frame metadata is
+     * spread throughout the file.
+     */
+    public static Info probe(InputStream stream) {
+        if (stream == null) throw new IllegalArgumentException();
+        byte[] tempStorage = new byte[16 * 1024];
+        return nativeProbeStream(stream, tempStorage);
+    }
+
+    /**
+     * Draws a single frame as a still preview, picked by pickStrategy, one of
+     * {@link #THUMBNAIL_FIRST_FRAME}, {@link #THUMBNAIL_FIRST_KEYFRAME} or
+     * {@link #THUMBNAIL_MOST_COLORFUL}. The frame is downsampled while it's decoded, by the
+     * largest sample size still covering targetWidth by targetHeight, see
+     * {@link #computeSampleSize(int, int)}, so the Bitmap may be larger than the target but isn't
+     * scaled to it. Only the frames the picked one depends on are drawn, and nothing is kept
+     * once it returns.
+     *
+     * @return an ARGB_8888 Bitmap, or null if the data isn't a supported and valid frame sequence
+     */
+    public static Bitmap decodeThumbnail(byte[] data, int targetWidth, int targetHeight,
+            int pickStrategy) {
+        checkThumbnailArgs(targetWidth, targetHeight, pickStrategy);
+        return drawThumbnail(decodeByteArray(data), targetWidth, targetHeight, pickStrategy);
+    }
+
+    public static Bitmap decodeThumbnail(ByteBuffer buffer, int targetWidth, int targetHeight,
+            int pickStrategy) {
+        checkThumbnailArgs(targetWidth, targetHeight, pickStrategy);
+        return drawThumbnail(decodeByteBuffer(buffer), targetWidth, targetHeight, pickStrategy);
+    }
+
+    /**
+     * Like {@link #decodeThumbnail(byte[], int, int, int)}. With {@link #THUMBNAIL_FIRST_FRAME},
+     * GIFs are only read up to the end of their first frame, as by
+     * {@link #decodeStreamProgressively(InputStream)}.
+     */
+    public static Bitmap decodeThumbnail(InputStream stream, int targetWidth, int targetHeight,
+            int pickStrategy) {
+        checkThumbnailArgs(targetWidth, targetHeight, pickStrategy);
+        final FrameSequence frameSequence = pickStrategy == THUMBNAIL_FIRST_FRAME
+                ? decodeStreamProgressively(stream) : decodeStream(stream);
+        return drawThumbnail(frameSequence, targetWidth, targetHeight, pickStrategy);
+    }
+
+    private static void checkThumbnailArgs(int targetWidth, int targetHeight, int pickStrategy) {
+        if (targetWidth < 1 || targetHeight < 1) throw new IllegalArgumentException();
+        if (pickStrategy < THUMBNAIL_FIRST_FRAME || pickStrategy > THUMBNAIL_MOST_COLORFUL) {
+            throw new IllegalArgumentException("Unknown pick strategy " + pickStrategy);
+        }
+    }
+
+    // closes frameSequence
+    private static Bitmap drawThumbnail(FrameSequence frameSequence, int targetWidth,
+            int targetHeight, int pickStrategy) {
+        if (frameSequence == null) return null;
+
+        try {
+            final int frameNr = frameSequence.pickThumbnailFrame(pickStrategy);
+            final State state = frameSequence.createState(
+                    frameSequence.computeSampleSize(targetWidth, targetHeight));
+            if (state == null) return null;
+            try {
+                final Bitmap bitmap = Bitmap.createBitmap(state.getWidth(), state.getHeight(),
+                        Bitmap.Config.ARGB_8888);
+                state.getFrame(frameNr, bitmap, -1);
+                return bitmap;
+            } finally {
+                state.close();
+            }
+        } finally {
+            frameSequence.close();
+        }
+    }
+
+    private int pickThumbnailFrame(int pickStrategy) {
+        if (pickStrategy == THUMBNAIL_FIRST_KEYFRAME) {
+            final int frameNr;
+            acquireNative();
+            try {
+                frameNr = nativeFindFirstCoveringFrame(mNativeFrameSequence);
+            } finally {
+                mHandle.unref();
+            }
+            return Math.max(frameNr, 0);
+        }
+        if (pickStrategy == THUMBNAIL_MOST_COLORFUL && mFrameCount > 1) {
+            return findMostColorfulFrame();
+        }
+        return 0;
+    }
+
+    private int findMostColorfulFrame() {
+        final int sampleSize = Math.max(Math.max(mWidth, mHeight) / COLORFULNESS_SIZE, 1);
+        final State state = createState(sampleSize);
+        if (state == null) return 0;
+
+        final int width = state.getWidth();
+        final int height = state.getHeight();
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final int[] pixels = new int[width * height];
+        final int step = (mFrameCount + COLORFULNESS_CANDIDATES - 1) / COLORFULNESS_CANDIDATES;
+        int bestFrameNr = 0;
+        double bestColorfulness = -1;
         try {
-            if (mNativeFrameSequence != 0) nativeDestroyFrameSequence(mNativeFrameSequence);
+            // each candidate is drawn over the one before, only the frames between are decoded
+            for (int frameNr = 0; frameNr < mFrameCount; frameNr += step) {
+                state.getFrame(frameNr, bitmap, frameNr - step);
+                bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+                final double colorfulness = computeColorfulness(pixels);
+                if (colorfulness > bestColorfulness) {
+                    bestColorfulness = colorfulness;
+                    bestFrameNr = frameNr;
+                }
+            }
         } finally {
-            super.finalize();
+            state.close();
+            bitmap.recycle();
+        }
+        return bestFrameNr;
+    }
+
+    /**
+     * Returns the colorfulness metric of Hasler and Suesstrunk over the visible pixels, from the
+     * spread and mean of the red-green and yellow-blue opponent channels.
+     */
+    private static double computeColorfulness(int[] pixels) {
+        double sumRg = 0, sumYb = 0, sumRg2 = 0, sumYb2 = 0;
+        int count = 0;
+        for (int pixel : pixels) {
+            if ((pixel >>> 24) == 0) continue;
+            final int r = (pixel >> 16) & 0xff;
+            final int g = (pixel >> 8) & 0xff;
+            final int b = pixel & 0xff;
+            final double rg = r - g;
+            final double yb = 0.5 * (r + g) - b;
+            sumRg += rg;
+            sumYb += yb;
+            sumRg2 += rg * rg;
+            sumYb2 += yb * yb;
+            count++;
+        }
+        if (count == 0) return 0;
+
+        final double meanRg = sumRg / count;
+        final double meanYb = sumYb / count;
+        final double varianceRg = Math.max(sumRg2 / count - meanRg * meanRg, 0);
+        final double varianceYb = Math.max(sumYb2 / count - meanYb * meanYb, 0);
+        return Math.sqrt(varianceRg + varianceYb)
+                + 0.3 * Math.sqrt(meanRg * meanRg + meanYb * meanYb);
+    }
+
+    /**
+     * Draws every frame and re-encodes the sequence in the fast play format, which the decode
+     * methods accept like any other. Frames are stored pre-decoded, as LZ4 compressed rects of
+     * the pixels changed by each frame, so playing them back costs little more than a copy per
+     * frame. The encoded data is much larger than a GIF or WebP, and meant for local caches.
+     *
+     * Decodes the whole sequence, so should not be called on the UI thread.
+     *
+     * @param keyframeInterval a frame independent of earlier ones is stored every this many
+     *                         frames, to draw frames out of order faster. 0 stores only the first.
+     * @return the encoded sequence, or null if it couldn't be transcoded
+     */
+    public byte[] transcodeToFastPlay(int keyframeInterval) {
+        if (keyframeInterval < 0) throw new IllegalArgumentException();
+        if (mLoading) {
+            throw new IllegalStateException("attempted to transcode FrameSequence still loading");
+        }
+        acquireNative();
+        try {
+            return nativeTranscodeFastPlay(mNativeFrameSequence, keyframeInterval);
+        } finally {
+            mHandle.unref();
+        }
+    }
+
+    /**
+     * Returns the delay of a frame in milliseconds, as stored in the source data, the time it is
+     * shown before the next frame.
+     */
+    public int getFrameDelay(int frameNr) {
+        if (frameNr < 0 || frameNr >= mFrameCount) throw new IllegalArgumentException();
+        acquireNative();
+        try {
+            return nativeGetFrameDelay(mNativeFrameSequence, frameNr);
+        } finally {
+            mHandle.unref();
+        }
+    }
+
+    /**
+     * Returns the largest sample size for which decoded frames still cover at least targetWidth
+     * by targetHeight pixels, or 1 if the canvas is already smaller than that.
+     */
+    public int computeSampleSize(int targetWidth, int targetHeight) {
+        if (targetWidth < 1 || targetHeight < 1) throw new IllegalArgumentException();
+        int sampleSize = 1;
+        while (getSampledSize(mWidth, sampleSize + 1) >= targetWidth
+                && getSampledSize(mHeight, sampleSize + 1) >= targetHeight
+                && sampleSize < Math.max(mWidth, mHeight)) {
+            sampleSize++;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Copies the top left width by height pixels of bitmap into pixels, row after row without
+     * padding, whatever the size and row bytes of bitmap.
+     */
+    static void readPixels(Bitmap bitmap, byte[] pixels, int width, int height) {
+        nativeCopyPixels(bitmap, pixels, width, height, false);
+    }
+
+    /**
+     * Copies pixels, as filled by {@link #readPixels(Bitmap, byte[], int, int)}, into the top
+     * left width by height pixels of bitmap.
+     */
+    static void writePixels(byte[] pixels, int width, int height, Bitmap bitmap) {
+        nativeCopyPixels(bitmap, pixels, width, height, true);
+    }
+
+    /**
+     * Returns the number of pixels kept of size canvas pixels when sampling every sampleSize-th.
+     */
+    static int getSampledSize(int size, int sampleSize) {
+        return (size + sampleSize - 1) / sampleSize;
+    }
+
+    public State createState() {
+        return createState(1);
+    }
+
+    /**
+     * Creates a state drawing frames downsampled by sampleSize, that is every sampleSize-th pixel
+     * of every sampleSize-th row of the canvas.
+     */
+    public State createState(int sampleSize) {
+        return createState(sampleSize, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Creates a state drawing into Bitmaps of the given config, either ARGB_8888 or, for opaque
+     * sequences only, RGB_565.
+     *
+     * States only read the sequence they're created from, each holding its own decoder and
+     * buffers, so any number of them may draw on different threads at the same time. This is
+     * also safe while the sequence is still loading.
+     *
+     * @return the state, or null if it couldn't be created
+     */
+    public State createState(int sampleSize, Bitmap.Config config) {
+        if (sampleSize < 1) throw new IllegalArgumentException();
+        if (!isSupportedConfig(config)) {
+            throw new IllegalArgumentException("Unsupported Bitmap config " + config);
+        }
+        acquireNative();
+        try {
+            long nativeState = nativeCreateState(mNativeFrameSequence, sampleSize,
+                    config == Bitmap.Config.RGB_565);
+            if (nativeState == 0) {
+                return null;
+            }
+            return new State(this, nativeState, getSampledSize(mWidth, sampleSize),
+                    getSampledSize(mHeight, sampleSize), config);
+        } finally {
+            mHandle.unref();
+        }
+    }
+
+    /**
+     * Returns true if frames can be drawn into Bitmaps of the given config. RGB_565 halves
+     * memory and bandwidth per frame, but can't represent transparency so requires an opaque
+     * sequence.
+     */
+    public boolean isSupportedConfig(Bitmap.Config config) {
+        return config == Bitmap.Config.ARGB_8888
+                || (config == Bitmap.Config.RGB_565 && mOpaque);
+    }
+
+    /**
+     * Immutable description of an encoded frame sequence, as returned by {@link #probe(byte[])}.
+     */
+    public static final class Info {
+        private final int mWidth;
+        private final int mHeight;
+        private final boolean mOpaque;
+        private final int mDefaultLoopCount;
+        private final int[] mFrameDelaysMs;
+        private final long mDurationMs;
+
+        @SuppressWarnings("unused") // called by native
+        private Info(int width, int height, boolean opaque, int defaultLoopCount,
+                int[] frameDelaysMs) {
+            mWidth = width;
+            mHeight = height;
+            mOpaque = opaque;
+            mDefaultLoopCount = defaultLoopCount;
+            mFrameDelaysMs = frameDelaysMs;
+            long durationMs = 0;
+            for (int delayMs : frameDelaysMs) {
+                durationMs += delayMs;
+            }
+            mDurationMs = durationMs;
         }
+
+        public int getWidth() { return mWidth; }
+        public int getHeight() { return mHeight; }
+        public boolean isOpaque() { return mOpaque; }
+        public int getFrameCount() { return mFrameDelaysMs.length; }
+        public int getDefaultLoopCount() { return mDefaultLoopCount; }
+
+        /**
+         * Returns the delay of a frame in milliseconds, as stored in the source data.
+         */
+        public int getFrameDelay(int frameNr) { return mFrameDelaysMs[frameNr]; }
+
+        /**
+         * Returns the duration of a single loop in milliseconds, the sum of all frame delays.
+         */
+        public long getDuration() { return mDurationMs; }
     }
 
     /**
@@ -118,34 +723,220 @@ public class FrameSequence {
      * information (in the case of gif, a recall buffer) that will be used to construct
      * frames based upon data recorded before previousFrameNr.
      *
-     * Note: {@link #destroy()} *must* be called before the object is GC'd to free native resources
+     * Note: {@link #close()} should be called once the state is no longer used, to free its native
+     * resources right away rather than once it is collected
      *
-     * Note: State holds a native ref to its FrameSequence instance, so its FrameSequence should
-     * remain ref'd while it is in use
+     * Note: State keeps the native memory of its FrameSequence alive until it is closed, even if
+     * the sequence is closed first
+     *
+     * Note: a State must only be used by one thread at a time, but different States of the same
+     * FrameSequence can draw concurrently, e.g. one per core to render several frames at once
      */
-    static class State {
+    public static class State implements Closeable {
         private long mNativeState;
+        private final FrameSequence mFrameSequence;
+        private final NativeReclaimer.Handle mHandle;
+        private final int mWidth;
+        private final int mHeight;
+        private final Bitmap.Config mConfig;
 
-        public State(long nativeState) {
+        State(FrameSequence frameSequence, long nativeState, int width, int height,
+                Bitmap.Config config) {
+            mFrameSequence = frameSequence;
             mNativeState = nativeState;
+            mWidth = width;
+            mHeight = height;
+            mConfig = config;
+            mHandle = new StateHandle(this, frameSequence.mHandle, nativeState);
+            mHandle.setNativeBytes(nativeGetStateAllocationSize(nativeState));
         }
 
-        public void destroy() {
-            if (mNativeState != 0) {
+        // must not reference the state, or it would never be collected
+        private static final class StateHandle extends NativeReclaimer.Handle {
+            private final long mNativeState;
+
+            StateHandle(State state, NativeReclaimer.Handle sequenceHandle, long nativeState) {
+                super(state, sequenceHandle);
+                mNativeState = nativeState;
+            }
+
+            @Override
+            protected void free() {
                 nativeDestroyState(mNativeState);
+            }
+        }
+
+        /** Returns the width of drawn frames, after downsampling. */
+        public int getWidth() { return mWidth; }
+
+        /** Returns the height of drawn frames, after downsampling. */
+        public int getHeight() { return mHeight; }
+
+        /** Returns the config of Bitmaps frames are drawn into. */
+        public Bitmap.Config getConfig() { return mConfig; }
+
+        /**
+         * Frees the native resources of the state, after which it can't be used. Like the rest
+         * of State, must not be called while another thread is using the state.
+         */
+        @Override
+        public void close() {
+            if (mNativeState != 0) {
                 mNativeState = 0;
+                mHandle.release();
+            }
+        }
+
+        /** Same as {@link #close()}. */
+        public void destroy() {
+            close();
+        }
+
+        /**
+         * Lets the state keep snapshots of composed frames, up to maxBytes in total, so that
+         * frames not following previousFrameNr are drawn from the nearest snapshot instead of
+         * from the start of the sequence. 0 (the default) disables snapshots.
+         */
+        public void setKeyframeCacheSize(long maxBytes) {
+            if (maxBytes < 0) throw new IllegalArgumentException();
+            if (mNativeState == 0) {
+                throw new IllegalStateException("attempted to configure destroyed FrameSequenceState");
             }
+            nativeSetKeyframeCacheSize(mNativeState, maxBytes);
+            mHandle.setNativeBytes(nativeGetStateAllocationSize(mNativeState));
+        }
+
+        /**
+         * Frees memory the state holds only to draw faster, such as the snapshots enabled by
+         * {@link #setKeyframeCacheSize(long)}, which are taken again as frames are drawn.
+         */
+        public void trim() {
+            if (mNativeState == 0) {
+                throw new IllegalStateException("attempted to trim destroyed FrameSequenceState");
+            }
+            nativeTrimState(mNativeState);
         }
 
         // TODO: consider adding alternate API for drawing into a SurfaceTexture
         public long getFrame(int frameNr, Bitmap output, int previousFrameNr) {
-            if (output == null || output.getConfig() != Bitmap.Config.ARGB_8888) {
-                throw new IllegalArgumentException("Bitmap passed must be non-null and ARGB_8888");
+            return getFrame(frameNr, output, previousFrameNr, null);
+        }
+
+        /**
+         * Like {@link #getFrame(int, Bitmap, int)}, additionally setting outDirtyRect (if
+         * non-null) to bound the pixels of output that may differ from previousFrameNr. The
+         * whole frame is reported if it was drawn from scratch.
+         */
+        public long getFrame(int frameNr, Bitmap output, int previousFrameNr, Rect outDirtyRect) {
+            if (output == null || output.getConfig() != mConfig) {
+                throw new IllegalArgumentException("Bitmap passed must be non-null and " + mConfig);
+            }
+            if (output.getWidth() < mWidth || output.getHeight() < mHeight) {
+                throw new IllegalArgumentException("Bitmap too small for a frame");
+            }
+            if (mNativeState == 0) {
+                throw new IllegalStateException("attempted to draw destroyed FrameSequenceState");
+            }
+            return nativeGetFrame(mNativeState, frameNr, output, previousFrameNr, outDirtyRect);
+        }
+
+        /**
+         * Like {@link #getFrame(int, Bitmap, int)}, drawing into a writable direct buffer from its
+         * position instead of a Bitmap, as pixels of the state's config (RGBA 8888 or RGB 565)
+         * with rows strideBytes apart. The buffer must hold the previous frame's pixels unless
+         * previousFrameNr is negative.
+         */
+        public long getFrame(int frameNr, ByteBuffer output, int strideBytes,
+                int previousFrameNr) {
+            return getFrame(frameNr, output, strideBytes, previousFrameNr, null);
+        }
+
+        /**
+         * Like {@link #getFrame(int, ByteBuffer, int, int)}, additionally setting outDirtyRect
+         * (if non-null) as {@link #getFrame(int, Bitmap, int, Rect)} does.
+         */
+        public long getFrame(int frameNr, ByteBuffer output, int strideBytes, int previousFrameNr,
+                Rect outDirtyRect) {
+            if (output == null || !output.isDirect() || output.isReadOnly()) {
+                throw new IllegalArgumentException(
+                        "ByteBuffer passed must be non-null, direct and writable");
+            }
+            if (frameNr < 0 || frameNr >= mFrameSequence.getFrameCount()) {
+                throw new IllegalArgumentException("frameNr out of bounds " + frameNr);
+            }
+            final int bytesPerPixel = mConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+            if (strideBytes < mWidth * bytesPerPixel || strideBytes % bytesPerPixel != 0) {
+                throw new IllegalArgumentException("Invalid stride " + strideBytes);
+            }
+            if (output.remaining() < (long) strideBytes * (mHeight - 1) + mWidth * bytesPerPixel) {
+                throw new IllegalArgumentException("ByteBuffer too small for a frame");
+            }
+            if (mNativeState == 0) {
+                throw new IllegalStateException("attempted to draw destroyed FrameSequenceState");
+            }
+            return nativeGetFrameIntoBuffer(mNativeState, frameNr, output, output.position(),
+                    strideBytes, previousFrameNr, outDirtyRect);
+        }
+
+        /**
+         * Draws frames fromFrameNr up to, but not including, toFrameNr in a single native call,
+         * into a grid of frame sized cells of atlas filled left to right, columns cells per row.
+         * Each frame's own delay, as returned by {@link FrameSequence#getFrameDelay(int)}, or -1
+         * if the frame couldn't be drawn, is stored in outDelaysMs at the frame's index from
+         * fromFrameNr. Only the first frame can cost more than a delta from the one before it.
+         */
+        public void getFrames(int fromFrameNr, int toFrameNr, Bitmap atlas, int columns,
+                int[] outDelaysMs) {
+            final int rows = checkFramesArgs(fromFrameNr, toFrameNr, columns, outDelaysMs);
+            if (atlas == null || atlas.getConfig() != mConfig) {
+                throw new IllegalArgumentException("Bitmap passed must be non-null and " + mConfig);
+            }
+            if (atlas.getWidth() < columns * mWidth || atlas.getHeight() < rows * mHeight) {
+                throw new IllegalArgumentException("Bitmap too small for " + rows + " rows of "
+                        + columns + " frames");
+            }
+            nativeGetFrames(mNativeState, fromFrameNr, toFrameNr, atlas, null, 0, columns,
+                    mWidth, mHeight, outDelaysMs);
+        }
+
+        /**
+         * Like {@link #getFrames(int, int, Bitmap, int, int[])}, drawing into a writable direct buffer
+         * from its position, holding pixels of the state's config with rows of exactly columns
+         * frames.
+         */
+        public void getFrames(int fromFrameNr, int toFrameNr, ByteBuffer buffer, int columns,
+                int[] outDelaysMs) {
+            final int rows = checkFramesArgs(fromFrameNr, toFrameNr, columns, outDelaysMs);
+            if (buffer == null || !buffer.isDirect() || buffer.isReadOnly()) {
+                throw new IllegalArgumentException(
+                        "ByteBuffer passed must be non-null, direct and writable");
+            }
+            final int bytesPerPixel = mConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+            final long bytes = (long) rows * mHeight * columns * mWidth * bytesPerPixel;
+            if (buffer.remaining() < bytes) {
+                throw new IllegalArgumentException("ByteBuffer too small for " + rows + " rows of "
+                        + columns + " frames");
+            }
+            nativeGetFrames(mNativeState, fromFrameNr, toFrameNr, null, buffer, buffer.position(),
+                    columns, mWidth, mHeight, outDelaysMs);
+        }
+
+        // returns the number of rows of the grid
+        private int checkFramesArgs(int fromFrameNr, int toFrameNr, int columns,
+                int[] outDelaysMs) {
+            if (fromFrameNr < 0 || toFrameNr <= fromFrameNr || columns < 1) {
+                throw new IllegalArgumentException();
+            }
+            if (toFrameNr > mFrameSequence.getFrameCount()) {
+                throw new IllegalArgumentException("toFrameNr past the end of the sequence");
+            }
+            if (outDelaysMs == null || outDelaysMs.length < toFrameNr - fromFrameNr) {
+                throw new IllegalArgumentException("outDelaysMs must hold a delay per frame");
             }
             if (mNativeState == 0) {
                 throw new IllegalStateException("attempted to draw destroyed FrameSequenceState");
             }
-            return nativeGetFrame(mNativeState, frameNr, output, previousFrameNr);
+            return (toFrameNr - fromFrameNr + columns - 1) / columns;
         }
     }
 }
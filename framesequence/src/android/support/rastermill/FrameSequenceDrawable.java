@@ -27,12 +27,17 @@ import android.graphics.RectF;
 import android.graphics.Shader;
 import android.graphics.drawable.Animatable;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class FrameSequenceDrawable extends Drawable implements Animatable, Runnable {
     private static final String TAG = "FrameSequence";
     /**
@@ -44,17 +49,90 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     private static final long MIN_DELAY_MS = 20;
     private static final long DEFAULT_DELAY_MS = 100;
 
+    /**
+     * Levels of ComponentCallbacks2.onTrimMemory(int), not defined by the API level this library
+     * builds against.
+     */
+    private static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    private static final int TRIM_MEMORY_UI_HIDDEN = 20;
+
     private static final Object sLock = new Object();
-    private static HandlerThread sDecodingThread;
-    private static Handler sDecodingThreadHandler;
-    private static void initializeDecodingThread() {
+    private static Executor sDecodeExecutor;
+    private static Executor sDefaultDecodeExecutor;
+
+    /**
+     * Set the executor that all FrameSequenceDrawables decode frames on, or null to use the
+     * default pool of one background priority thread per core.
+     *
+     * Frames of a single drawable are always decoded one at a time, in order, so the executor
+     * only needs to provide parallelism across drawables. Tasks the executor rejects, e.g. once
+     * it is shut down, are dropped, so it must stay usable as long as drawables play.
+     */
+    public static void setDecodeExecutor(Executor executor) {
         synchronized (sLock) {
-            if (sDecodingThread != null) return;
+            sDecodeExecutor = executor;
+        }
+    }
 
-            sDecodingThread = new HandlerThread("FrameSequence decoding thread",
-                    Process.THREAD_PRIORITY_BACKGROUND);
-            sDecodingThread.start();
-            sDecodingThreadHandler = new Handler(sDecodingThread.getLooper());
+    private static Executor getDecodeExecutor() {
+        synchronized (sLock) {
+            if (sDecodeExecutor != null) return sDecodeExecutor;
+            if (sDefaultDecodeExecutor != null) return sDefaultDecodeExecutor;
+
+            sDefaultDecodeExecutor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, "FrameSequence decoding thread #" + mCount.getAndIncrement());
+                        }
+                    });
+            return sDefaultDecodeExecutor;
+        }
+    }
+
+    /**
+     * Runs a drawable's decodes on the shared decode executor one at a time, in submission order,
+     * so that a drawable's State is never used from two threads at once.
+     */
+    private static class SerialDecodeExecutor implements Executor {
+        private final LinkedList<Runnable> mTasks = new LinkedList<Runnable>();
+        private Runnable mActive;
+
+        @Override
+        public synchronized void execute(final Runnable runnable) {
+            mTasks.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            while ((mActive = mTasks.poll()) != null) {
+                try {
+                    getDecodeExecutor().execute(mActive);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // dropped, as waiting for it to run would hold back every later task
+                    Log.w(TAG, "decode task rejected: " + e);
+                }
+            }
         }
     }
 
@@ -71,6 +149,9 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     public static interface BitmapProvider {
         /**
          * Called by FrameSequenceDrawable to aquire an 8888 Bitmap with minimum dimensions.
+         *
+         * For opaque frame sequences an RGB_565 Bitmap may be returned instead, halving the
+         * memory per frame. All Bitmaps acquired by a drawable must share a config.
          */
         public abstract Bitmap acquireBitmap(int minWidth, int minHeight);
 
@@ -141,12 +222,176 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         mLoopCount = loopCount;
     }
 
+    /**
+     * Lets the decoder keep snapshots of composed frames, up to maxBytes in total. Frames that
+     * don't directly follow the contents of their buffer, such as the first frame of each loop or
+     * frames decoded with a deep lookahead, are then drawn from the nearest snapshot rather than
+     * from the start of the sequence. 0 (the default) disables snapshots.
+     */
+    public void setKeyframeCacheSize(final long maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException();
+        // applied on the decoding thread, which owns the state
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!isDestroyed()) {
+                    mFrameSequenceState.setKeyframeCacheSize(maxBytes);
+                }
+            }
+        });
+    }
+
+    /**
+     * Keeps every frame once it has been decoded, as long as all frames of the sequence fit in
+     * maxBytes, so that loops after the first are copied from memory and never decoded. Meant for
+     * short loops of small frames such as stickers. With compressed set, frames are deflated,
+     * fitting more frames in the budget at the cost of inflating each one as it's played.
+     *
+     * If the frames turn out not to fit, they are dropped and decoding continues as usual.
+     * For a sequence still loading, the cache starts once all frames are loaded. 0 (the
+     * default) disables the cache.
+     */
+    public void setFrameCacheSize(final long maxBytes, final boolean compressed) {
+        if (maxBytes < 0) throw new IllegalArgumentException();
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mFrameCache != null) {
+                    mFrameCache.clear();
+                    mFrameCache = null;
+                }
+                mPendingFrameCacheBytes = 0;
+                if (maxBytes > 0 && mFrameSequence.isLoading()) {
+                    // the cache is sized for all frames
+                    mPendingFrameCacheBytes = maxBytes;
+                    mPendingFrameCacheCompressed = compressed;
+                } else if (maxBytes > 0) {
+                    mFrameCache = createFrameCache(maxBytes, compressed);
+                }
+            }
+        });
+    }
+
+    // runs on the decoding thread, once the frame count is final
+    private FrameCache createFrameCache(long maxBytes, boolean compressed) {
+        return new FrameCache(mFrameSequence.getFrameCount(), mFrameSequenceState.getWidth(),
+                mFrameSequenceState.getHeight(), mFrameSequenceState.getConfig(), maxBytes,
+                compressed);
+    }
+
+    /**
+     * Decodes through the process wide {@link SharedFrameCache}, so that drawables showing the
+     * same FrameSequence at the same sample size and config decode each frame once between them
+     * instead of once each. The subscription ends when disabled or when the drawable is
+     * destroyed. Disabled by default.
+     */
+    public void setSharedFrameCacheEnabled(final boolean enabled) {
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (enabled && mSharedFrames == null && !isDestroyed()) {
+                    mSharedFrames = SharedFrameCache.acquire(mFrameSequence, mSampleSize,
+                            mFrameSequenceState.getConfig());
+                } else if (!enabled && mSharedFrames != null) {
+                    mSharedFrames.release();
+                    mSharedFrames = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * In real time mode, playback keeps to the timeline of the sequence when decoding can't keep
+     * up, instead of slowing down: each frame is decoded to be shown at its time counted from the
+     * start of playback, frames whose time has already passed are skipped, and decoded frames
+     * that went stale waiting for their turn are dropped when a later one is ready. Frames are
+     * never skipped past the end of a loop, so that loops are counted as usual.
+     *
+     * A frame skipped to is drawn from the nearest point the decoder can restore, which
+     * {@link #setKeyframeCacheSize(long)} keeps close. Takes effect the next time the drawable is
+     * started, unless the sequence is still loading, which plays as if disabled. Disabled by
+     * default.
+     */
+    public void setRealTimeEnabled(boolean enabled) {
+        long[] frameDelays = enabled ? loadFrameDelays() : null;
+        synchronized (mLock) {
+            mRealTimeEnabled = enabled;
+            if (frameDelays != null) {
+                mFrameDelays = frameDelays;
+            }
+        }
+    }
+
+    private long[] loadFrameDelays() {
+        final long[] frameDelays = new long[mFrameSequence.getFrameCount()];
+        for (int i = 0; i < frameDelays.length; i++) {
+            final long delay = mFrameSequence.getFrameDelay(i);
+            frameDelays[i] = delay < MIN_DELAY_MS ? DEFAULT_DELAY_MS : delay;
+        }
+        return frameDelays;
+    }
+
+    /**
+     * Gives memory back in response to ComponentCallbacks2.onTrimMemory(int). Must be called on
+     * the UI thread.
+     *
+     * From TRIM_MEMORY_RUNNING_LOW up, memory spent to decode faster is freed: the decoder's
+     * keyframe snapshots, and the cache enabled by {@link #setFrameCacheSize(long, boolean)},
+     * which stays disabled. From TRIM_MEMORY_UI_HIDDEN up, the drawable is also suspended as when
+     * made invisible, and resumes playing once it's drawn again. The process wide
+     * {@link SharedFrameCache} is trimmed separately.
+     */
+    public void trim(int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            suspend(true);
+        }
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            mDecodeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mFrameCache != null) {
+                        mFrameCache.clear();
+                        mFrameCache = null;
+                    }
+                    mPendingFrameCacheBytes = 0;
+                    if (!isDestroyed()) {
+                        mFrameSequenceState.trim();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Records playback metrics of this drawable into stats, or stops recording if null. Several
+     * drawables may record into the same stats. The Bitmaps the drawable holds when stats are set
+     * are counted as acquired then. Disabled by default.
+     */
+    public void setPlaybackStats(PlaybackStats stats) {
+        synchronized (mLock) {
+            if (stats != null && stats != mStats && !mDestroyed) {
+                stats.recordBitmapAcquisitions(mBackBitmaps.length + 1);
+            }
+            mStats = stats;
+        }
+    }
+
+    /** Returns the stats set by {@link #setPlaybackStats(PlaybackStats)}, or null. */
+    public PlaybackStats getPlaybackStats() {
+        return mStats;
+    }
+
     private final FrameSequence mFrameSequence;
     private final FrameSequence.State mFrameSequenceState;
+    private final int mSampleSize;
+    // only used on the decoding thread
+    private FrameCache mFrameCache;
+    private long mPendingFrameCacheBytes;
+    private boolean mPendingFrameCacheCompressed;
+    private SharedFrameCache.Entry mSharedFrames;
 
     private final Paint mPaint;
     private BitmapShader mFrontBitmapShader;
-    private BitmapShader mBackBitmapShader;
     private final Rect mSrcRect;
     private boolean mCircleMaskEnabled;
 
@@ -156,14 +401,41 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     private final BitmapProvider mBitmapProvider;
     private boolean mDestroyed = false;
     private Bitmap mFrontBitmap;
-    private Bitmap mBackBitmap;
+    private int mFrontBitmapFrame;
+
+    /**
+     * Ring of back buffers, decoded ahead of playback. mReadyCount slots starting at mReadyHead
+     * hold decoded frames in display order, the slot after them is the next to be decoded into.
+     */
+    private final Bitmap[] mBackBitmaps;
+    private final BitmapShader[] mBackBitmapShaders;
+    // frame currently drawn in each slot, or -1 if unknown
+    private final int[] mBackBitmapFrames;
+    // delay before each slot's frame is due, counted from the swap to the frame before it
+    private final long[] mBackBitmapDelays;
+    // in real time mode, the time each slot's frame is due
+    private final long[] mBackBitmapDueTimes;
+    // pixels of each slot changed by its last decode, a superset of the change on screen
+    private final Rect[] mBackBitmapDirtyRects;
+    private int mReadyHead;
+    private int mReadyCount;
+    private int mDecodingSlot = -1;
+
+    // set while suspended, see suspend(boolean)
+    private boolean mSuspended;
+    private boolean mRestartOnResume;
+    // set while the drawable holds no back Bitmaps, only changed on the decoding thread
+    private boolean mBitmapsReleased;
 
     private static final int STATE_SCHEDULED = 1;
     private static final int STATE_DECODING = 2;
     private static final int STATE_WAITING_TO_SWAP = 3;
     private static final int STATE_READY_TO_SWAP = 4;
 
+    // decoder state, one of 0, STATE_SCHEDULED or STATE_DECODING
     private int mState;
+    // swap state of the frame at mReadyHead, one of 0, STATE_WAITING_TO_SWAP or STATE_READY_TO_SWAP
+    private int mSwapState;
     private int mCurrentLoop;
     private int mLoopBehavior = LOOP_DEFAULT;
     private int mLoopCount = 1;
@@ -171,37 +443,91 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     private long mLastSwap;
     private long mNextSwap;
     private int mNextFrameToDecode;
+
+    // while the sequence loads, set if the frame after mNextFrameToDecode hasn't loaded yet
+    private boolean mWaitingForFrames;
+    // set if the last loaded frame was shown while loading, it ends a loop if no more frames load
+    private boolean mLoopEndPending;
+
+    private boolean mRealTimeEnabled;
+    // whether the current playback is in real time mode, set on start
+    private boolean mRealTime;
+    // delay after each frame before the next is due, set when real time mode is enabled
+    private long[] mFrameDelays;
+    // in real time mode, the time mNextFrameToDecode is due
+    private long mNextFrameDueTime;
     private OnFinishedListener mOnFinishedListener;
 
     private RectF mTempRectF = new RectF();
 
+    // part of the bounds changed by the frame being invalidated, only used on the UI thread
+    private final Rect mDirtyBounds = new Rect();
+    private boolean mUseDirtyBounds;
+
+    private final Executor mDecodeExecutor = new SerialDecodeExecutor();
+
+    private volatile PlaybackStats mStats;
+
     /**
-     * Runs on decoding thread, only modifies mBackBitmap's pixels
+     * Runs on decoding thread, only modifies the pixels of the next free slot in mBackBitmaps
      */
     private Runnable mDecodeRunnable = new Runnable() {
         @Override
         public void run() {
             int nextFrame;
+            int slot;
+            int lastFrame;
+            long dueTime;
             Bitmap bitmap;
             synchronized (mLock) {
                 if (mDestroyed) return;
 
                 nextFrame = mNextFrameToDecode;
-                if (nextFrame < 0) {
+                if (nextFrame < 0 || mBitmapsReleased) {
                     return;
                 }
-                bitmap = mBackBitmap;
+                dueTime = mNextFrameDueTime;
+                slot = (mReadyHead + mReadyCount) % mBackBitmaps.length;
+                bitmap = mBackBitmaps[slot];
+                lastFrame = mBackBitmapFrames[slot] < nextFrame ? mBackBitmapFrames[slot] : -1;
+                mDecodingSlot = slot;
                 mState = STATE_DECODING;
             }
-            int lastFrame = nextFrame - 2;
+            if (mPendingFrameCacheBytes > 0 && !mFrameSequence.isLoading()) {
+                mFrameCache = createFrameCache(mPendingFrameCacheBytes,
+                        mPendingFrameCacheCompressed);
+                mPendingFrameCacheBytes = 0;
+            }
+
             boolean exceptionDuringDecode = false;
             long invalidateTimeMs = 0;
+            final Rect dirtyRect = mBackBitmapDirtyRects[slot];
+            final long decodeStartNs = System.nanoTime();
             try {
-                invalidateTimeMs = mFrameSequenceState.getFrame(nextFrame, bitmap, lastFrame);
+                invalidateTimeMs = mFrameCache != null
+                        ? mFrameCache.get(nextFrame, bitmap, lastFrame, dirtyRect) : -1;
+                if (invalidateTimeMs < 0) {
+                    invalidateTimeMs = mSharedFrames != null
+                            ? mSharedFrames.getFrame(nextFrame, bitmap, lastFrame, dirtyRect)
+                            : mFrameSequenceState.getFrame(nextFrame, bitmap, lastFrame,
+                                    dirtyRect);
+                    if (mFrameCache != null) {
+                        mFrameCache.put(nextFrame, bitmap, invalidateTimeMs, lastFrame, dirtyRect);
+                        if (mFrameCache.isAbandoned()) {
+                            mFrameCache = null;
+                        }
+                    }
+                }
             } catch(Exception e) {
                 // Exception during decode: continue, but delay next frame indefinitely.
                 Log.e(TAG, "exception during decode: " + e);
                 exceptionDuringDecode = true;
+                dirtyRect.set(mSrcRect);
+            }
+
+            final PlaybackStats stats = mStats;
+            if (stats != null && !exceptionDuringDecode) {
+                stats.recordDecode(System.nanoTime() - decodeStartNs);
             }
 
             if (invalidateTimeMs < MIN_DELAY_MS) {
@@ -209,19 +535,39 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
             }
 
             boolean schedule = false;
+            long nextSwap = 0;
             Bitmap bitmapToRelease = null;
             synchronized (mLock) {
+                mDecodingSlot = -1;
                 if (mDestroyed) {
-                    bitmapToRelease = mBackBitmap;
-                    mBackBitmap = null;
-                } else if (mNextFrameToDecode >= 0 && mState == STATE_DECODING) {
-                    schedule = true;
-                    mNextSwap = exceptionDuringDecode ? Long.MAX_VALUE : invalidateTimeMs + mLastSwap;
-                    mState = STATE_WAITING_TO_SWAP;
+                    bitmapToRelease = mBackBitmaps[slot];
+                    mBackBitmaps[slot] = null;
+                } else {
+                    mBackBitmapFrames[slot] = exceptionDuringDecode ? -1 : nextFrame;
+                    if (mNextFrameToDecode >= 0 && mState == STATE_DECODING) {
+                        mBackBitmapDelays[slot] =
+                                exceptionDuringDecode ? Long.MAX_VALUE : invalidateTimeMs;
+                        mBackBitmapDueTimes[slot] =
+                                exceptionDuringDecode ? Long.MAX_VALUE : dueTime;
+                        mReadyCount++;
+                        mState = 0;
+                        if (mReadyCount == 1) {
+                            // nothing else is queued, so this frame is the next to swap in
+                            schedule = true;
+                            nextSwap = scheduleSwapLocked();
+                        }
+                        if (!exceptionDuringDecode && mReadyCount < mBackBitmaps.length) {
+                            // keep filling the ring ahead of playback
+                            scheduleDecodeLocked();
+                        }
+                    } else if (stats != null && !exceptionDuringDecode) {
+                        // stopped while decoding, the frame won't be shown
+                        stats.recordSkippedFrames(1);
+                    }
                 }
             }
             if (schedule) {
-                scheduleSelf(FrameSequenceDrawable.this, mNextSwap);
+                scheduleSelf(FrameSequenceDrawable.this, nextSwap);
             }
             if (bitmapToRelease != null) {
                 // destroy the bitmap here, since there's no safe way to get back to
@@ -231,12 +577,94 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         }
     };
 
+    /**
+     * Runs on decoding thread, so that no frame is being decoded into the released Bitmaps. The
+     * front Bitmap is kept, so that the frame shown can be drawn right away once resumed.
+     */
+    private final Runnable mReleaseBitmapsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Bitmap[] bitmapsToRelease = new Bitmap[mBackBitmaps.length];
+            synchronized (mLock) {
+                if (mDestroyed || !mSuspended || mBitmapsReleased) return;
+
+                for (int i = 0; i < mBackBitmaps.length; i++) {
+                    bitmapsToRelease[i] = mBackBitmaps[i];
+                    mBackBitmaps[i] = null;
+                    mBackBitmapShaders[i] = null;
+                    mBackBitmapFrames[i] = -1;
+                }
+                mBitmapsReleased = true;
+            }
+            for (Bitmap bitmap : bitmapsToRelease) {
+                mBitmapProvider.releaseBitmap(bitmap);
+            }
+        }
+    };
+
+    /**
+     * Runs on decoding thread, acquires the back Bitmaps again. They hold no frame, so the next
+     * decode draws from the nearest frame the decoder can restore.
+     */
+    private final Runnable mAcquireBitmapsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                if (mDestroyed || mSuspended || !mBitmapsReleased) return;
+            }
+
+            final int width = mSrcRect.width();
+            final int height = mSrcRect.height();
+            final Bitmap.Config config = mFrameSequenceState.getConfig();
+            final Bitmap[] bitmaps = new Bitmap[mBackBitmaps.length];
+            for (int i = 0; i < bitmaps.length; i++) {
+                bitmaps[i] = acquireAndValidateBitmap(mBitmapProvider, width, height,
+                        mFrameSequence, config);
+            }
+
+            boolean release = false;
+            synchronized (mLock) {
+                if (mDestroyed || mSuspended) {
+                    release = true;
+                } else {
+                    for (int i = 0; i < mBackBitmaps.length; i++) {
+                        mBackBitmaps[i] = bitmaps[i];
+                        mBackBitmapShaders[i] = new BitmapShader(mBackBitmaps[i],
+                                Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+                    }
+                    mBitmapsReleased = false;
+                }
+            }
+            if (release) {
+                for (Bitmap bitmap : bitmaps) {
+                    mBitmapProvider.releaseBitmap(bitmap);
+                }
+                return;
+            }
+            final PlaybackStats stats = mStats;
+            if (stats != null) {
+                stats.recordBitmapAcquisitions(bitmaps.length);
+            }
+            scheduleSelf(mInvalidateRunnable, 0);
+        }
+    };
+
+    private final Runnable mInvalidateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            invalidateSelf();
+        }
+    };
+
     private Runnable mFinishedCallbackRunnable = new Runnable() {
         @Override
         public void run() {
             synchronized (mLock) {
                 mNextFrameToDecode = -1;
                 mState = 0;
+                mWaitingForFrames = false;
+                mLoopEndPending = false;
+                clearReadyFramesLocked();
             }
             if (mOnFinishedListener != null) {
                 mOnFinishedListener.onFinished(FrameSequenceDrawable.this);
@@ -244,13 +672,55 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         }
     };
 
+    /**
+     * Called on the loading thread of a sequence that is still loading, resumes decoding when
+     * the frame it waits for is added, or when loading ends and playback wraps to the first frame.
+     */
+    private final FrameSequence.OnFramesLoadedListener mFramesLoadedListener =
+            new FrameSequence.OnFramesLoadedListener() {
+        @Override
+        public void onFramesLoaded(FrameSequence frameSequence) {
+            // loading state is read before the frame count, which is final once loading ends
+            final boolean loading = frameSequence.isLoading();
+            if (!loading) {
+                frameSequence.removeOnFramesLoadedListener(this);
+            }
+            boolean finished = false;
+            synchronized (mLock) {
+                if (mDestroyed || !mWaitingForFrames) return;
+
+                if (mNextFrameToDecode + 1 < frameSequence.getFrameCount()) {
+                    // the frame shown last didn't end the loop
+                    mLoopEndPending = false;
+                    scheduleDecodeLocked();
+                } else if (!loading) {
+                    if (mLoopEndPending) {
+                        mLoopEndPending = false;
+                        finished = !endLoopLocked();
+                    }
+                    if (!finished) {
+                        scheduleDecodeLocked();
+                    }
+                }
+            }
+            if (finished) {
+                scheduleSelf(mFinishedCallbackRunnable, 0);
+            }
+        }
+    };
+
+    /**
+     * Acquires a Bitmap of the given config, or if config is null of any config the sequence can
+     * be drawn into.
+     */
     private static Bitmap acquireAndValidateBitmap(BitmapProvider bitmapProvider,
-            int minWidth, int minHeight) {
+            int minWidth, int minHeight, FrameSequence frameSequence, Bitmap.Config config) {
         Bitmap bitmap = bitmapProvider.acquireBitmap(minWidth, minHeight);
 
         if (bitmap.getWidth() < minWidth
                 || bitmap.getHeight() < minHeight
-                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                || !frameSequence.isSupportedConfig(bitmap.getConfig())
+                || (config != null && bitmap.getConfig() != config)) {
             throw new IllegalArgumentException("Invalid bitmap provided");
         }
 
@@ -262,30 +732,74 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     }
 
     public FrameSequenceDrawable(FrameSequence frameSequence, BitmapProvider bitmapProvider) {
+        this(frameSequence, bitmapProvider, 1);
+    }
+
+    /**
+     * Create a drawable that decodes up to lookaheadFrames frames ahead of the one on screen, so
+     * that a slow decode of a single frame doesn't stall playback. Each frame of lookahead costs
+     * one additional frame sized Bitmap from the BitmapProvider.
+     */
+    public FrameSequenceDrawable(FrameSequence frameSequence, BitmapProvider bitmapProvider,
+            int lookaheadFrames) {
+        this(frameSequence, bitmapProvider, lookaheadFrames, 1);
+    }
+
+    /**
+     * Create a drawable that decodes frames downsampled by sampleSize, keeping every
+     * sampleSize-th pixel of every sampleSize-th row. Bitmaps and decoding work shrink
+     * accordingly, while the intrinsic size stays that of the FrameSequence.
+     *
+     * @see FrameSequence#computeSampleSize(int, int)
+     */
+    public FrameSequenceDrawable(FrameSequence frameSequence, BitmapProvider bitmapProvider,
+            int lookaheadFrames, int sampleSize) {
         if (frameSequence == null || bitmapProvider == null) throw new IllegalArgumentException();
+        if (lookaheadFrames < 1) {
+            throw new IllegalArgumentException("lookaheadFrames must be positive");
+        }
+        if (sampleSize < 1) throw new IllegalArgumentException("sampleSize must be positive");
 
         mFrameSequence = frameSequence;
-        mFrameSequenceState = frameSequence.createState();
-        final int width = frameSequence.getWidth();
-        final int height = frameSequence.getHeight();
+        mSampleSize = sampleSize;
+        final int width = FrameSequence.getSampledSize(frameSequence.getWidth(), sampleSize);
+        final int height = FrameSequence.getSampledSize(frameSequence.getHeight(), sampleSize);
 
         mBitmapProvider = bitmapProvider;
-        mFrontBitmap = acquireAndValidateBitmap(bitmapProvider, width, height);
-        mBackBitmap = acquireAndValidateBitmap(bitmapProvider, width, height);
+        // the provider's choice of config for the first Bitmap is used for all frames
+        mFrontBitmap = acquireAndValidateBitmap(bitmapProvider, width, height, frameSequence, null);
+        final Bitmap.Config config = mFrontBitmap.getConfig();
+        mFrameSequenceState = frameSequence.createState(sampleSize, config);
+        mBackBitmaps = new Bitmap[lookaheadFrames];
+        mBackBitmapShaders = new BitmapShader[lookaheadFrames];
+        mBackBitmapFrames = new int[lookaheadFrames];
+        mBackBitmapDelays = new long[lookaheadFrames];
+        mBackBitmapDueTimes = new long[lookaheadFrames];
+        mBackBitmapDirtyRects = new Rect[lookaheadFrames];
+        for (int i = 0; i < lookaheadFrames; i++) {
+            mBackBitmaps[i] = acquireAndValidateBitmap(bitmapProvider, width, height,
+                    frameSequence, config);
+            mBackBitmapShaders[i] = new BitmapShader(mBackBitmaps[i],
+                    Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            mBackBitmapFrames[i] = -1;
+            mBackBitmapDirtyRects[i] = new Rect();
+        }
         mSrcRect = new Rect(0, 0, width, height);
         mPaint = new Paint();
         mPaint.setFilterBitmap(true);
 
         mFrontBitmapShader
             = new BitmapShader(mFrontBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
-        mBackBitmapShader
-            = new BitmapShader(mBackBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
 
         mLastSwap = 0;
 
         mNextFrameToDecode = -1;
         mFrameSequenceState.getFrame(0, mFrontBitmap, -1);
-        initializeDecodingThread();
+        mFrontBitmapFrame = 0;
+
+        if (frameSequence.isLoading()) {
+            frameSequence.addOnFramesLoadedListener(mFramesLoadedListener);
+        }
     }
 
     /**
@@ -330,74 +844,115 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
             throw new IllegalStateException("BitmapProvider must be non-null");
         }
 
-        Bitmap bitmapToReleaseA;
-        Bitmap bitmapToReleaseB = null;
+        Bitmap[] bitmapsToRelease = new Bitmap[mBackBitmaps.length + 1];
         synchronized (mLock) {
             checkDestroyedLocked();
 
-            bitmapToReleaseA = mFrontBitmap;
+            bitmapsToRelease[0] = mFrontBitmap;
             mFrontBitmap = null;
 
-            if (mState != STATE_DECODING) {
-                bitmapToReleaseB = mBackBitmap;
-                mBackBitmap = null;
+            // the slot being decoded into is released by the decoding thread once it's done
+            for (int i = 0; i < mBackBitmaps.length; i++) {
+                if (i != mDecodingSlot) {
+                    bitmapsToRelease[i + 1] = mBackBitmaps[i];
+                    mBackBitmaps[i] = null;
+                }
             }
 
             mDestroyed = true;
         }
+        mFrameSequence.removeOnFramesLoadedListener(mFramesLoadedListener);
+
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mFrameCache != null) {
+                    mFrameCache.clear();
+                    mFrameCache = null;
+                }
+                if (mSharedFrames != null) {
+                    mSharedFrames.release();
+                    mSharedFrames = null;
+                }
+                // queued after any decode, which is the only other user of the state
+                mFrameSequenceState.close();
+            }
+        });
 
-        // For simplicity and safety, we don't destroy the state object here
-        mBitmapProvider.releaseBitmap(bitmapToReleaseA);
-        if (bitmapToReleaseB != null) {
-            mBitmapProvider.releaseBitmap(bitmapToReleaseB);
-        }
-    }
-
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            mFrameSequenceState.destroy();
-        } finally {
-            super.finalize();
+        for (Bitmap bitmap : bitmapsToRelease) {
+            if (bitmap != null) {
+                mBitmapProvider.releaseBitmap(bitmap);
+            }
         }
     }
 
     @Override
     public void draw(Canvas canvas) {
+        boolean restart = false;
         synchronized (mLock) {
             checkDestroyedLocked();
-            if (mState == STATE_WAITING_TO_SWAP) {
+            if (mSuspended) {
+                restart = mRestartOnResume;
+                resumeLocked();
+            }
+        }
+        if (restart) {
+            start();
+        }
+
+        synchronized (mLock) {
+            if (mSwapState == STATE_WAITING_TO_SWAP) {
                 // may have failed to schedule mark ready runnable,
                 // so go ahead and swap if swapping is due
                 if (mNextSwap - SystemClock.uptimeMillis() <= 0) {
-                    mState = STATE_READY_TO_SWAP;
+                    mSwapState = STATE_READY_TO_SWAP;
                 }
             }
 
-            if (isRunning() && mState == STATE_READY_TO_SWAP) {
+            if (isRunning() && mSwapState == STATE_READY_TO_SWAP) {
                 // Because draw has occurred, the view system is guaranteed to no longer hold a
-                // reference to the old mFrontBitmap, so we now use it to produce the next frame
-                Bitmap tmp = mBackBitmap;
-                mBackBitmap = mFrontBitmap;
+                // reference to the old mFrontBitmap, so we now use it to produce a later frame.
+                // It takes the place of the swapped in slot, which becomes the last free one.
+                final int slot = mReadyHead;
+                Bitmap tmp = mBackBitmaps[slot];
+                mBackBitmaps[slot] = mFrontBitmap;
                 mFrontBitmap = tmp;
 
-                BitmapShader tmpShader = mBackBitmapShader;
-                mBackBitmapShader = mFrontBitmapShader;
+                BitmapShader tmpShader = mBackBitmapShaders[slot];
+                mBackBitmapShaders[slot] = mFrontBitmapShader;
                 mFrontBitmapShader = tmpShader;
 
+                int shownFrame = mBackBitmapFrames[slot];
+                mBackBitmapFrames[slot] = mFrontBitmapFrame;
+                mFrontBitmapFrame = shownFrame;
+
+                mReadyHead = (slot + 1) % mBackBitmaps.length;
+                mReadyCount--;
+                mSwapState = 0;
                 mLastSwap = SystemClock.uptimeMillis();
+                final PlaybackStats stats = mStats;
+                if (stats != null && mNextSwap != Long.MAX_VALUE) {
+                    stats.recordSwap(Math.max(mLastSwap - mNextSwap, 0));
+                }
 
                 boolean continueLooping = true;
-                if (mNextFrameToDecode == mFrameSequence.getFrameCount() - 1) {
-                    mCurrentLoop++;
-                    if ((mLoopBehavior == LOOP_FINITE && mCurrentLoop == mLoopCount) ||
-                            (mLoopBehavior == LOOP_DEFAULT && mCurrentLoop == mFrameSequence.getDefaultLoopCount())) {
-                        continueLooping = false;
+                final boolean loading = mFrameSequence.isLoading();
+                if (shownFrame == mFrameSequence.getFrameCount() - 1) {
+                    if (loading) {
+                        // decided once the next frame loads, or loading ends without one
+                        mLoopEndPending = true;
+                    } else {
+                        continueLooping = endLoopLocked();
                     }
                 }
 
                 if (continueLooping) {
-                    scheduleDecodeLocked();
+                    if (mReadyCount > 0) {
+                        scheduleSelf(this, scheduleSwapLocked());
+                    }
+                    if (mState == 0) {
+                        scheduleDecodeLocked();
+                    }
                 } else {
                     scheduleSelf(mFinishedCallbackRunnable, 0);
                 }
@@ -406,13 +961,13 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
 
         if (mCircleMaskEnabled) {
             final Rect bounds = getBounds();
-            final int bitmapWidth = getIntrinsicWidth();
-            final int bitmapHeight = getIntrinsicHeight();
+            final int bitmapWidth = mSrcRect.width();
+            final int bitmapHeight = mSrcRect.height();
             final float scaleX = 1.0f * bounds.width() / bitmapWidth;
             final float scaleY = 1.0f * bounds.height() / bitmapHeight;
 
             canvas.save();
-            // scale and translate to account for bounds, so we can operate in intrinsic
+            // scale and translate to account for bounds, so we can operate in bitmap
             // width/height (so it's valid to use an unscaled bitmap shader)
             canvas.translate(bounds.left, bounds.top);
             canvas.scale(scaleX, scaleY);
@@ -436,24 +991,198 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         }
     }
 
+    /**
+     * Stops playback and releases the back Bitmaps to the BitmapProvider, keeping the decoder, its
+     * keyframe snapshots and the frame shown to resume quickly. With restartOnResume, playback restarts if it was
+     * running once the drawable is drawn again.
+     */
+    private void suspend(boolean restartOnResume) {
+        final boolean wasRunning = isRunning();
+        stop();
+        synchronized (mLock) {
+            if (mDestroyed || mSuspended) return;
+            mSuspended = true;
+            mRestartOnResume = restartOnResume && wasRunning;
+        }
+        mDecodeExecutor.execute(mReleaseBitmapsRunnable);
+    }
+
+    private void resumeLocked() {
+        if (!mSuspended) return;
+        mSuspended = false;
+        mDecodeExecutor.execute(mAcquireBitmapsRunnable);
+    }
+
+    /**
+     * Counts the loop ended by showing the last frame, returns false if playback is over.
+     */
+    private boolean endLoopLocked() {
+        mCurrentLoop++;
+        return !((mLoopBehavior == LOOP_FINITE && mCurrentLoop == mLoopCount) ||
+                (mLoopBehavior == LOOP_DEFAULT
+                        && mCurrentLoop == mFrameSequence.getDefaultLoopCount()));
+    }
+
     private void scheduleDecodeLocked() {
+        // loading state is read before the frame count, which is final once loading ends
+        final boolean loading = mFrameSequence.isLoading();
+        if (loading && mNextFrameToDecode + 1 >= mFrameSequence.getFrameCount()) {
+            // resumed by mFramesLoadedListener
+            mWaitingForFrames = true;
+            return;
+        }
+        mWaitingForFrames = false;
         mState = STATE_SCHEDULED;
-        mNextFrameToDecode = (mNextFrameToDecode + 1) % mFrameSequence.getFrameCount();
-        sDecodingThreadHandler.post(mDecodeRunnable);
+        if (mRealTime) {
+            advanceRealTimeLocked();
+        } else {
+            mNextFrameToDecode = (mNextFrameToDecode + 1) % mFrameSequence.getFrameCount();
+        }
+        mDecodeExecutor.execute(mDecodeRunnable);
+    }
+
+    /**
+     * Advances mNextFrameToDecode to the first frame after it that isn't over by now, or to the
+     * first frame due now if playback is starting.
+     */
+    private void advanceRealTimeLocked() {
+        final int lastFrame = mFrameSequence.getFrameCount() - 1;
+        final long now = SystemClock.uptimeMillis();
+        int frame;
+        long dueTime;
+        if (mNextFrameToDecode < 0) {
+            frame = 0;
+            dueTime = now;
+        } else {
+            frame = mNextFrameToDecode == lastFrame ? 0 : mNextFrameToDecode + 1;
+            dueTime = mNextFrameDueTime + mFrameDelays[mNextFrameToDecode];
+        }
+        int skipped = 0;
+        while (frame < lastFrame && dueTime + mFrameDelays[frame] <= now) {
+            dueTime += mFrameDelays[frame];
+            frame++;
+            skipped++;
+        }
+        mNextFrameToDecode = frame;
+        mNextFrameDueTime = dueTime;
+
+        final PlaybackStats stats = mStats;
+        if (stats != null) {
+            stats.recordRealTimeSkippedFrames(skipped);
+        }
+    }
+
+    /**
+     * In real time mode, drops ready frames that are over by now while a later frame is ready to
+     * take their place. Returns true if any were dropped.
+     */
+    private boolean dropStaleFramesLocked() {
+        if (!mRealTime) return false;
+
+        final int lastFrame = mFrameSequence.getFrameCount() - 1;
+        final long now = SystemClock.uptimeMillis();
+        int dropped = 0;
+        while (mReadyCount > 1) {
+            final int slot = mReadyHead;
+            final int frame = mBackBitmapFrames[slot];
+            if (frame < 0 || frame == lastFrame
+                    || mBackBitmapDueTimes[slot] + mFrameDelays[frame] > now) {
+                break;
+            }
+            // the slot becomes the last free one, still holding its frame for later decodes
+            mReadyHead = (slot + 1) % mBackBitmaps.length;
+            mReadyCount--;
+            dropped++;
+        }
+        if (dropped > 0) {
+            scheduleSwapLocked();
+            mSwapState = STATE_READY_TO_SWAP;
+            final PlaybackStats stats = mStats;
+            if (stats != null) {
+                stats.recordSkippedFrames(dropped);
+            }
+            if (mState == 0) {
+                scheduleDecodeLocked();
+            }
+        }
+        return dropped > 0;
+    }
+
+    /**
+     * Marks the frame at mReadyHead as waiting to swap, returning the time it is due.
+     */
+    private long scheduleSwapLocked() {
+        if (mRealTime) {
+            mNextSwap = mBackBitmapDueTimes[mReadyHead];
+        } else {
+            final long delay = mBackBitmapDelays[mReadyHead];
+            mNextSwap = delay == Long.MAX_VALUE ? Long.MAX_VALUE : mLastSwap + delay;
+        }
+        mSwapState = STATE_WAITING_TO_SWAP;
+        return mNextSwap;
+    }
+
+    /**
+     * Drops decoded frames that haven't been swapped in yet, freeing their slots.
+     */
+    private void clearReadyFramesLocked() {
+        final PlaybackStats stats = mStats;
+        if (stats != null) {
+            stats.recordSkippedFrames(mReadyCount);
+        }
+        mReadyCount = 0;
+        mSwapState = 0;
+    }
+
+    /**
+     * Maps the changed pixels of the frame at mReadyHead to mDirtyBounds. Returns false if the
+     * whole drawable should be invalidated instead.
+     */
+    private boolean computeDirtyBoundsLocked() {
+        final Rect dirty = mBackBitmapDirtyRects[mReadyHead];
+        final Rect bounds = getBounds();
+        if (dirty.isEmpty() || bounds.isEmpty()
+                || (dirty.width() >= mSrcRect.width() && dirty.height() >= mSrcRect.height())) {
+            // still invalidate everything for an unchanged frame, drawing is what swaps it in
+            return false;
+        }
+
+        final float scaleX = 1.0f * bounds.width() / mSrcRect.width();
+        final float scaleY = 1.0f * bounds.height() / mSrcRect.height();
+        // outset by a pixel, as bitmap filtering blends neighbouring pixels into the edges
+        mDirtyBounds.set(
+                bounds.left + (int) Math.floor(dirty.left * scaleX) - 1,
+                bounds.top + (int) Math.floor(dirty.top * scaleY) - 1,
+                bounds.left + (int) Math.ceil(dirty.right * scaleX) + 1,
+                bounds.top + (int) Math.ceil(dirty.bottom * scaleY) + 1);
+        return mDirtyBounds.intersect(bounds);
+    }
+
+    /**
+     * While a newly decoded frame is being invalidated, returns only the part of the bounds it
+     * changes, so that views (on API 11+) redraw just that region.
+     */
+    public Rect getDirtyBounds() {
+        return mUseDirtyBounds ? mDirtyBounds : getBounds();
     }
 
     @Override
     public void run() {
         // set ready to swap as necessary
         boolean invalidate = false;
+        boolean partial = false;
         synchronized (mLock) {
-            if (mNextFrameToDecode >= 0 && mState == STATE_WAITING_TO_SWAP) {
-                mState = STATE_READY_TO_SWAP;
+            if (mNextFrameToDecode >= 0 && mSwapState == STATE_WAITING_TO_SWAP) {
+                mSwapState = STATE_READY_TO_SWAP;
                 invalidate = true;
+                // a frame swapped in after dropped ones changes more than its own dirty rect
+                partial = !dropStaleFramesLocked() && computeDirtyBoundsLocked();
             }
         }
         if (invalidate) {
+            mUseDirtyBounds = partial;
             invalidateSelf();
+            mUseDirtyBounds = false;
         }
     }
 
@@ -463,7 +1192,14 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
             synchronized (mLock) {
                 checkDestroyedLocked();
                 if (mState == STATE_SCHEDULED) return; // already scheduled
+                // Bitmaps are acquired before the decode below runs
+                resumeLocked();
                 mCurrentLoop = 0;
+                mRealTime = mRealTimeEnabled && !mFrameSequence.isLoading();
+                if (mRealTime && mFrameDelays.length != mFrameSequence.getFrameCount()) {
+                    // enabled while frames were still loading
+                    mFrameDelays = loadFrameDelays();
+                }
                 scheduleDecodeLocked();
             }
         }
@@ -488,16 +1224,25 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         synchronized (mLock) {
             mNextFrameToDecode = -1;
             mState = 0;
+            mWaitingForFrames = false;
+            mLoopEndPending = false;
+            clearReadyFramesLocked();
         }
         super.unscheduleSelf(what);
     }
 
+    /**
+     * Making the drawable invisible suspends it: playback stops and its back Bitmaps are released
+     * to the BitmapProvider until it is started or drawn again, keeping only the frame shown.
+     * Views make their drawables invisible when hidden, and on API 24+ also when detached or
+     * scrolled out of their parent.
+     */
     @Override
     public boolean setVisible(boolean visible, boolean restart) {
         boolean changed = super.setVisible(visible, restart);
 
         if (!visible) {
-            stop();
+            suspend(false);
         } else if (restart || changed) {
             stop();
             start();
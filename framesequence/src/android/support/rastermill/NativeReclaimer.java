@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.util.Log;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+
+/**
+ * Frees native allocations of FrameSequences and States as soon as they're closed, or once their
+ * owner is collected if it never was, without waiting for a finalizer pass. The bytes held are
+ * reported to the runtime, so that the collector counts them as pressure on the heap.
+ *
+ * Owners are tracked by a PhantomReference each, drained from a queue by a single daemon thread.
+ */
+final class NativeReclaimer {
+    private static final String TAG = "FrameSequence";
+
+    private static final ReferenceQueue<Object> sQueue = new ReferenceQueue<Object>();
+    // the collector only enqueues references that are themselves reachable
+    private static final HashSet<Handle> sHandles = new HashSet<Handle>();
+    private static Thread sReclaimThread;
+
+    // dalvik.system.VMRuntime, which isn't part of the public API, resolved on first report
+    private static boolean sRuntimeResolved;
+    private static Object sRuntime;
+    private static Method sRegisterNativeAllocation;
+    private static Method sRegisterNativeFree;
+
+    private NativeReclaimer() {}
+
+    /**
+     * A native allocation, freed once its owner has released it, either explicitly or by being
+     * collected, and every child allocation depending on it was freed. Owners that need the
+     * allocation to outlive a call hold it with {@link #acquire()}.
+     */
+    abstract static class Handle extends PhantomReference<Object> {
+        private final Handle mParent;
+        private long mNativeBytes;
+        // one for the owner, plus one per child and call holding the allocation
+        private int mRefCount = 1;
+        private boolean mOwnerReleased;
+
+        /**
+         * Tracks the allocation of owner, which keeps parent's allocation alive until freed. The
+         * parent must be held by the caller.
+         */
+        Handle(Object owner, Handle parent) {
+            super(owner, sQueue);
+            mParent = parent;
+            if (parent != null) {
+                parent.ref();
+            }
+            synchronized (sHandles) {
+                sHandles.add(this);
+                startReclaimThreadLocked();
+            }
+        }
+
+        /** Frees the native allocation, called once on any thread. */
+        protected abstract void free();
+
+        /**
+         * Holds the allocation until {@link #unref()}, returns false without holding it if the
+         * owner has already released it.
+         */
+        final synchronized boolean acquire() {
+            if (mOwnerReleased) return false;
+            mRefCount++;
+            return true;
+        }
+
+        private synchronized void ref() {
+            mRefCount++;
+        }
+
+        final synchronized boolean isReleased() {
+            return mOwnerReleased;
+        }
+
+        /** Reports the bytes now held by the allocation, replacing the previous report. */
+        final void setNativeBytes(long bytes) {
+            final long delta;
+            synchronized (this) {
+                if (mRefCount == 0) return;
+                delta = bytes - mNativeBytes;
+                mNativeBytes = bytes;
+            }
+            reportNativeBytes(delta);
+        }
+
+        /**
+         * Drops the owner's hold on the allocation, which is freed once nothing else holds it.
+         * Returns false if it was already released.
+         */
+        final boolean release() {
+            synchronized (this) {
+                if (mOwnerReleased) return false;
+                mOwnerReleased = true;
+            }
+            clear();
+            synchronized (sHandles) {
+                sHandles.remove(this);
+            }
+            unref();
+            return true;
+        }
+
+        final void unref() {
+            final long bytes;
+            synchronized (this) {
+                if (--mRefCount > 0) return;
+                bytes = mNativeBytes;
+                mNativeBytes = 0;
+            }
+            free();
+            reportNativeBytes(-bytes);
+            if (mParent != null) {
+                mParent.unref();
+            }
+        }
+    }
+
+    private static void startReclaimThreadLocked() {
+        if (sReclaimThread != null) return;
+
+        sReclaimThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        ((Handle) sQueue.remove()).release();
+                    } catch (InterruptedException e) {
+                        // keep draining, the thread lives as long as the process
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "exception while reclaiming native memory: " + e);
+                    }
+                }
+            }
+        }, "FrameSequence reclaimer");
+        sReclaimThread.setDaemon(true);
+        sReclaimThread.start();
+    }
+
+    private static void reportNativeBytes(long delta) {
+        if (delta == 0) return;
+
+        final Object runtime;
+        final Method method;
+        synchronized (NativeReclaimer.class) {
+            if (!sRuntimeResolved) {
+                sRuntimeResolved = true;
+                try {
+                    final Class<?> clazz = Class.forName("dalvik.system.VMRuntime");
+                    sRuntime = clazz.getMethod("getRuntime").invoke(null);
+                    sRegisterNativeAllocation =
+                            clazz.getMethod("registerNativeAllocation", int.class);
+                    sRegisterNativeFree = clazz.getMethod("registerNativeFree", int.class);
+                } catch (Exception e) {
+                    // older releases, or the methods are hidden: GC pressure just isn't reported
+                    sRuntime = null;
+                }
+            }
+            runtime = sRuntime;
+            method = delta > 0 ? sRegisterNativeAllocation : sRegisterNativeFree;
+        }
+        if (runtime == null) return;
+
+        try {
+            method.invoke(runtime, (int) Math.min(Math.abs(delta), Integer.MAX_VALUE));
+        } catch (Exception e) {
+            synchronized (NativeReclaimer.class) {
+                sRuntime = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+/**
+ * Playback metrics of FrameSequenceDrawables: how long frames take to decode, how late they are
+ * swapped in compared to when they were due, how many decoded frames are dropped without being
+ * shown, how many frames real time playback jumps over without decoding, and how many Bitmaps are
+ * acquired from the BitmapProvider.
+ *
+ * Recording is opt in, see {@link FrameSequenceDrawable#setPlaybackStats(PlaybackStats)}. A
+ * stats object may be shared by several drawables, and everything recorded into any of them is
+ * also recorded into the process wide {@link #getAggregate() aggregate}. All methods are thread
+ * safe.
+ *
+ * Durations are bucketed into a histogram of power of two milliseconds, see
+ * {@link #getBucketUpperBoundMs(int)}.
+ */
+public final class PlaybackStats {
+    // exclusive upper bounds of the histogram buckets, the last bucket is unbounded
+    private static final long[] BUCKET_BOUNDS_MS = { 1, 2, 4, 8, 16, 32, 64, 128, 256, 512 };
+    private static final int BUCKET_COUNT = BUCKET_BOUNDS_MS.length + 1;
+
+    private static final PlaybackStats sAggregate = new PlaybackStats(false);
+
+    private final boolean mRecordsAggregate;
+
+    private final long[] mDecodeHistogram = new long[BUCKET_COUNT];
+    private long mDecodeCount;
+    private long mDecodeTotalNs;
+    private long mDecodeMaxNs;
+
+    private final long[] mLatenessHistogram = new long[BUCKET_COUNT];
+    private long mSwapCount;
+    private long mLateSwapCount;
+    private long mLatenessMaxMs;
+
+    private long mSkippedFrameCount;
+    private long mRealTimeSkippedFrameCount;
+    private long mBitmapAcquisitionCount;
+
+    public PlaybackStats() {
+        this(true);
+    }
+
+    private PlaybackStats(boolean recordsAggregate) {
+        mRecordsAggregate = recordsAggregate;
+    }
+
+    /**
+     * Returns the stats recorded by all drawables that have stats set, whichever object they
+     * record into.
+     */
+    public static PlaybackStats getAggregate() {
+        return sAggregate;
+    }
+
+    /** Returns the number of buckets of the histograms. */
+    public static int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    /**
+     * Returns the exclusive upper bound in ms of a histogram bucket, or Long.MAX_VALUE for the
+     * last. The lower bound is that of the previous bucket, or 0 for the first.
+     */
+    public static long getBucketUpperBoundMs(int bucket) {
+        if (bucket < 0 || bucket >= BUCKET_COUNT) throw new IllegalArgumentException();
+        return bucket < BUCKET_BOUNDS_MS.length ? BUCKET_BOUNDS_MS[bucket] : Long.MAX_VALUE;
+    }
+
+    private static int getBucket(long ms) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MS.length && ms >= BUCKET_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    void recordDecode(long durationNs) {
+        synchronized (this) {
+            mDecodeHistogram[getBucket(durationNs / 1000000)]++;
+            mDecodeCount++;
+            mDecodeTotalNs += durationNs;
+            mDecodeMaxNs = Math.max(mDecodeMaxNs, durationNs);
+        }
+        if (mRecordsAggregate) sAggregate.recordDecode(durationNs);
+    }
+
+    /** Records a frame swapped in latenessMs after it was due, 0 if on time. */
+    void recordSwap(long latenessMs) {
+        synchronized (this) {
+            mLatenessHistogram[getBucket(latenessMs)]++;
+            mSwapCount++;
+            if (latenessMs > 0) mLateSwapCount++;
+            mLatenessMaxMs = Math.max(mLatenessMaxMs, latenessMs);
+        }
+        if (mRecordsAggregate) sAggregate.recordSwap(latenessMs);
+    }
+
+    void recordSkippedFrames(int count) {
+        if (count <= 0) return;
+        synchronized (this) {
+            mSkippedFrameCount += count;
+        }
+        if (mRecordsAggregate) sAggregate.recordSkippedFrames(count);
+    }
+
+    void recordRealTimeSkippedFrames(int count) {
+        if (count <= 0) return;
+        synchronized (this) {
+            mRealTimeSkippedFrameCount += count;
+        }
+        if (mRecordsAggregate) sAggregate.recordRealTimeSkippedFrames(count);
+    }
+
+    void recordBitmapAcquisitions(int count) {
+        if (count <= 0) return;
+        synchronized (this) {
+            mBitmapAcquisitionCount += count;
+        }
+        if (mRecordsAggregate) sAggregate.recordBitmapAcquisitions(count);
+    }
+
+    /**
+     * Returns a copy of the stats recorded so far, consistent across all values, then clears
+     * them if reset is set. This suits periodic reporting of the stats since the last report.
+     */
+    public PlaybackStats snapshot(boolean reset) {
+        final PlaybackStats copy = new PlaybackStats(false);
+        synchronized (this) {
+            System.arraycopy(mDecodeHistogram, 0, copy.mDecodeHistogram, 0, BUCKET_COUNT);
+            copy.mDecodeCount = mDecodeCount;
+            copy.mDecodeTotalNs = mDecodeTotalNs;
+            copy.mDecodeMaxNs = mDecodeMaxNs;
+            System.arraycopy(mLatenessHistogram, 0, copy.mLatenessHistogram, 0, BUCKET_COUNT);
+            copy.mSwapCount = mSwapCount;
+            copy.mLateSwapCount = mLateSwapCount;
+            copy.mLatenessMaxMs = mLatenessMaxMs;
+            copy.mSkippedFrameCount = mSkippedFrameCount;
+            copy.mRealTimeSkippedFrameCount = mRealTimeSkippedFrameCount;
+            copy.mBitmapAcquisitionCount = mBitmapAcquisitionCount;
+            if (reset) resetLocked();
+        }
+        return copy;
+    }
+
+    /** Clears all recorded values. */
+    public void reset() {
+        synchronized (this) {
+            resetLocked();
+        }
+    }
+
+    private void resetLocked() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mDecodeHistogram[i] = 0;
+            mLatenessHistogram[i] = 0;
+        }
+        mDecodeCount = 0;
+        mDecodeTotalNs = 0;
+        mDecodeMaxNs = 0;
+        mSwapCount = 0;
+        mLateSwapCount = 0;
+        mLatenessMaxMs = 0;
+        mSkippedFrameCount = 0;
+        mRealTimeSkippedFrameCount = 0;
+        mBitmapAcquisitionCount = 0;
+    }
+
+    /** Returns the number of frames decoded, including those drawn from frame caches. */
+    public synchronized long getDecodeCount() {
+        return mDecodeCount;
+    }
+
+    /** Returns the total time spent decoding frames, in ns. */
+    public synchronized long getDecodeTotalNs() {
+        return mDecodeTotalNs;
+    }
+
+    /** Returns the longest time spent decoding a frame, in ns. */
+    public synchronized long getDecodeMaxNs() {
+        return mDecodeMaxNs;
+    }
+
+    /** Returns the number of decoded frames in each bucket of decode time. */
+    public synchronized long[] getDecodeHistogram() {
+        return mDecodeHistogram.clone();
+    }
+
+    /** Returns the number of frames swapped in, whether on time or late. */
+    public synchronized long getSwapCount() {
+        return mSwapCount;
+    }
+
+    /**
+     * Returns the number of frames swapped in after they were due. Swaps happen as the drawable
+     * is drawn, so on a display refreshing every 16 ms most frames are a few ms late.
+     */
+    public synchronized long getLateSwapCount() {
+        return mLateSwapCount;
+    }
+
+    /** Returns the longest time a frame was swapped in after it was due, in ms. */
+    public synchronized long getLatenessMaxMs() {
+        return mLatenessMaxMs;
+    }
+
+    /** Returns the number of swapped in frames in each bucket of lateness. */
+    public synchronized long[] getLatenessHistogram() {
+        return mLatenessHistogram.clone();
+    }
+
+    /**
+     * Returns the number of frames that were decoded but dropped without being shown, such as
+     * frames decoded ahead of playback when it is stopped.
+     */
+    public synchronized long getSkippedFrameCount() {
+        return mSkippedFrameCount;
+    }
+
+    /**
+     * Returns the number of frames jumped over without being decoded by drawables in real time
+     * mode, because they were already over by the time they would have been decoded. These are
+     * not included in {@link #getSkippedFrameCount()}.
+     */
+    public synchronized long getRealTimeSkippedFrameCount() {
+        return mRealTimeSkippedFrameCount;
+    }
+
+    /** Returns the number of Bitmaps acquired from BitmapProviders. */
+    public synchronized long getBitmapAcquisitionCount() {
+        return mBitmapAcquisitionCount;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.graphics.Bitmap;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * BitmapProvider that keeps released Bitmaps for reuse, so that FrameSequenceDrawables coming and
+ * going (e.g. while scrolling) don't allocate a new pair of frame buffers each time.
+ *
+ * Bitmaps are bucketed by size, with dimensions rounded up to a multiple of the bucket
+ * granularity so that similarly sized sequences can share Bitmaps. Idle Bitmaps are held up to a
+ * total byte budget, beyond which the least recently released are recycled.
+ *
+ * A single instance is intended to be shared by all drawables. All methods are thread safe.
+ * Pools of RGB_565 Bitmaps may only be used for opaque sequences.
+ */
+public class PooledBitmapProvider implements FrameSequenceDrawable.BitmapProvider {
+    public static final int DEFAULT_BUCKET_GRANULARITY = 16;
+
+    private final int mBucketGranularity;
+    private final Bitmap.Config mConfig;
+    private long mMaxBytes;
+
+    // idle bitmaps per bucket, most recently released last
+    private final HashMap<Long, LinkedList<Bitmap>> mBuckets =
+            new HashMap<Long, LinkedList<Bitmap>>();
+    // all idle bitmaps, least recently released first
+    private final LinkedHashMap<Bitmap, Long> mLruBitmaps = new LinkedHashMap<Bitmap, Long>();
+    private long mBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    public PooledBitmapProvider(long maxBytes) {
+        this(maxBytes, DEFAULT_BUCKET_GRANULARITY);
+    }
+
+    /**
+     * @param maxBytes budget for idle Bitmaps held by the pool
+     * @param bucketGranularity Bitmap dimensions are rounded up to a multiple of this. Larger
+     *                          values improve reuse across sizes at the cost of unused pixels.
+     */
+    public PooledBitmapProvider(long maxBytes, int bucketGranularity) {
+        this(maxBytes, bucketGranularity, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * @param config config of the pooled Bitmaps, ARGB_8888 or RGB_565
+     */
+    public PooledBitmapProvider(long maxBytes, int bucketGranularity, Bitmap.Config config) {
+        if (maxBytes < 0 || bucketGranularity < 1) throw new IllegalArgumentException();
+        if (config != Bitmap.Config.ARGB_8888 && config != Bitmap.Config.RGB_565) {
+            throw new IllegalArgumentException("Unsupported Bitmap config " + config);
+        }
+        mMaxBytes = maxBytes;
+        mBucketGranularity = bucketGranularity;
+        mConfig = config;
+    }
+
+    private static long getBucketKey(int width, int height) {
+        return ((long) width << 32) | height;
+    }
+
+    private static long getBytes(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private int roundUp(int dimension) {
+        return (dimension + mBucketGranularity - 1) / mBucketGranularity * mBucketGranularity;
+    }
+
+    @Override
+    public Bitmap acquireBitmap(int minWidth, int minHeight) {
+        final int width = roundUp(minWidth);
+        final int height = roundUp(minHeight);
+        synchronized (this) {
+            LinkedList<Bitmap> bucket = mBuckets.get(getBucketKey(width, height));
+            if (bucket != null && !bucket.isEmpty()) {
+                Bitmap bitmap = bucket.removeLast();
+                mLruBitmaps.remove(bitmap);
+                mBytes -= getBytes(bitmap);
+                mHitCount++;
+                return bitmap;
+            }
+            mMissCount++;
+        }
+        return Bitmap.createBitmap(width, height, mConfig);
+    }
+
+    @Override
+    public void releaseBitmap(Bitmap bitmap) {
+        if (bitmap.isRecycled()) return;
+
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (width != roundUp(width) || height != roundUp(height)
+                || bitmap.getConfig() != mConfig) {
+            // not from this pool, and would never match a bucket
+            return;
+        }
+
+        final Long key = getBucketKey(width, height);
+        synchronized (this) {
+            if (mLruBitmaps.containsKey(bitmap)) return;
+
+            LinkedList<Bitmap> bucket = mBuckets.get(key);
+            if (bucket == null) {
+                bucket = new LinkedList<Bitmap>();
+                mBuckets.put(key, bucket);
+            }
+            bucket.addLast(bitmap);
+            mLruBitmaps.put(bitmap, key);
+            mBytes += getBytes(bitmap);
+            trimToSizeLocked(mMaxBytes);
+        }
+    }
+
+    /**
+     * Recycles least recently released Bitmaps until at most maxBytes are held.
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        trimToSizeLocked(maxBytes);
+    }
+
+    /**
+     * Recycles all idle Bitmaps.
+     */
+    public synchronized void evictAll() {
+        trimToSizeLocked(0);
+    }
+
+    /**
+     * Changes the budget for idle Bitmaps, evicting as needed.
+     */
+    public synchronized void setMaxSize(long maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException();
+        mMaxBytes = maxBytes;
+        trimToSizeLocked(maxBytes);
+    }
+
+    private void trimToSizeLocked(long maxBytes) {
+        Iterator<Map.Entry<Bitmap, Long>> iterator = mLruBitmaps.entrySet().iterator();
+        while (mBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Bitmap, Long> eldest = iterator.next();
+            iterator.remove();
+
+            Bitmap bitmap = eldest.getKey();
+            LinkedList<Bitmap> bucket = mBuckets.get(eldest.getValue());
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(eldest.getValue());
+            }
+            mBytes -= getBytes(bitmap);
+            mEvictionCount++;
+            bitmap.recycle();
+        }
+    }
+
+    /** Returns the total size in bytes of the idle Bitmaps held. */
+    public synchronized long getSize() { return mBytes; }
+
+    /** Returns the budget in bytes for idle Bitmaps. */
+    public synchronized long getMaxSize() { return mMaxBytes; }
+
+    /** Returns the number of acquisitions served by a pooled Bitmap. */
+    public synchronized int getHitCount() { return mHitCount; }
+
+    /** Returns the number of acquisitions that allocated a new Bitmap. */
+    public synchronized int getMissCount() { return mMissCount; }
+
+    /** Returns the number of idle Bitmaps recycled to stay within budget. */
+    public synchronized int getEvictionCount() { return mEvictionCount; }
+}
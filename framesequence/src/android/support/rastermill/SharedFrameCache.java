@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of decoded frames, shared by all FrameSequenceDrawables showing the same
+ * FrameSequence at the same sample size and config, such as a reaction repeated down a list.
+ * Whichever subscriber needs a frame first decodes it, and the others copy its pixels.
+ *
+ * Subscribers hold a reference to the shared decoder of their sequence. Once the last one is
+ * released, the decoder is destroyed and its frames are dropped. Frames of all sequences are
+ * held up to a common byte budget, beyond which the least recently used are dropped.
+ *
+ * @see FrameSequenceDrawable#setSharedFrameCacheEnabled(boolean)
+ */
+public final class SharedFrameCache {
+    public static final long DEFAULT_MAX_SIZE = 8 * 1024 * 1024;
+
+    private static final Object sLock = new Object();
+    private static final HashMap<Key, Entry> sEntries = new HashMap<Key, Entry>();
+    // cached frames of all entries, least recently used first
+    private static final LinkedHashMap<FrameKey, Frame> sFrames =
+            new LinkedHashMap<FrameKey, Frame>(16, 0.75f, true);
+    private static long sMaxBytes = DEFAULT_MAX_SIZE;
+    private static long sBytes;
+
+    private SharedFrameCache() {}
+
+    /**
+     * Changes the budget for frames held by the cache, dropping frames as needed.
+     */
+    public static void setMaxSize(long maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException();
+        synchronized (sLock) {
+            sMaxBytes = maxBytes;
+            trimToSizeLocked(maxBytes);
+        }
+    }
+
+    /** Returns the budget in bytes for frames held by the cache. */
+    public static long getMaxSize() {
+        synchronized (sLock) {
+            return sMaxBytes;
+        }
+    }
+
+    /** Returns the total size in bytes of the frames held by the cache. */
+    public static long getSize() {
+        synchronized (sLock) {
+            return sBytes;
+        }
+    }
+
+    /**
+     * Drops all cached frames. Decoders stay alive while they have subscribers.
+     */
+    public static void evictAll() {
+        synchronized (sLock) {
+            trimToSizeLocked(0);
+        }
+    }
+
+    private static void trimToSizeLocked(long maxBytes) {
+        Iterator<Frame> iterator = sFrames.values().iterator();
+        while (sBytes > maxBytes && iterator.hasNext()) {
+            sBytes -= iterator.next().mPixels.length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Subscribes to the shared decoder for frameSequence, creating it if needed. Each call must
+     * be paired with {@link Entry#release()}.
+     */
+    static Entry acquire(FrameSequence frameSequence, int sampleSize, Bitmap.Config config) {
+        final Key key = new Key(frameSequence, sampleSize, config);
+        synchronized (sLock) {
+            Entry entry = sEntries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                sEntries.put(key, entry);
+            }
+            entry.mRefCount++;
+            return entry;
+        }
+    }
+
+    private static final class Key {
+        final FrameSequence mFrameSequence;
+        final int mSampleSize;
+        final Bitmap.Config mConfig;
+
+        Key(FrameSequence frameSequence, int sampleSize, Bitmap.Config config) {
+            mFrameSequence = frameSequence;
+            mSampleSize = sampleSize;
+            mConfig = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return mFrameSequence == other.mFrameSequence && mSampleSize == other.mSampleSize
+                    && mConfig == other.mConfig;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(mFrameSequence) * 31 + mSampleSize) * 31
+                    + mConfig.hashCode();
+        }
+    }
+
+    private static final class FrameKey {
+        final Entry mEntry;
+        final int mFrameNr;
+
+        FrameKey(Entry entry, int frameNr) {
+            mEntry = entry;
+            mFrameNr = frameNr;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FrameKey)) return false;
+            FrameKey other = (FrameKey) o;
+            return mEntry == other.mEntry && mFrameNr == other.mFrameNr;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mEntry) * 31 + mFrameNr;
+        }
+    }
+
+    // immutable once cached, so may be copied from outside of sLock
+    private static final class Frame {
+        final byte[] mPixels;
+        final long mDelayMs;
+        // frame the dirty rect was computed against, see State#getFrame
+        final int mDirtySinceFrameNr;
+        final Rect mDirtyRect;
+
+        Frame(byte[] pixels, long delayMs, int dirtySinceFrameNr, Rect dirtyRect) {
+            mPixels = pixels;
+            mDelayMs = delayMs;
+            mDirtySinceFrameNr = dirtySinceFrameNr;
+            mDirtyRect = dirtyRect;
+        }
+    }
+
+    /**
+     * A subscription to the shared decoder of one FrameSequence. Safe to use from any thread,
+     * decodes for all subscribers are serialized.
+     */
+    static final class Entry {
+        private final Key mKey;
+        // size of the frames drawn by the shared state, which subscribers' Bitmaps may exceed
+        private final int mWidth;
+        private final int mHeight;
+        // guarded by sLock
+        private int mRefCount;
+        // guarded by this, null once the last subscriber released
+        private FrameSequence.State mState;
+
+        private Entry(Key key) {
+            mKey = key;
+            mWidth = FrameSequence.getSampledSize(key.mFrameSequence.getWidth(), key.mSampleSize);
+            mHeight = FrameSequence.getSampledSize(key.mFrameSequence.getHeight(),
+                    key.mSampleSize);
+        }
+
+        private Frame getCachedFrame(int frameNr) {
+            synchronized (sLock) {
+                return sFrames.get(new FrameKey(this, frameNr));
+            }
+        }
+
+        private long copyFrame(Frame frame, Bitmap output, int previousFrameNr,
+                Rect outDirtyRect) {
+            FrameSequence.writePixels(frame.mPixels, mWidth, mHeight, output);
+            if (outDirtyRect != null) {
+                if (previousFrameNr >= 0 && frame.mDirtySinceFrameNr == previousFrameNr) {
+                    outDirtyRect.set(frame.mDirtyRect);
+                } else {
+                    outDirtyRect.set(0, 0, mWidth, mHeight);
+                }
+            }
+            return frame.mDelayMs;
+        }
+
+        /**
+         * Like {@link FrameSequence.State#getFrame(int, Bitmap, int, Rect)}, copying the frame
+         * if another subscriber already decoded it. Frames are cached at the size of the shared
+         * state, and copied into the top left of output, so subscribers' Bitmaps may differ in
+         * size as long as they're at least that large.
+         */
+        long getFrame(int frameNr, Bitmap output, int previousFrameNr, Rect outDirtyRect) {
+            if (output == null || output.getWidth() < mWidth || output.getHeight() < mHeight) {
+                throw new IllegalArgumentException("Bitmap passed must be non-null and at least "
+                        + mWidth + "x" + mHeight);
+            }
+            Frame frame = getCachedFrame(frameNr);
+            if (frame != null) {
+                return copyFrame(frame, output, previousFrameNr, outDirtyRect);
+            }
+
+            final Rect dirtyRect = new Rect();
+            long delayMs;
+            synchronized (this) {
+                // may have been decoded while waiting for another subscriber's decode
+                frame = getCachedFrame(frameNr);
+                if (frame != null) {
+                    return copyFrame(frame, output, previousFrameNr, outDirtyRect);
+                }
+
+                if (mState == null) {
+                    mState = mKey.mFrameSequence.createState(mKey.mSampleSize, mKey.mConfig);
+                    if (mState == null) {
+                        throw new IllegalStateException("failed to create shared state");
+                    }
+                }
+                delayMs = mState.getFrame(frameNr, output, previousFrameNr, dirtyRect);
+            }
+            if (outDirtyRect != null) {
+                outDirtyRect.set(dirtyRect);
+            }
+
+            final int bytesPerPixel = mKey.mConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+            final byte[] pixels = new byte[mWidth * mHeight * bytesPerPixel];
+            FrameSequence.readPixels(output, pixels, mWidth, mHeight);
+            synchronized (sLock) {
+                if (mRefCount > 0 && pixels.length <= sMaxBytes) {
+                    Frame previous = sFrames.put(new FrameKey(this, frameNr),
+                            new Frame(pixels, delayMs, previousFrameNr, dirtyRect));
+                    if (previous != null) {
+                        sBytes -= previous.mPixels.length;
+                    }
+                    sBytes += pixels.length;
+                    trimToSizeLocked(sMaxBytes);
+                }
+            }
+            return delayMs;
+        }
+
+        /**
+         * Ends the subscription. The last release destroys the shared decoder and drops the
+         * entry's frames.
+         */
+        void release() {
+            synchronized (sLock) {
+                if (mRefCount == 0) throw new IllegalStateException("released too many times");
+                if (--mRefCount > 0) return;
+
+                sEntries.remove(mKey);
+                Iterator<Map.Entry<FrameKey, Frame>> iterator = sFrames.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<FrameKey, Frame> cached = iterator.next();
+                    if (cached.getKey().mEntry == this) {
+                        sBytes -= cached.getValue().mPixels.length;
+                        iterator.remove();
+                    }
+                }
+            }
+            synchronized (this) {
+                if (mState != null) {
+                    mState.close();
+                    mState = null;
+                }
+            }
+        }
+    }
+}
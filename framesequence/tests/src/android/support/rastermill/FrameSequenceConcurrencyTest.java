@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.graphics.Bitmap;
+import android.support.rastermill.tests.R;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that States of one FrameSequence drawing on parallel threads produce the same frames as
+ * drawing them one after the other, as documented on {@link FrameSequence.State}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FrameSequenceConcurrencyTest {
+    // taken modulo the frame count, so that short sequences still draw distinct frames
+    private static final int[] CHECKED_FRAMES = { 0, 25, 50, 75 };
+    // times each thread draws its frame, to widen the window for races
+    private static final int REPEATS = 4;
+
+    @Test
+    public void gifStatesDrawConcurrently() throws Exception {
+        FrameSequence frameSequence = decode(R.raw.animated_gif);
+        assertNotNull(frameSequence);
+        try {
+            checkConcurrency(frameSequence);
+        } finally {
+            frameSequence.close();
+        }
+    }
+
+    @Test
+    public void webpStatesDrawConcurrently() throws Exception {
+        FrameSequence frameSequence = decode(R.raw.animated_webp);
+        // libframesequence may be built without WebP support
+        assumeTrue(frameSequence != null);
+        try {
+            checkConcurrency(frameSequence);
+        } finally {
+            frameSequence.close();
+        }
+    }
+
+    private static FrameSequence decode(int resId) throws Exception {
+        InputStream stream = InstrumentationRegistry.getInstrumentation().getContext()
+                .getResources().openRawResource(resId);
+        try {
+            return FrameSequence.decodeStream(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void checkConcurrency(final FrameSequence frameSequence) throws Exception {
+        final int[] frameNrs = new int[CHECKED_FRAMES.length];
+        final Bitmap[] serial = new Bitmap[CHECKED_FRAMES.length];
+        FrameSequence.State state = frameSequence.createState();
+        assertNotNull(state);
+        try {
+            for (int i = 0; i < frameNrs.length; i++) {
+                frameNrs[i] = CHECKED_FRAMES[i] % frameSequence.getFrameCount();
+                serial[i] = drawFrame(state, frameNrs[i]);
+            }
+        } finally {
+            state.close();
+        }
+
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(frameNrs.length);
+        try {
+            List<Future<Bitmap[]>> results = new ArrayList<Future<Bitmap[]>>();
+            for (final int frameNr : frameNrs) {
+                results.add(executor.submit(new Callable<Bitmap[]>() {
+                    @Override
+                    public Bitmap[] call() throws Exception {
+                        FrameSequence.State state = frameSequence.createState();
+                        assertNotNull(state);
+                        try {
+                            startSignal.await();
+                            Bitmap[] bitmaps = new Bitmap[REPEATS];
+                            for (int i = 0; i < REPEATS; i++) {
+                                bitmaps[i] = drawFrame(state, frameNr);
+                            }
+                            return bitmaps;
+                        } finally {
+                            state.close();
+                        }
+                    }
+                }));
+            }
+            startSignal.countDown();
+
+            for (int i = 0; i < frameNrs.length; i++) {
+                for (Bitmap bitmap : results.get(i).get()) {
+                    assertTrue("frame " + frameNrs[i] + " differs from serial decoding",
+                            serial[i].sameAs(bitmap));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // draws frameNr from scratch, so that the result doesn't depend on what state drew before
+    private static Bitmap drawFrame(FrameSequence.State state, int frameNr) {
+        Bitmap bitmap = Bitmap.createBitmap(state.getWidth(), state.getHeight(),
+                state.getConfig());
+        assertTrue("frame " + frameNr + " couldn't be drawn",
+                state.getFrame(frameNr, bitmap, -1) >= 0);
+        return bitmap;
+    }
+}